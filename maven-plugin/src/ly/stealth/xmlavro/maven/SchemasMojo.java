@@ -0,0 +1,218 @@
+package ly.stealth.xmlavro.maven;
+
+import ly.stealth.xmlavro.ConverterException;
+import ly.stealth.xmlavro.NoRootElementException;
+import ly.stealth.xmlavro.SchemaBuilder;
+import ly.stealth.xmlavro.SchemaCache;
+import org.apache.avro.Schema;
+import org.apache.maven.model.Resource;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.project.MavenProject;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Generates avro schemas of xsd files at build time, so services load schemas without parsing xsd.
+ * Schema of each xsd is written as an avsc file of the same relative path into the output dir,
+ * which is added to project resources, along with an index of xsd paths and their avsc files.
+ * Avsc files of the output dir not generated by the run, as of removed xsd files, are deleted.
+ * <p>
+ * Generated schemas are cached by {@link SchemaCache}: an xsd is parsed again only once it or
+ * a file it includes or imports changes; avsc files are rewritten only if their content changes.
+ */
+@Mojo(name = "schemas", defaultPhase = LifecyclePhase.GENERATE_RESOURCES, threadSafe = true)
+public class SchemasMojo extends AbstractMojo {
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    @Parameter(defaultValue = "${basedir}/src/main/xsd", required = true)
+    private File xsdDirectory;
+
+    /**
+     * Paths of root xsd files, relative to the xsd dir; all xsd files of the dir tree if not set,
+     * skipping files declaring no elements, such as fragments holding types for others to include
+     */
+    @Parameter
+    private List<String> xsdFiles;
+
+    @Parameter(defaultValue = "${project.build.directory}/generated-resources/xml-avro", required = true)
+    private File outputDirectory;
+
+    /** Index of xsd paths and paths of their avsc files, written by {@link Properties#store} into the output dir */
+    @Parameter(defaultValue = "xml-avro-schemas.index", required = true)
+    private String indexFile;
+
+    @Parameter(defaultValue = "${project.build.directory}/xml-avro-cache", required = true)
+    private File cacheDirectory;
+
+    @Parameter(property = "xml-avro.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping schema generation");
+            return;
+        }
+
+        boolean listed = xsdFiles == null || xsdFiles.isEmpty();
+        List<String> paths = listed ? listXsdFiles() : xsdFiles;
+        if (paths.isEmpty()) {
+            getLog().warn("No xsd files in " + xsdDirectory);
+            deleteStale(Collections.<String>emptySet());
+            return;
+        }
+
+        SchemaCache cache = new SchemaCache(cacheDirectory);
+        Map<String, String> index = new TreeMap<>();
+        int written = 0;
+        int skipped = 0;
+
+        for (String path : paths) {
+            File xsdFile = new File(xsdDirectory, path);
+            if (!xsdFile.isFile()) throw new MojoExecutionException("No xsd file " + xsdFile);
+
+            SchemaBuilder builder = new SchemaBuilder();
+            builder.setResolver(new DirResolver(xsdFile.getParentFile()));
+
+            Schema schema;
+            try {
+                schema = cache.createSchema(builder, xsdFile);
+            } catch (NoRootElementException e) {
+                if (!listed) throw new MojoExecutionException("Failed to convert " + xsdFile + ": " + e.getMessage(), e);
+
+                getLog().info("Skipping " + xsdFile + ": no root element declaration");
+                skipped++;
+                continue;
+            } catch (ConverterException e) {
+                throw new MojoExecutionException("Failed to convert " + xsdFile + ": " + e.getMessage(), e);
+            }
+
+            String avscPath = replaceExtension(path, "avsc");
+            if (write(new File(outputDirectory, avscPath), schema.toString(true))) written++;
+            index.put(path, avscPath);
+        }
+
+        write(new File(outputDirectory, indexFile), store(index));
+        deleteStale(new HashSet<>(index.values()));
+
+        Resource resource = new Resource();
+        resource.setDirectory(outputDirectory.getPath());
+        project.addResource(resource);
+
+        getLog().info("Generated " + (paths.size() - skipped) + " schemas into " + outputDirectory + ", " + written + " changed");
+    }
+
+    /** Paths of xsd files of the xsd dir tree, relative to the dir, sorted */
+    private List<String> listXsdFiles() throws MojoExecutionException {
+        final List<String> paths = new ArrayList<>();
+        if (!xsdDirectory.isDirectory()) return paths;
+
+        final Path base = xsdDirectory.toPath();
+        try {
+            Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && file.getFileName().toString().endsWith(".xsd"))
+                        paths.add(base.relativize(file).toString().replace(File.separatorChar, '/'));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new MojoExecutionException("Can't list " + xsdDirectory, e);
+        }
+
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * Index as written by {@link Properties#store}, escaped, with lines sorted and without the comment of the date,
+     * so an unchanged index is not rewritten
+     */
+    private static String store(Map<String, String> index) throws MojoExecutionException {
+        Properties properties = new Properties();
+        properties.putAll(index);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            properties.store(out, null);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Can't store index", e);
+        }
+
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(out.toByteArray(), Charset.forName("iso-8859-1")).split("\r?\n"))
+            if (!line.startsWith("#")) lines.add(line);
+        Collections.sort(lines);
+
+        StringBuilder content = new StringBuilder();
+        for (String line : lines) content.append(line).append('\n');
+        return content.toString();
+    }
+
+    /** Deletes avsc files of the output dir tree not among the paths, generated for xsd files since removed */
+    private void deleteStale(final Set<String> avscPaths) throws MojoExecutionException {
+        if (!outputDirectory.isDirectory()) return;
+
+        final Path base = outputDirectory.toPath();
+        try {
+            Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String path = base.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (attrs.isRegularFile() && path.endsWith(".avsc") && !avscPaths.contains(path)) {
+                        getLog().info("Deleting stale " + file);
+                        Files.delete(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new MojoExecutionException("Can't clean " + outputDirectory, e);
+        }
+    }
+
+    /** Writes the file unless it has the same content, so unchanged outputs keep their timestamps */
+    private static boolean write(File file, String content) throws MojoExecutionException {
+        byte[] bytes = content.getBytes(UTF8);
+
+        try {
+            if (file.isFile() && Arrays.equals(Files.readAllBytes(file.toPath()), bytes)) return false;
+
+            File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new MojoExecutionException("Can't create dir " + dir);
+
+            Files.write(file.toPath(), bytes);
+            return true;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Can't write " + file, e);
+        }
+    }
+
+    private static String replaceExtension(String path, String extension) {
+        int dotIdx = path.lastIndexOf('.');
+        int slashIdx = path.lastIndexOf('/');
+        return (dotIdx > slashIdx ? path.substring(0, dotIdx) : path) + "." + extension;
+    }
+
+    /** Resolves includes and imports relative to the dir of the root xsd */
+    private static class DirResolver implements SchemaBuilder.Resolver {
+        private final File dir;
+        private DirResolver(File dir) { this.dir = dir; }
+
+        public InputStream getStream(String systemId) {
+            try { return new FileInputStream(new File(dir, systemId)); }
+            catch (FileNotFoundException e) { return null; }
+        }
+    }
+}
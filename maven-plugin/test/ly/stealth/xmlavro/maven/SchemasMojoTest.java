@@ -0,0 +1,158 @@
+package ly.stealth.xmlavro.maven;
+
+import org.apache.avro.Schema;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Properties;
+
+import static junit.framework.Assert.*;
+
+public class SchemasMojoTest {
+    private File dir;
+    private File xsdDir;
+    private File outDir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("xml-avro-plugin").toFile();
+        xsdDir = new File(dir, "xsd");
+        outDir = new File(dir, "out");
+
+        write(new File(xsdDir, "order.xsd"),
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:include schemaLocation='types.xsd'/>" +
+                "  <xs:element name='order' type='order'/>" +
+                "</xs:schema>");
+        write(new File(xsdDir, "types.xsd"),
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:complexType name='order'>" +
+                "    <xs:sequence><xs:element name='id' type='xs:int'/></xs:sequence>" +
+                "  </xs:complexType>" +
+                "</xs:schema>");
+        write(new File(xsdDir, "sub/a=b c.xsd"),
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='note' type='xs:string'/>" +
+                "</xs:schema>");
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void listedXsdFiles() throws Exception {
+        MavenProject project = new MavenProject();
+        mojo(project, null).execute();
+
+        Schema order = new Schema.Parser().parse(new File(outDir, "order.avsc"));
+        assertEquals(Schema.Type.INT, order.getField("id").schema().getType());
+        assertTrue(new File(outDir, "sub/a=b c.avsc").isFile());
+        // fragment without elements is skipped
+        assertFalse(new File(outDir, "types.avsc").exists());
+
+        // keys with separators are escaped
+        Properties index = loadIndex();
+        assertEquals(2, index.size());
+        assertEquals("order.avsc", index.getProperty("order.xsd"));
+        assertEquals("sub/a=b c.avsc", index.getProperty("sub/a=b c.xsd"));
+
+        assertEquals(1, project.getResources().size());
+        assertEquals(outDir.getPath(), project.getResources().get(0).getDirectory());
+    }
+
+    @Test
+    public void unchangedOutputsAreKept() throws Exception {
+        mojo(new MavenProject(), null).execute();
+
+        File indexFile = new File(outDir, "xml-avro-schemas.index");
+        File avscFile = new File(outDir, "order.avsc");
+        byte[] index = Files.readAllBytes(indexFile.toPath());
+        assertTrue(indexFile.setLastModified(1000));
+        assertTrue(avscFile.setLastModified(1000));
+
+        mojo(new MavenProject(), null).execute();
+        assertTrue(Arrays.equals(index, Files.readAllBytes(indexFile.toPath())));
+        assertEquals(1000, indexFile.lastModified());
+        assertEquals(1000, avscFile.lastModified());
+    }
+
+    @Test
+    public void staleSchemasAreDeleted() throws Exception {
+        mojo(new MavenProject(), null).execute();
+        assertTrue(new File(outDir, "sub/a=b c.avsc").isFile());
+
+        assertTrue(new File(xsdDir, "sub/a=b c.xsd").delete());
+        mojo(new MavenProject(), null).execute();
+
+        assertFalse(new File(outDir, "sub/a=b c.avsc").exists());
+        assertTrue(new File(outDir, "order.avsc").isFile());
+        assertEquals(1, loadIndex().size());
+    }
+
+    @Test
+    public void namedXsdFileWithoutElements() throws Exception {
+        try {
+            mojo(new MavenProject(), Arrays.asList("types.xsd")).execute();
+            fail();
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("No root element declaration"));
+        }
+
+        try {
+            mojo(new MavenProject(), Arrays.asList("missing.xsd")).execute();
+            fail();
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("No xsd file"));
+        }
+    }
+
+    private SchemasMojo mojo(MavenProject project, Object xsdFiles) throws Exception {
+        SchemasMojo mojo = new SchemasMojo();
+        set(mojo, "xsdDirectory", xsdDir);
+        set(mojo, "xsdFiles", xsdFiles);
+        set(mojo, "outputDirectory", outDir);
+        set(mojo, "indexFile", "xml-avro-schemas.index");
+        set(mojo, "cacheDirectory", new File(dir, "cache"));
+        set(mojo, "project", project);
+        return mojo;
+    }
+
+    private static void set(Object object, String name, Object value) throws Exception {
+        Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(object, value);
+    }
+
+    private Properties loadIndex() throws IOException {
+        Properties index = new Properties();
+        try (InputStream in = new FileInputStream(new File(outDir, "xml-avro-schemas.index"))) {
+            index.load(in);
+        }
+        return index;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        Files.write(file.toPath(), content.getBytes("utf-8"));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children) delete(child);
+
+        assertTrue(file.delete());
+    }
+}
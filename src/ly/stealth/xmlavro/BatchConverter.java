@@ -0,0 +1,209 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Converts many xml documents of one schema on a pool of worker threads, sharing one {@link DatumBuilder}.
+ * Documents are written either into a single file, in input order if {@link #setOrdered(boolean) ordered}
+ * or as they complete otherwise, or into one file per document; files are of the {@link OutputFormat}.
+ */
+public class BatchConverter {
+    private final DatumBuilder builder;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean ordered;
+    private OutputFormat format = new OutputFormat();
+
+    public BatchConverter(Schema schema) { this(new DatumBuilder(schema)); }
+    public BatchConverter(DatumBuilder builder) { this.builder = builder; }
+
+    public DatumBuilder getBuilder() { return builder; }
+
+    public int getThreads() { return threads; }
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("Invalid thread count " + threads);
+        this.threads = threads;
+    }
+
+    public boolean isOrdered() { return ordered; }
+    public void setOrdered(boolean ordered) { this.ordered = ordered; }
+
+    public OutputFormat getFormat() { return format; }
+    public void setFormat(OutputFormat format) { this.format = format; }
+
+    /** Writes datums of the documents into a single file */
+    public void convert(List<File> xmlFiles, File avroFile) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (OutputFormat.Output output = format.open(builder.getPlan().getSchema(), avroFile)) {
+
+            // limit documents in flight, encoded documents are held until written
+            int maxPending = threads * 2;
+            Deque<Future<byte[]>> pending = new ArrayDeque<>();
+            CompletionService<byte[]> completion = new ExecutorCompletionService<>(executor);
+
+            Iterator<File> files = xmlFiles.iterator();
+            while (files.hasNext() || !pending.isEmpty()) {
+                while (files.hasNext() && pending.size() < maxPending) {
+                    Callable<byte[]> task = encodeTask(files.next());
+                    pending.add(ordered ? executor.submit(task) : completion.submit(task));
+                }
+
+                Future<byte[]> future = ordered ? pending.poll() : completion.take();
+                if (!ordered) pending.remove(future);
+
+                output.append(result(future));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConverterException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Writes datum of each document into a file of the output dir, named as the document with .avro extension */
+    public void convertEach(List<File> xmlFiles, File outputDir) {
+        Map<String, File> outputs = new LinkedHashMap<>();
+        for (File xmlFile : xmlFiles) {
+            File avroFile = new File(outputDir, replaceExtension(xmlFile.getName(), "avro"));
+            if (outputs.put(avroFile.getPath(), xmlFile) != null)
+                throw new ConverterException("Several inputs are written to " + avroFile);
+        }
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new ConverterException("Can't create dir " + outputDir);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for (Map.Entry<String, File> entry : outputs.entrySet())
+                futures.add(executor.submit(convertTask(entry.getValue(), new File(entry.getKey()))));
+
+            for (Future<byte[]> future : futures)
+                result(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConverterException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<byte[]> encodeTask(final File xmlFile) {
+        return new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(stream, null);
+                encode(xmlFile, encoder);
+                encoder.flush();
+                return stream.toByteArray();
+            }
+        };
+    }
+
+    private Callable<byte[]> convertTask(final File xmlFile, final File avroFile) {
+        return new Callable<byte[]>() {
+            public byte[] call() {
+                try (OutputFormat.Output output = format.open(builder.getPlan().getSchema(), avroFile)) {
+                    encode(xmlFile, output.startDatum());
+                    output.endDatum();
+                }
+                return null;
+            }
+        };
+    }
+
+    private void encode(File xmlFile, BinaryEncoder encoder) {
+        try {
+            builder.encodeDatum(xmlFile, encoder);
+        } catch (RuntimeException e) {
+            throw new ConverterException("Failed to convert " + xmlFile + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] result(Future<byte[]> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConverterException) throw (ConverterException) cause;
+            throw new ConverterException(cause);
+        }
+    }
+
+    /**
+     * Input files of the spec: files of a directory or files matching a glob, e.g. "data/*.xml" or "data/**.xml",
+     * sorted by path; or files listed one per line in a list file prefixed with '@', in their listed order.
+     */
+    public static List<File> listFiles(String spec) {
+        List<File> files = new ArrayList<>();
+
+        if (spec.startsWith("@")) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(spec.substring(1)))) {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    if (!line.trim().isEmpty()) files.add(new File(line.trim()));
+            } catch (IOException e) {
+                throw new ConverterException(e);
+            }
+
+            return files;
+        }
+
+        File dir = new File(spec);
+        if (dir.isDirectory()) {
+            File[] children = dir.listFiles();
+            if (children != null)
+                for (File child : children)
+                    if (child.isFile()) files.add(child);
+        } else
+            files.addAll(glob(spec));
+
+        Collections.sort(files);
+        return files;
+    }
+
+    private static List<File> glob(String pattern) {
+        // walk from the longest directory prefix without wildcards
+        int wildcard = pattern.length();
+        for (char c : "*?[{".toCharArray()) {
+            int i = pattern.indexOf(c);
+            if (i != -1) wildcard = Math.min(wildcard, i);
+        }
+
+        int slash = pattern.lastIndexOf('/', wildcard);
+        Path base = Paths.get(slash == -1 ? "." : pattern.substring(0, slash + 1));
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + (slash == -1 ? pattern : pattern.substring(slash + 1)));
+        final Path root = base;
+
+        final List<File> files = new ArrayList<>();
+        if (!Files.isDirectory(base)) return files;
+
+        try {
+            Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && matcher.matches(root.relativize(file)))
+                        files.add(file.toFile());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new ConverterException(e);
+        }
+
+        return files;
+    }
+
+    private static String replaceExtension(String name, String extension) {
+        int dotIdx = name.lastIndexOf('.');
+        return (dotIdx != -1 ? name.substring(0, dotIdx) : name) + "." + extension;
+    }
+}
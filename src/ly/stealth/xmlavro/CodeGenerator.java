@@ -0,0 +1,440 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Generates java source of a converter specific to a schema, built by {@link SchemaBuilder}.
+ * Generated converter extends {@link GeneratedConverter}: it has a method per record, which
+ * switches on element and attribute names and calls typed parsing directly.
+ * It writes the same bytes as {@link DatumBuilder#encodeDatum(javax.xml.stream.XMLStreamReader, org.apache.avro.io.BinaryEncoder)}.
+ */
+public class CodeGenerator {
+    private static final String ELEMENT_PREFIX = "" + new Source("", false);
+    private static final String ATTRIBUTE_PREFIX = "" + new Source("", true);
+
+    // string constants of the class file are limited to 64K bytes
+    private static final int SCHEMA_CHUNK = 8192;
+
+    /** Source of the converter class with the fully qualified name */
+    public String generate(Schema schema, String className) {
+        return new Generation(schema, className).generate();
+    }
+
+    /** Writes source of the converter class into the source dir, under dirs of its package */
+    public File generate(Schema schema, String className, File srcDir) {
+        File file = new File(srcDir, className.replace('.', File.separatorChar) + ".java");
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new ConverterException("Can't create dir " + dir);
+
+        try {
+            Files.write(file.toPath(), generate(schema, className).getBytes(Charset.forName("utf-8")));
+        } catch (IOException e) {
+            throw new ConverterException(e);
+        }
+
+        return file;
+    }
+
+    private static class Generation {
+        private final Schema schema;
+        private final String packageName;
+        private final String simpleName;
+        // unmarked schema of an earlier version, holding dateTime values in plain longs
+        private final boolean legacyDateTimes;
+
+        private final Map<Schema, Integer> records = new IdentityHashMap<>();
+        private final Map<Schema, Integer> arrays = new IdentityHashMap<>();
+        private final Deque<Schema> pending = new ArrayDeque<>();
+
+        private final StringBuilder methods = new StringBuilder();
+
+        private Generation(Schema schema, String className) {
+            this.schema = schema;
+            legacyDateTimes = !SchemaBuilder.marksDateTimes(schema);
+
+            int dotIdx = className.lastIndexOf('.');
+            packageName = dotIdx != -1 ? className.substring(0, dotIdx) : null;
+            simpleName = className.substring(dotIdx + 1);
+        }
+
+        String generate() {
+            Code root = new Code(2);
+            encode(root, schema, "out");
+
+            // records and arrays are generated as they are referenced
+            while (!pending.isEmpty()) {
+                Schema next = pending.poll();
+                if (next.getType() == Schema.Type.RECORD) generateRecord(next);
+                else generateArray(next);
+            }
+
+            StringBuilder source = new StringBuilder();
+            source.append("// Generated by ").append(CodeGenerator.class.getName()).append(" from schema ").append(schemaName()).append(", do not edit\n");
+            if (packageName != null) source.append("package ").append(packageName).append(";\n\n");
+
+            source.append("import ly.stealth.xmlavro.DatumBuilder;\n")
+                  .append("import ly.stealth.xmlavro.GeneratedConverter;\n")
+                  .append("import org.apache.avro.Schema;\n")
+                  .append("import org.apache.avro.io.BinaryEncoder;\n\n")
+                  .append("import javax.xml.stream.XMLStreamException;\n")
+                  .append("import javax.xml.stream.XMLStreamReader;\n")
+                  .append("import java.io.IOException;\n\n");
+
+            source.append("public class ").append(simpleName).append(" extends GeneratedConverter {\n");
+            source.append("    private static final Schema SCHEMA = parse(");
+            String json = schema.toString();
+            for (int i = 0; i < json.length(); i += SCHEMA_CHUNK) {
+                if (i > 0) source.append(",");
+                source.append("\n            ").append(literal(json.substring(i, Math.min(json.length(), i + SCHEMA_CHUNK))));
+            }
+            source.append("\n    );\n\n");
+
+            List<Schema> recordList = new ArrayList<>(records.keySet());
+            Collections.sort(recordList, new Comparator<Schema>() {
+                public int compare(Schema a, Schema b) { return records.get(a) - records.get(b); }
+            });
+            for (Schema record : recordList)
+                source.append("    private static final RecordType ").append(recordType(record))
+                      .append(" = recordType(SCHEMA, ").append(literal(record.getFullName())).append(");\n");
+            if (!recordList.isEmpty()) source.append("\n");
+
+            source.append("    public ").append(simpleName).append("() { this(new DatumBuilder.Config()); }\n")
+                  .append("    public ").append(simpleName).append("(DatumBuilder.Config config) { super(SCHEMA, config); }\n\n");
+
+            source.append("    @Override\n")
+                  .append("    protected void encodeRoot(XMLStreamReader reader, BinaryEncoder out) throws XMLStreamException, IOException {\n")
+                  .append(root)
+                  .append("    }\n");
+
+            source.append(methods);
+            source.append("}\n");
+            return source.toString();
+        }
+
+        private String schemaName() {
+            return schema.getType() == Schema.Type.RECORD ? schema.getFullName() : schema.getType().getName();
+        }
+
+        /** Statements writing the value of the element, same as Handler.encode of the plan */
+        private void encode(Code code, Schema schema, String out) {
+            switch (schema.getType()) {
+                case STRING: code.line(out + ".writeString(readString(reader));"); break;
+                case INT: code.line(out + ".writeInt(readInt(reader));"); break;
+                case LONG: code.line(out + ".writeLong(" + (isDateTime(schema) ? "readDateTime" : legacyDateTimes ? "readLegacyLong" : "readLong") + "(reader));"); break;
+                case FLOAT: code.line(out + ".writeFloat(readFloat(reader));"); break;
+                case DOUBLE: code.line(out + ".writeDouble(readDouble(reader));"); break;
+                case BOOLEAN: code.line(out + ".writeBoolean(readBoolean(reader));"); break;
+                case UNION:
+                    if (!isOptional(schema)) {
+                        code.line("fail(" + literal(unsupported(schema)) + ");");
+                        break;
+                    }
+
+                    code.line(out + ".writeIndex(1);");
+                    encode(code, schema.getTypes().get(1), out);
+                    break;
+                case RECORD: code.line(record(schema) + "(reader, " + out + ", false);"); break;
+                case ARRAY: code.line(array(schema) + "(reader, " + out + ");"); break;
+                default: code.line("fail(" + literal(unsupported(schema)) + ");");
+            }
+        }
+
+        /** Statements writing an array item of the element, same as Handler.encodeItem of the plan */
+        private void encodeItem(Code code, Schema schema, String out) {
+            if (schema.getType() == Schema.Type.RECORD) code.line(record(schema) + "(reader, " + out + ", true);");
+            else encode(code, schema, out);
+        }
+
+        /** Statements writing the value of an attribute, same as Handler.encodeValue of the plan */
+        private void encodeValue(Code code, Schema schema, String text, String out) {
+            switch (schema.getType()) {
+                case STRING: code.line(out + ".writeString(" + text + ");"); break;
+                case INT: code.line(out + ".writeInt(parseInt(" + text + "));"); break;
+                case LONG: code.line(out + ".writeLong(" + (isDateTime(schema) ? "parseDateTime" : legacyDateTimes ? "parseLegacyLong" : "parseLong") + "(" + text + "));"); break;
+                case FLOAT: code.line(out + ".writeFloat(parseFloat(" + text + "));"); break;
+                case DOUBLE: code.line(out + ".writeDouble(parseDouble(" + text + "));"); break;
+                case BOOLEAN: code.line(out + ".writeBoolean(parseBoolean(" + text + "));"); break;
+                case UNION:
+                    if (!isOptional(schema)) {
+                        code.line("fail(" + literal(unsupported(schema)) + ");");
+                        break;
+                    }
+
+                    code.line(out + ".writeIndex(1);");
+                    encodeValue(code, schema.getTypes().get(1), text, out);
+                    break;
+                case RECORD:
+                case ARRAY:
+                    code.line("fail(\"Unsupported attribute type\");");
+                    break;
+                default: code.line("fail(" + literal(unsupported(schema)) + ");");
+            }
+        }
+
+        private void generateRecord(Schema record) {
+            String type = recordType(record);
+            boolean document = Source.DOCUMENT.equals(record.getProp(Source.SOURCE));
+
+            Code code = new Code(1);
+            code.line("");
+            code.line("private void " + record(record) + "(XMLStreamReader reader, BinaryEncoder out, boolean item) throws XMLStreamException, IOException {");
+            code.indent();
+            code.line("Fields fields = fields(" + type + ", out);");
+            code.line("try {");
+            code.indent();
+
+            // element itself is the field of a root or nested record
+            if (document) {
+                code.line("fields.singleField();");
+                code.line(element(record) + "(reader, fields);");
+            }
+            else {
+                code.line("if (item) " + element(record) + "(reader, fields);");
+                code.line("else {");
+                code.indent();
+                attributes(code, record);
+                code.line("fields.attributesWritten();");
+                code.line("");
+                code.line("while (nextChild(reader))");
+                code.line("    " + element(record) + "(reader, fields);");
+                code.outdent();
+                code.line("}");
+            }
+
+            code.line("");
+            code.line("fields.finish();");
+            code.outdent();
+            code.line("} finally {");
+            code.line("    fields.release();");
+            code.line("}");
+            code.outdent();
+            code.line("}");
+
+            code.line("");
+            code.line("private void " + element(record) + "(XMLStreamReader reader, Fields fields) throws XMLStreamException, IOException {");
+            code.indent();
+            code.line("String name = reader.getLocalName();");
+            code.line("switch (caseSensitive ? name : " + type + ".element(name)) {");
+            code.indent();
+
+            Map<String, Schema.Field> elements = new LinkedHashMap<>();
+            for (Schema.Field field : record.getFields()) {
+                String source = field.getProp(Source.SOURCE);
+                if (source != null && source.startsWith(ELEMENT_PREFIX) && !elements.containsKey(source.substring(ELEMENT_PREFIX.length())))
+                    elements.put(source.substring(ELEMENT_PREFIX.length()), field);
+            }
+
+            for (Map.Entry<String, Schema.Field> entry : elements.entrySet()) {
+                Schema.Field field = entry.getValue();
+                int pos = field.pos();
+
+                code.line("case " + literal(entry.getKey()) + ": {");
+                code.indent();
+                if (field.schema().getType() != Schema.Type.ARRAY) {
+                    code.line("BinaryEncoder value = fields.valueOut(" + pos + ");");
+                    encode(code, field.schema(), "value");
+                    code.line("fields.valueWritten(" + pos + ");");
+                } else {
+                    code.line("BinaryEncoder item = fields.itemOut(" + pos + ");");
+                    encode(code, field.schema().getElementType(), "item");
+                    code.line("fields.itemWritten(" + pos + ");");
+                }
+                code.line("break;");
+                code.outdent();
+                code.line("}");
+            }
+
+            // elements of nested records, which become array items themselves
+            Set<String> nested = new HashSet<>();
+            for (Schema.Field field : record.getFields()) {
+                if (field.schema().getType() != Schema.Type.ARRAY) continue;
+
+                Schema itemRecord = itemRecord(field.schema().getElementType());
+                if (itemRecord == null) continue;
+
+                for (Schema.Field itemField : itemRecord.getFields()) {
+                    String source = itemField.getProp(Source.SOURCE);
+                    if (source == null || !source.startsWith(ELEMENT_PREFIX)) continue;
+
+                    String name = source.substring(ELEMENT_PREFIX.length());
+                    if (elements.containsKey(name) || !nested.add(name)) continue;
+
+                    code.line("case " + literal(name) + ": {");
+                    code.indent();
+                    code.line("BinaryEncoder item = fields.itemOut(" + field.pos() + ");");
+                    encodeItem(code, field.schema().getElementType(), "item");
+                    code.line("fields.itemWritten(" + field.pos() + ");");
+                    code.line("break;");
+                    code.outdent();
+                    code.line("}");
+                }
+            }
+
+            code.line("default:");
+            code.line("    other(" + type + ", fields, name, reader);");
+            code.outdent();
+            code.line("}");
+            code.outdent();
+            code.line("}");
+
+            methods.append(code);
+        }
+
+        private void attributes(Code code, Schema record) {
+            Map<String, Schema.Field> attributes = new LinkedHashMap<>();
+            for (Schema.Field field : record.getFields()) {
+                String source = field.getProp(Source.SOURCE);
+                if (source != null && source.startsWith(ATTRIBUTE_PREFIX) && !attributes.containsKey(source.substring(ATTRIBUTE_PREFIX.length())))
+                    attributes.put(source.substring(ATTRIBUTE_PREFIX.length()), field);
+            }
+
+            code.line("for (int i = 0; i < reader.getAttributeCount(); i++) {");
+            code.indent();
+            code.line("String name = attributeName(reader, i);");
+            if (attributes.isEmpty()) {
+                code.line("if (name != null) throw unsupportedAttribute(name);");
+                code.outdent();
+                code.line("}");
+                return;
+            }
+
+            code.line("if (name == null) continue;");
+            code.line("");
+            code.line("switch (caseSensitive ? name : " + recordType(record) + ".attribute(name)) {");
+            code.indent();
+            for (Map.Entry<String, Schema.Field> entry : attributes.entrySet()) {
+                int pos = entry.getValue().pos();
+
+                code.line("case " + literal(entry.getKey()) + ": {");
+                code.indent();
+                code.line("BinaryEncoder value = fields.valueOut(" + pos + ");");
+                encodeValue(code, entry.getValue().schema(), "reader.getAttributeValue(i)", "value");
+                code.line("fields.valueWritten(" + pos + ");");
+                code.line("break;");
+                code.outdent();
+                code.line("}");
+            }
+            code.line("default:");
+            code.line("    throw unsupportedAttribute(name);");
+            code.outdent();
+            code.line("}");
+            code.outdent();
+            code.line("}");
+        }
+
+        private void generateArray(Schema array) {
+            Code code = new Code(1);
+            code.line("");
+            code.line("private void " + array(array) + "(XMLStreamReader reader, BinaryEncoder out) throws XMLStreamException, IOException {");
+            code.indent();
+            code.line("Items items = items();");
+            code.line("try {");
+            code.indent();
+            code.line("while (nextChild(reader)) {");
+            code.indent();
+            code.line("BinaryEncoder item = items.encoder();");
+            encodeItem(code, array.getElementType(), "item");
+            code.line("items.add();");
+            code.outdent();
+            code.line("}");
+            code.line("");
+            code.line("items.writeTo(out);");
+            code.outdent();
+            code.line("} finally {");
+            code.line("    items.release();");
+            code.line("}");
+            code.outdent();
+            code.line("}");
+
+            methods.append(code);
+        }
+
+        private String record(Schema record) { return "record" + index(records, record); }
+        private String recordType(Schema record) { return "RECORD" + index(records, record); }
+        private String element(Schema record) { return "element" + index(records, record); }
+        private String array(Schema array) { return "array" + index(arrays, array); }
+
+        private int index(Map<Schema, Integer> map, Schema schema) {
+            Integer index = map.get(schema);
+            if (index == null) {
+                index = map.size();
+                map.put(schema, index);
+                pending.add(schema);
+            }
+
+            return index;
+        }
+    }
+
+    private static boolean isDateTime(Schema schema) {
+        return SchemaBuilder.TIMESTAMP_MILLIS.equals(schema.getProp(SchemaBuilder.LOGICAL_TYPE));
+    }
+
+    private static boolean isOptional(Schema union) {
+        List<Schema> types = union.getTypes();
+        return types.size() == 2 && types.get(0).getType() == Schema.Type.NULL;
+    }
+
+    /** Message of the plan for values of the schema, which are not supported */
+    private static String unsupported(Schema schema) {
+        switch (schema.getType()) {
+            case NULL: return "Unsupported type " + schema.getType();
+            case UNION: return "Unsupported union types " + schema.getTypes();
+            default: return "Unsupported schema type " + schema.getType();
+        }
+    }
+
+    /** Record schema, optionally wrapped into an optional union; null for other schemas */
+    private static Schema itemRecord(Schema schema) {
+        if (schema.getType() == Schema.Type.UNION) {
+            List<Schema> types = schema.getTypes();
+            schema = types.get(types.size() - 1);
+        }
+
+        return schema.getType() == Schema.Type.RECORD ? schema : null;
+    }
+
+    static String literal(String s) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': literal.append("\\\""); break;
+                case '\\': literal.append("\\\\"); break;
+                case '\n': literal.append("\\n"); break;
+                case '\r': literal.append("\\r"); break;
+                case '\t': literal.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c > 0x7e) literal.append(String.format("\\u%04x", (int) c));
+                    else literal.append(c);
+            }
+        }
+
+        return literal.append('"').toString();
+    }
+
+    /** Lines of java code with indentation */
+    private static class Code {
+        private final StringBuilder code = new StringBuilder();
+        private int indent;
+
+        private Code(int indent) { this.indent = indent; }
+
+        void line(String line) {
+            if (!line.isEmpty())
+                for (int i = 0; i < indent; i++) code.append("    ");
+            code.append(line).append('\n');
+        }
+
+        void indent() { indent++; }
+        void outdent() { indent--; }
+
+        public String toString() { return code.toString(); }
+    }
+}
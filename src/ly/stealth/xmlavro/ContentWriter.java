@@ -0,0 +1,328 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.util.Utf8;
+import org.w3c.dom.*;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serializes inner content of wildcard elements, formatted as Transformer does.
+ * Writer reuses its buffers between calls, so there is one writer per thread.
+ */
+class ContentWriter {
+    private static final ThreadLocal<ContentWriter> WRITER = new ThreadLocal<ContentWriter>() {
+        @Override
+        protected ContentWriter initialValue() { return new ContentWriter(); }
+    };
+
+    static ContentWriter get() { return WRITER.get(); }
+
+    private static final String XMLNS_NAMESPACE = "http://www.w3.org/2000/xmlns/";
+
+    private StringBuilder out = new StringBuilder();
+    private boolean hasText;
+    private byte[] bytes = new byte[256];
+
+    // namespaces in scope of the serialized content: prefix, uri pairs and scope start by element depth
+    private List<String> namespaces = new ArrayList<>();
+    private int[] scopes = new int[16];
+
+    /** Content of the element, as String or Utf8; empty if the content has no text. */
+    Object write(Element el, boolean utf8) {
+        reset();
+
+        declareNamespaces(el, false);
+        declareUsedNamespaces(el, false);
+
+        for (Node child = el.getFirstChild(); child != null; child = child.getNextSibling())
+            writeNode(child, 1);
+
+        return result(utf8);
+    }
+
+    /** Content of the current element, as String or Utf8; empty if the content has no text. Leaves reader at the element end. */
+    Object write(XMLStreamReader reader, boolean utf8) throws XMLStreamException {
+        reset();
+
+        declareNamespaces(reader, false);
+        declareUsedNamespaces(reader, false);
+
+        boolean startTagOpen = false;
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (startTagOpen && event != XMLStreamConstants.END_ELEMENT) {
+                out.append('>');
+                startTagOpen = false;
+            }
+
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    openScope(depth++);
+
+                    out.append('<').append(DatumBuilder.qualifiedName(reader.getName()));
+                    declareNamespaces(reader, true);
+                    declareUsedNamespaces(reader, true);
+
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        out.append(' ').append(DatumBuilder.qualifiedName(reader.getAttributeName(i)));
+                        appendAttributeValue(reader.getAttributeValue(i));
+                    }
+
+                    startTagOpen = true;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (--depth == 0) break;
+
+                    if (startTagOpen) out.append("/>");
+                    else out.append("</").append(DatumBuilder.qualifiedName(reader.getName())).append('>');
+                    startTagOpen = false;
+
+                    closeScope(depth);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    hasText |= reader.getTextLength() > 0;
+                    appendEscaped(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    hasText |= reader.getTextLength() > 0;
+                    out.append("<![CDATA[").append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength()).append("]]>");
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    out.append("<!--").append(reader.getText()).append("-->");
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    appendProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+            }
+        }
+
+        return result(utf8);
+    }
+
+    private void reset() {
+        out.setLength(0);
+        hasText = false;
+        namespaces.clear();
+    }
+
+    private Object result(boolean utf8) {
+        if (!hasText) return utf8 ? new Utf8() : "";
+        return utf8 ? toUtf8() : out.toString();
+    }
+
+    private void writeNode(Node node, int depth) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                Element el = (Element) node;
+                openScope(depth);
+
+                out.append('<').append(el.getNodeName());
+                declareNamespaces(el, true);
+                declareUsedNamespaces(el, true);
+
+                NamedNodeMap attrs = el.getAttributes();
+                for (int i = 0; i < attrs.getLength(); i++) {
+                    Attr attr = (Attr) attrs.item(i);
+                    if (XMLNS_NAMESPACE.equals(attr.getNamespaceURI())) continue;
+
+                    out.append(' ').append(attr.getName());
+                    appendAttributeValue(attr.getValue());
+                }
+
+                if (el.getFirstChild() == null) out.append("/>");
+                else {
+                    out.append('>');
+                    for (Node child = el.getFirstChild(); child != null; child = child.getNextSibling())
+                        writeNode(child, depth + 1);
+                    out.append("</").append(el.getNodeName()).append('>');
+                }
+
+                closeScope(depth);
+                break;
+            case Node.TEXT_NODE:
+                String text = node.getNodeValue();
+                hasText |= !text.isEmpty();
+                appendEscaped(text);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                String data = node.getNodeValue();
+                hasText |= !data.isEmpty();
+                out.append("<![CDATA[").append(data).append("]]>");
+                break;
+            case Node.COMMENT_NODE:
+                out.append("<!--").append(node.getNodeValue()).append("-->");
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                ProcessingInstruction pi = (ProcessingInstruction) node;
+                appendProcessingInstruction(pi.getTarget(), pi.getData());
+                break;
+            case Node.ENTITY_REFERENCE_NODE:
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+                    writeNode(child, depth);
+                break;
+        }
+    }
+
+    private void openScope(int depth) {
+        if (depth >= scopes.length) scopes = Arrays.copyOf(scopes, scopes.length * 2);
+        scopes[depth] = namespaces.size();
+    }
+
+    private void closeScope(int depth) {
+        int scope = scopes[depth];
+        for (int i = namespaces.size() - 1; i >= scope; i--)
+            namespaces.remove(i);
+    }
+
+    /** Declares namespaces the current element declares itself */
+    private void declareNamespaces(XMLStreamReader reader, boolean write) {
+        for (int i = 0; i < reader.getNamespaceCount(); i++)
+            declareNamespace(reader.getNamespacePrefix(i), reader.getNamespaceURI(i), write);
+    }
+
+    private void declareNamespaces(Element el, boolean write) {
+        NamedNodeMap attrs = el.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr attr = (Attr) attrs.item(i);
+            if (!XMLNS_NAMESPACE.equals(attr.getNamespaceURI())) continue;
+
+            String prefix = "xmlns".equals(attr.getPrefix()) ? attr.getLocalName() : "";
+            declareNamespace(prefix, attr.getValue(), write);
+        }
+    }
+
+    /** Declares namespaces used by the current element and its attributes, which are not in scope yet */
+    private void declareUsedNamespaces(XMLStreamReader reader, boolean write) {
+        declareUsedNamespace(reader.getPrefix(), reader.getNamespaceURI(), write);
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String prefix = reader.getAttributePrefix(i);
+            if (prefix != null && !prefix.isEmpty())
+                declareUsedNamespace(prefix, reader.getAttributeNamespace(i), write);
+        }
+    }
+
+    private void declareUsedNamespaces(Element el, boolean write) {
+        if (el.getLocalName() == null) return; // not namespace aware
+        declareUsedNamespace(el.getPrefix(), el.getNamespaceURI(), write);
+
+        NamedNodeMap attrs = el.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr attr = (Attr) attrs.item(i);
+            String prefix = attr.getPrefix();
+            if (prefix != null && !prefix.isEmpty() && !XMLNS_NAMESPACE.equals(attr.getNamespaceURI()))
+                declareUsedNamespace(prefix, attr.getNamespaceURI(), write);
+        }
+    }
+
+    private void declareUsedNamespace(String prefix, String uri, boolean write) {
+        if (prefix == null) prefix = "";
+        if (uri == null) uri = "";
+        if ("xml".equals(prefix)) return;
+
+        String boundUri = "";
+        for (int i = namespaces.size() - 2; i >= 0; i -= 2) {
+            if (namespaces.get(i).equals(prefix)) {
+                boundUri = namespaces.get(i + 1);
+                break;
+            }
+        }
+
+        if (!boundUri.equals(uri))
+            declareNamespace(prefix, uri, write);
+    }
+
+    private void declareNamespace(String prefix, String uri, boolean write) {
+        if (prefix == null) prefix = "";
+        if (uri == null) uri = "";
+
+        if (write) {
+            out.append(" xmlns");
+            if (!prefix.isEmpty()) out.append(':').append(prefix);
+            appendAttributeValue(uri);
+        }
+
+        namespaces.add(prefix);
+        namespaces.add(uri);
+    }
+
+    private void appendProcessingInstruction(String target, String data) {
+        out.append("<?").append(target);
+        if (data != null && !data.isEmpty()) out.append(' ').append(data);
+        out.append("?>");
+    }
+
+    private void appendAttributeValue(String value) {
+        out.append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&': out.append("&amp;"); break;
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '"': out.append("&quot;"); break;
+                case '\r': out.append("&#13;"); break;
+                case '\n': out.append("&#10;"); break;
+                case '\t': out.append("&#9;"); break;
+                default: out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private void appendEscaped(String text) {
+        for (int i = 0; i < text.length(); i++)
+            appendEscaped(text.charAt(i));
+    }
+
+    private void appendEscaped(char[] chars, int start, int length) {
+        for (int i = start; i < start + length; i++)
+            appendEscaped(chars[i]);
+    }
+
+    private void appendEscaped(char c) {
+        switch (c) {
+            case '&': out.append("&amp;"); break;
+            case '<': out.append("&lt;"); break;
+            case '>': out.append("&gt;"); break;
+            case '\r': out.append("&#13;"); break;
+            default: out.append(c);
+        }
+    }
+
+    private Utf8 toUtf8() {
+        int length = out.length();
+        if (bytes.length < length * 3) bytes = new byte[length * 3];
+
+        int p = 0;
+        for (int i = 0; i < length; i++) {
+            int c = out.charAt(i);
+
+            if (Character.isHighSurrogate((char) c) && i + 1 < length && Character.isLowSurrogate(out.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, out.charAt(++i));
+                bytes[p++] = (byte) (0xF0 | c >> 18);
+                bytes[p++] = (byte) (0x80 | c >> 12 & 0x3F);
+                bytes[p++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[p++] = (byte) (0x80 | c & 0x3F);
+            } else if (c < 0x80) {
+                bytes[p++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[p++] = (byte) (0xC0 | c >> 6);
+                bytes[p++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                bytes[p++] = (byte) (0xE0 | c >> 12);
+                bytes[p++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[p++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+
+        return new Utf8(Arrays.copyOf(bytes, p));
+    }
+}
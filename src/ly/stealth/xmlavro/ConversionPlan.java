@@ -0,0 +1,566 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.io.BinaryEncoder;
+import org.w3c.dom.*;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Avro schema compiled into a tree of handlers, converting xml into datums.
+ * Type dispatch, union checks and field setup are done once at compile time.
+ * Plan is immutable and can be shared between threads and {@link DatumBuilder}s.
+ */
+public class ConversionPlan {
+    private static final List<String> IGNORED_NAMESPACES = Arrays.asList("http://www.w3.org/2000/xmlns/", "http://www.w3.org/2001/XMLSchema-instance");
+    private static final List<String> IGNORED_NAMES = Arrays.asList("xml:lang");
+
+    private final Schema schema;
+    private final Handler root;
+
+    private ConversionPlan(Schema schema) {
+        this.schema = schema;
+        root = new Compiler().compileRoot(schema);
+    }
+
+    public static ConversionPlan compile(Schema schema) { return new ConversionPlan(schema); }
+
+    public Schema getSchema() { return schema; }
+
+    Object convert(Element el, DatumBuilder.Config config) {
+        return root.convert(el, config);
+    }
+
+    /** Reader should be at the element start, it's left at the element end */
+    Object convert(XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException {
+        return root.convert(reader, config);
+    }
+
+    /**
+     * Writes the datum of the element directly, producing the same bytes as writing the converted datum.
+     * Fields are written as they arrive, buffering only those out of order ({@link RecordEncoder}).
+     */
+    void encode(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException {
+        root.encode(reader, out, config);
+    }
+
+    private static boolean isIgnored(String namespace, String name) {
+        return IGNORED_NAMESPACES.contains(namespace) || IGNORED_NAMES.contains(name);
+    }
+
+    /** Qualified name of the attribute at the index, null for attributes which are not converted */
+    static String attributeName(XMLStreamReader reader, int index) {
+        String name = DatumBuilder.qualifiedName(reader.getAttributeName(index));
+        return isIgnored(reader.getAttributeNamespace(index), name) ? null : name;
+    }
+
+    private static class Compiler {
+        private Map<Schema, RecordHandler> records = new IdentityHashMap<>();
+        // unmarked schema of an earlier version, holding dateTime values in plain longs
+        private boolean legacyDateTimes;
+
+        Handler compileRoot(Schema schema) {
+            legacyDateTimes = !SchemaBuilder.marksDateTimes(schema);
+            return compile(schema);
+        }
+
+        Handler compile(Schema schema) {
+            switch (schema.getType()) {
+                case STRING: return STRING;
+                case INT: return INT;
+                case LONG:
+                    if (SchemaBuilder.TIMESTAMP_MILLIS.equals(schema.getProp(SchemaBuilder.LOGICAL_TYPE))) return DATE_TIME;
+                    return legacyDateTimes ? LEGACY_LONG : LONG;
+                case FLOAT: return FLOAT;
+                case DOUBLE: return DOUBLE;
+                case BOOLEAN: return BOOLEAN;
+                case NULL: return new UnsupportedHandler("Unsupported type " + schema.getType());
+                case UNION: return compileUnion(schema);
+                case RECORD: return compileRecord(schema);
+                case ARRAY: return new ArrayHandler(schema, compile(schema.getElementType()));
+                default: return new UnsupportedHandler("Unsupported schema type " + schema.getType());
+            }
+        }
+
+        private Handler compileUnion(Schema union) {
+            List<Schema> types = union.getTypes();
+
+            boolean optionalNode = types.size() == 2 && types.get(0).getType() == Schema.Type.NULL;
+            if (!optionalNode) return new UnsupportedHandler("Unsupported union types " + types);
+
+            return new OptionalHandler(compile(types.get(1)));
+        }
+
+        private RecordHandler compileRecord(Schema schema) {
+            RecordHandler record = records.get(schema);
+            if (record != null) return record;
+
+            // register before compiling fields, records can be recursive
+            record = new RecordHandler(schema);
+            records.put(schema, record);
+
+            for (Schema.Field field : schema.getFields()) {
+                Schema fieldSchema = field.schema();
+                record.handlers[field.pos()] = compile(record.arrays[field.pos()] ? fieldSchema.getElementType() : fieldSchema);
+            }
+
+            return record;
+        }
+    }
+
+    private abstract static class Handler {
+        /** Datum of an element */
+        abstract Object convert(Element el, DatumBuilder.Config config);
+
+        /** Datum of an element, reader is at the element start and is left at its end */
+        abstract Object convert(XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException;
+
+        /** Datum of an array item. Record items are created with the element itself as their field. */
+        Object convertItem(Element el, DatumBuilder.Config config) { return convert(el, config); }
+
+        Object convertItem(XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException {
+            return convert(reader, config);
+        }
+
+        /** Datum of an attribute */
+        Object convertValue(String text, DatumBuilder.Config config) { throw new ConverterException("Unsupported attribute type"); }
+
+        /** Writes datum of an element, same as {@link #convert(XMLStreamReader, DatumBuilder.Config)} does */
+        abstract void encode(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException;
+
+        void encodeItem(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException {
+            encode(reader, out, config);
+        }
+
+        void encodeValue(String text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            throw new ConverterException("Unsupported attribute type");
+        }
+    }
+
+    private static class UnsupportedHandler extends Handler {
+        private final String message;
+        private UnsupportedHandler(String message) { this.message = message; }
+
+        Object convert(Element el, DatumBuilder.Config config) { throw new ConverterException(message); }
+        Object convert(XMLStreamReader reader, DatumBuilder.Config config) { throw new ConverterException(message); }
+        Object convertValue(String text, DatumBuilder.Config config) { throw new ConverterException(message); }
+
+        void encode(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) { throw new ConverterException(message); }
+        void encodeValue(String text, BinaryEncoder out, DatumBuilder.Config config) { throw new ConverterException(message); }
+    }
+
+    private static final Handler STRING = new Handler() {
+        Object convert(Element el, DatumBuilder.Config config) { return el.getTextContent(); }
+
+        Object convert(XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException {
+            return DatumBuilder.readText(reader);
+        }
+
+        Object convertValue(String text, DatumBuilder.Config config) { return text; }
+
+        void encode(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException {
+            out.writeString(DatumBuilder.readText(reader));
+        }
+
+        void encodeValue(String text, BinaryEncoder out, DatumBuilder.Config config) throws IOException { out.writeString(text); }
+    };
+
+    /** Handler of primitive values, parsed from the per-thread text buffer */
+    private abstract static class ValueHandler extends Handler {
+        abstract Object parse(TextBuffer text, DatumBuilder.Config config);
+        abstract void write(TextBuffer text, BinaryEncoder out, DatumBuilder.Config config) throws IOException;
+
+        Object convert(Element el, DatumBuilder.Config config) { return parse(TextBuffer.get().set(el.getTextContent()), config); }
+
+        Object convert(XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException {
+            return parse(DatumBuilder.readText(reader, TextBuffer.get()), config);
+        }
+
+        Object convertValue(String text, DatumBuilder.Config config) { return parse(TextBuffer.get().set(text), config); }
+
+        void encode(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException {
+            write(DatumBuilder.readText(reader, TextBuffer.get()), out, config);
+        }
+
+        void encodeValue(String text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            write(TextBuffer.get().set(text), out, config);
+        }
+    }
+
+    private static final Handler INT = new ValueHandler() {
+        Object parse(TextBuffer text, DatumBuilder.Config config) { return ValueParser.parseInt(text.array(), 0, text.length()); }
+
+        void write(TextBuffer text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            out.writeInt(ValueParser.parseInt(text.array(), 0, text.length()));
+        }
+    };
+
+    private static final Handler LONG = new ValueHandler() {
+        Object parse(TextBuffer text, DatumBuilder.Config config) { return ValueParser.parseLong(text.array(), 0, text.length()); }
+
+        void write(TextBuffer text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            out.writeLong(ValueParser.parseLong(text.array(), 0, text.length()));
+        }
+    };
+
+    /** Long of a schema without dateTime marks, see {@link #parseLegacyLong(TextBuffer, TimeZone)} */
+    private static final Handler LEGACY_LONG = new ValueHandler() {
+        Object parse(TextBuffer text, DatumBuilder.Config config) { return parseLegacyLong(text, config.timeZone()); }
+
+        void write(TextBuffer text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            out.writeLong(parseLegacyLong(text, config.timeZone()));
+        }
+    };
+
+    /**
+     * Value of a long of a schema without dateTime marks ({@link SchemaBuilder#marksDateTimes(Schema)}).
+     * Such schemas, generated by earlier versions, hold dateTime values in plain longs, which are told by their 'T'.
+     */
+    static long parseLegacyLong(TextBuffer text, TimeZone timeZone) {
+        char[] chars = text.array();
+        for (int i = 0; i < text.length(); i++)
+            if (chars[i] == 'T') return DateTimeParser.parse(text, timeZone);
+
+        return ValueParser.parseLong(chars, 0, text.length());
+    }
+
+    private static final Handler DATE_TIME = new ValueHandler() {
+        Object parse(TextBuffer text, DatumBuilder.Config config) { return DateTimeParser.parse(text, config.timeZone()); }
+
+        void write(TextBuffer text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            out.writeLong(DateTimeParser.parse(text, config.timeZone()));
+        }
+    };
+
+    private static final Handler FLOAT = new ValueHandler() {
+        Object parse(TextBuffer text, DatumBuilder.Config config) { return ValueParser.parseFloat(text.array(), 0, text.length()); }
+
+        void write(TextBuffer text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            out.writeFloat(ValueParser.parseFloat(text.array(), 0, text.length()));
+        }
+    };
+
+    private static final Handler DOUBLE = new ValueHandler() {
+        Object parse(TextBuffer text, DatumBuilder.Config config) { return ValueParser.parseDouble(text.array(), 0, text.length()); }
+
+        void write(TextBuffer text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            out.writeDouble(ValueParser.parseDouble(text.array(), 0, text.length()));
+        }
+    };
+
+    private static final Handler BOOLEAN = new ValueHandler() {
+        Object parse(TextBuffer text, DatumBuilder.Config config) { return ValueParser.parseBoolean(text.array(), 0, text.length()); }
+
+        void write(TextBuffer text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            out.writeBoolean(ValueParser.parseBoolean(text.array(), 0, text.length()));
+        }
+    };
+
+    /** Handler of [null, type] unions, present values have union index 1 */
+    private static class OptionalHandler extends Handler {
+        private final Handler handler;
+        private OptionalHandler(Handler handler) { this.handler = handler; }
+
+        Object convert(Element el, DatumBuilder.Config config) { return handler.convert(el, config); }
+
+        Object convert(XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException {
+            return handler.convert(reader, config);
+        }
+
+        Object convertValue(String text, DatumBuilder.Config config) { return handler.convertValue(text, config); }
+
+        void encode(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException {
+            out.writeIndex(1);
+            handler.encode(reader, out, config);
+        }
+
+        void encodeValue(String text, BinaryEncoder out, DatumBuilder.Config config) throws IOException {
+            out.writeIndex(1);
+            handler.encodeValue(text, out, config);
+        }
+    }
+
+    private static class ArrayHandler extends Handler {
+        private final Schema schema;
+        private final Handler itemHandler;
+
+        private ArrayHandler(Schema schema, Handler itemHandler) {
+            this.schema = schema;
+            this.itemHandler = itemHandler;
+        }
+
+        Object convert(Element el, DatumBuilder.Config config) {
+            NodeList childNodes = el.getChildNodes();
+            GenericData.Array<Object> array = new GenericData.Array<>(childNodes.getLength(), schema);
+
+            for (int i = 0; i < childNodes.getLength(); i++) {
+                Node child = childNodes.item(i);
+                if (child.getNodeType() == Node.ELEMENT_NODE)
+                    array.add(itemHandler.convertItem((Element) child, config));
+            }
+
+            return array;
+        }
+
+        Object convert(XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException {
+            GenericData.Array<Object> array = new GenericData.Array<>(0, schema);
+
+            while (DatumBuilder.nextChild(reader))
+                array.add(itemHandler.convertItem(reader, config));
+
+            return array;
+        }
+
+        void encode(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException {
+            EncodingBuffer items = EncodingBuffer.acquire();
+            try {
+                while (DatumBuilder.nextChild(reader)) {
+                    itemHandler.encodeItem(reader, items.encoder(), config);
+                    items.addItem();
+                }
+
+                items.writeItemsTo(out);
+            } finally {
+                EncodingBuffer.release(items);
+            }
+        }
+    }
+
+    private static class RecordHandler extends Handler {
+        private final Schema schema;
+        private final boolean rootRecord;
+        private final FieldIndex index;
+        private final RecordEncoder.Layout layout;
+        private final int wildcardPos;
+
+        // by field position: handler of the field value or array item, whether the field is an array
+        private final Handler[] handlers;
+        private final boolean[] arrays;
+
+        private RecordHandler(Schema schema) {
+            this.schema = schema;
+            rootRecord = Source.DOCUMENT.equals(schema.getProp(Source.SOURCE));
+            index = new FieldIndex(schema);
+
+            layout = new RecordEncoder.Layout(schema);
+            wildcardPos = layout.wildcardPos;
+            arrays = layout.arrays;
+            handlers = new Handler[arrays.length];
+        }
+
+        private GenericData.Record newRecord() {
+            GenericData.Record record = new GenericData.Record(schema);
+
+            // initialize arrays and wildcard maps
+            for (int i = 0; i < arrays.length; i++)
+                if (arrays[i]) record.put(i, new ArrayList<>());
+
+            if (wildcardPos != -1)
+                record.put(wildcardPos, new HashMap<String, Object>());
+
+            return record;
+        }
+
+        Object convert(Element el, DatumBuilder.Config config) { return createRecord(el, false, config); }
+        Object convertItem(Element el, DatumBuilder.Config config) { return createRecord(el, true, config); }
+
+        private GenericData.Record createRecord(Element el, boolean setRecordFieldFromNode, DatumBuilder.Config config) {
+            GenericData.Record record = newRecord();
+
+            if (setRecordFieldFromNode) {
+                setFieldFromNode(record, el, config);
+                return record;
+            }
+
+            NodeList nodes = rootRecord ? el.getOwnerDocument().getChildNodes() : el.getChildNodes();
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Node node = nodes.item(i);
+                if (node.getNodeType() == Node.ELEMENT_NODE)
+                    setFieldFromNode(record, (Element) node, config);
+            }
+
+            if (rootRecord) return record;
+
+            NamedNodeMap attrMap = el.getAttributes();
+            for (int i = 0; i < attrMap.getLength(); i++) {
+                Attr attr = (Attr) attrMap.item(i);
+                if (isIgnored(attr.getNamespaceURI(), attr.getName())) continue;
+
+                setFieldFromAttribute(record, attr.getName(), attr.getValue(), config);
+            }
+
+            return record;
+        }
+
+        private void setFieldFromNode(GenericData.Record record, Element el, DatumBuilder.Config config) {
+            String fieldName = el.getLocalName();
+
+            Schema.Field field = index.getField(fieldName, false, config.isCaseSensitiveNames());
+            boolean nested = false;
+            if (field == null) {
+                field = index.getNestedField(fieldName, config.isCaseSensitiveNames());
+                nested = true;
+            }
+
+            if (field == null) {
+                wildcardMap(record, fieldName).put(fieldName, ContentWriter.get().write(el, config.isWildcardUtf8()));
+                return;
+            }
+
+            int pos = field.pos();
+            Handler handler = handlers[pos];
+            if (!arrays[pos])
+                record.put(pos, handler.convert(el, config));
+            else
+                array(record, pos).add(nested ? handler.convertItem(el, config) : handler.convert(el, config));
+        }
+
+        Object convert(XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException {
+            return createRecord(reader, false, config);
+        }
+
+        Object convertItem(XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException {
+            return createRecord(reader, true, config);
+        }
+
+        private GenericData.Record createRecord(XMLStreamReader reader, boolean setRecordFieldFromNode, DatumBuilder.Config config) throws XMLStreamException {
+            GenericData.Record record = newRecord();
+
+            // element itself is the field of a root or nested record
+            if (setRecordFieldFromNode || rootRecord) {
+                setFieldFromNode(record, reader, config);
+                return record;
+            }
+
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                String name = attributeName(reader, i);
+                if (name == null) continue;
+
+                setFieldFromAttribute(record, name, reader.getAttributeValue(i), config);
+            }
+
+            while (DatumBuilder.nextChild(reader))
+                setFieldFromNode(record, reader, config);
+
+            return record;
+        }
+
+        private void setFieldFromNode(GenericData.Record record, XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException {
+            String fieldName = reader.getLocalName();
+
+            Schema.Field field = index.getField(fieldName, false, config.isCaseSensitiveNames());
+            boolean nested = false;
+            if (field == null) {
+                field = index.getNestedField(fieldName, config.isCaseSensitiveNames());
+                nested = true;
+            }
+
+            if (field == null) {
+                wildcardMap(record, fieldName).put(fieldName, ContentWriter.get().write(reader, config.isWildcardUtf8()));
+                return;
+            }
+
+            int pos = field.pos();
+            Handler handler = handlers[pos];
+            if (!arrays[pos])
+                record.put(pos, handler.convert(reader, config));
+            else
+                array(record, pos).add(nested ? handler.convertItem(reader, config) : handler.convert(reader, config));
+        }
+
+        private void setFieldFromAttribute(GenericData.Record record, String name, String value, DatumBuilder.Config config) {
+            Schema.Field field = index.getField(name, true, config.isCaseSensitiveNames());
+            if (field == null)
+                throw new ConverterException("Unsupported attribute " + name);
+
+            record.put(field.pos(), handlers[field.pos()].convertValue(value, config));
+        }
+
+        private Map<String, Object> wildcardMap(GenericData.Record record, String fieldName) {
+            if (wildcardPos == -1)
+                throw new ConverterException("Could not find field " + fieldName + " in Avro Schema " + schema.getName() +  " , neither as specific field nor 'any' element");
+
+            @SuppressWarnings("unchecked") Map<String, Object> map = (Map<String, Object>) record.get(wildcardPos);
+            return map;
+        }
+
+        private static List<Object> array(GenericData.Record record, int pos) {
+            @SuppressWarnings("unchecked") List<Object> values = (List<Object>) record.get(pos);
+            return values;
+        }
+
+        void encode(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException {
+            encodeRecord(reader, false, out, config);
+        }
+
+        void encodeItem(XMLStreamReader reader, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException {
+            encodeRecord(reader, true, out, config);
+        }
+
+        private void encodeRecord(XMLStreamReader reader, boolean setRecordFieldFromNode, BinaryEncoder out, DatumBuilder.Config config) throws XMLStreamException, IOException {
+            RecordEncoder encoder = new RecordEncoder(layout, out);
+            try {
+                if (setRecordFieldFromNode || rootRecord) {
+                    if (rootRecord) encoder.singleField();
+                    encodeFieldFromNode(encoder, reader, config);
+                }
+                else {
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        String name = attributeName(reader, i);
+                        if (name == null) continue;
+
+                        Schema.Field field = index.getField(name, true, config.isCaseSensitiveNames());
+                        if (field == null)
+                            throw new ConverterException("Unsupported attribute " + name);
+
+                        handlers[field.pos()].encodeValue(reader.getAttributeValue(i), encoder.valueOut(field.pos()), config);
+                        encoder.valueWritten(field.pos());
+                    }
+                    encoder.attributesWritten();
+
+                    while (DatumBuilder.nextChild(reader))
+                        encodeFieldFromNode(encoder, reader, config);
+                }
+
+                encoder.finish();
+            } finally {
+                encoder.release();
+            }
+        }
+
+        private void encodeFieldFromNode(RecordEncoder encoder, XMLStreamReader reader, DatumBuilder.Config config) throws XMLStreamException, IOException {
+            String fieldName = reader.getLocalName();
+
+            Schema.Field field = index.getField(fieldName, false, config.isCaseSensitiveNames());
+            boolean nested = false;
+            if (field == null) {
+                field = index.getNestedField(fieldName, config.isCaseSensitiveNames());
+                nested = true;
+            }
+
+            if (field == null) {
+                if (wildcardPos == -1)
+                    throw new ConverterException("Could not find field " + fieldName + " in Avro Schema " + schema.getName() +  " , neither as specific field nor 'any' element");
+
+                encoder.wildcard().put(fieldName, ContentWriter.get().write(reader, config.isWildcardUtf8()));
+                return;
+            }
+
+            int pos = field.pos();
+            Handler handler = handlers[pos];
+            if (!arrays[pos]) {
+                handler.encode(reader, encoder.valueOut(pos), config);
+                encoder.valueWritten(pos);
+            } else {
+                EncodingBuffer items = encoder.items(pos);
+                if (nested) handler.encodeItem(reader, items.encoder(), config);
+                else handler.encode(reader, items.encoder(), config);
+                items.addItem();
+            }
+        }
+    }
+}
@@ -17,9 +17,6 @@
 package ly.stealth.xmlavro;
 
 import org.apache.avro.Schema;
-import org.apache.avro.io.DatumWriter;
-import org.apache.avro.io.EncoderFactory;
-import org.apache.avro.specific.SpecificDatumWriter;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -31,13 +28,23 @@ public class Converter {
     public static Schema createSchema(Reader reader) { return new SchemaBuilder().createSchema(reader); }
     public static Schema createSchema(InputStream stream) { return new SchemaBuilder().createSchema(stream); }
 
-    public static <T> T createDatum(Schema schema, File file) { return new DatumBuilder(schema).createDatum(file); }
-    public static <T> T createDatum(Schema schema, String xml) { return new DatumBuilder(schema).createDatum(xml); }
-    public static <T> T createDatum(Schema schema, Reader reader) { return new DatumBuilder(schema).createDatum(reader); }
-    public static <T> T createDatum(Schema schema, InputStream stream) { return new DatumBuilder(schema).createDatum(stream); }
+    // plans of recently used schemas, shared by the helpers below
+    private static final ConverterCache CACHE = new ConverterCache(16, 16);
+
+    public static <T> T createDatum(Schema schema, File file) { return CACHE.getBuilder(schema).createDatum(file); }
+    public static <T> T createDatum(Schema schema, String xml) { return CACHE.getBuilder(schema).createDatum(xml); }
+    public static <T> T createDatum(Schema schema, Reader reader) { return CACHE.getBuilder(schema).createDatum(reader); }
+    public static <T> T createDatum(Schema schema, InputStream stream) { return CACHE.getBuilder(schema).createDatum(stream); }
+
+    public static <T> DatumIterator<T> createDatums(Schema schema, File file, String split) { return CACHE.getBuilder(schema).createDatums(file, split); }
+    public static <T> DatumIterator<T> createDatums(Schema schema, Reader reader, String split) { return CACHE.getBuilder(schema).createDatums(reader, split); }
+    public static <T> DatumIterator<T> createDatums(Schema schema, InputStream stream, String split) { return CACHE.getBuilder(schema).createDatums(stream, split); }
 
     private static class Options {
-        static final String USAGE = "{-d|--debug} {-b|--baseDir <baseDir>} <xsdFile> <xmlFile> {<avscFile>} {<avroFile>}";
+        static final String USAGE = "{-d|--debug} {-b|--baseDir <baseDir>} {--schemaCache <dir>} {-s|--split <element>} {<output>} <xsdFile> <xmlFile> {<avscFile>} {<avroFile>}\n" +
+                "       --batch {-t|--threads <count>} {--ordered} {--perFile} {<output>} {-d|--debug} {-b|--baseDir <baseDir>} {--schemaCache <dir>} <xsdFile> <xmlDir|xmlGlob|@xmlList> <avscFile> <avroFile|avroDir>\n" +
+                "       --pipe {-t|--threads <count>} {--delimited} {-b|--baseDir <baseDir>} {--schemaCache <dir>} <xsdFile> {<avscFile>}\n" +
+                "output: {-c|--codec null|deflate[:level]|snappy} {--syncInterval <bytes>} {--raw}";
 
         File xsdFile;
         File xmlFile;
@@ -47,6 +54,19 @@ public class Converter {
 
         boolean debug;
         File baseDir;
+        File schemaCache;
+        String split;
+
+        boolean batch;
+        String xmlFiles;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean ordered;
+        boolean perFile;
+
+        boolean pipe;
+        boolean delimited;
+
+        OutputFormat format = new OutputFormat();
 
         Options(String... args) {
             List<String> files = new ArrayList<>();
@@ -66,6 +86,55 @@ public class Converter {
                             i++;
                             baseDir = new File(args[i]);
                             break;
+                        case "--schemaCache":
+                            if (i == args.length - 1) throw new IllegalArgumentException("Schema cache dir required");
+                            i++;
+                            schemaCache = new File(args[i]);
+                            break;
+                        case "-s":
+                        case "--split":
+                            if (i == args.length - 1) throw new IllegalArgumentException("Split element required");
+                            i++;
+                            split = args[i];
+                            break;
+                        case "--batch":
+                            batch = true;
+                            break;
+                        case "-t":
+                        case "--threads":
+                            if (i == args.length - 1) throw new IllegalArgumentException("Thread count required");
+                            i++;
+                            try { threads = Integer.parseInt(args[i]); }
+                            catch (NumberFormatException e) { throw new IllegalArgumentException("Invalid thread count " + args[i]); }
+                            if (threads < 1) throw new IllegalArgumentException("Invalid thread count " + args[i]);
+                            break;
+                        case "--ordered":
+                            ordered = true;
+                            break;
+                        case "--perFile":
+                            perFile = true;
+                            break;
+                        case "--pipe":
+                            pipe = true;
+                            break;
+                        case "--delimited":
+                            delimited = true;
+                            break;
+                        case "-c":
+                        case "--codec":
+                            if (i == args.length - 1) throw new IllegalArgumentException("Codec required");
+                            i++;
+                            format.setCodec(args[i]);
+                            break;
+                        case "--syncInterval":
+                            if (i == args.length - 1) throw new IllegalArgumentException("Sync interval required");
+                            i++;
+                            try { format.setSyncInterval(Integer.parseInt(args[i])); }
+                            catch (NumberFormatException e) { throw new IllegalArgumentException("Invalid sync interval " + args[i]); }
+                            break;
+                        case "--raw":
+                            format.setRaw(true);
+                            break;
                         default:
                             throw new IllegalArgumentException("Unsupported option " + arg);
                     }
@@ -73,11 +142,32 @@ public class Converter {
                     files.add(arg);
             }
 
+            if (batch && pipe)
+                throw new IllegalArgumentException("Batch and pipe modes are exclusive");
+            if (pipe) {
+                if (files.size() < 1 || files.size() > 2)
+                    throw new IllegalArgumentException("Incorrect number of in/out files. Expected [1..2] in pipe mode");
+                if (split != null)
+                    throw new IllegalArgumentException("Split is not supported in pipe mode");
+                if (debug)
+                    throw new IllegalArgumentException("Debug output is not supported in pipe mode");
+
+                xsdFile = replaceBaseDir(files.get(0), baseDir);
+                avscFile = files.size() > 1 ? replaceBaseDir(files.get(1), baseDir) : null;
+                return;
+            }
+
             if (files.size() < 2 || files.size() > 4)
                 throw new IllegalArgumentException("Incorrect number of in/out files. Expected [2..4]");
 
+            if (batch && files.size() < 4)
+                throw new IllegalArgumentException("Avsc and avro outputs required in batch mode");
+            if (batch && split != null)
+                throw new IllegalArgumentException("Split is not supported in batch mode");
+
             xsdFile = replaceBaseDir(files.get(0), baseDir);
             xmlFile = replaceBaseDir(files.get(1), baseDir);
+            xmlFiles = files.get(1).startsWith("@") ? "@" + replaceBaseDir(files.get(1).substring(1), baseDir) : xmlFile.getPath();
 
             avscFile = files.size() > 2 ? replaceBaseDir(files.get(2), baseDir) : replaceExtension(xsdFile, "avsc");
             avroFile = files.size() > 3 ? replaceBaseDir(files.get(3), baseDir) : replaceExtension(xmlFile, "avro");
@@ -121,23 +211,88 @@ public class Converter {
             return;
         }
 
-        System.out.println("Converting: \n" + opts.xsdFile + " -> " + opts.avscFile + "\n" + opts.xmlFile + " -> " + opts.avroFile);
+        // stdout carries datums in pipe mode
+        if (!opts.pipe)
+            System.out.println("Converting: \n" + opts.xsdFile + " -> " + opts.avscFile + "\n" + opts.xmlFile + " -> " + opts.avroFile);
 
         SchemaBuilder schemaBuilder = new SchemaBuilder();
         schemaBuilder.setDebug(opts.debug);
         if (opts.baseDir != null) schemaBuilder.setResolver(new BaseDirResolver(opts.baseDir));
-        Schema schema = schemaBuilder.createSchema(opts.xsdFile);
+        Schema schema = opts.schemaCache != null ? new SchemaCache(opts.schemaCache).createSchema(schemaBuilder, opts.xsdFile) : schemaBuilder.createSchema(opts.xsdFile);
+
+        DatumBuilder datumBuilder = new DatumBuilder(schema);
+        if (opts.pipe) {
+            convertPipe(datumBuilder, opts);
+            return;
+        }
+
+        if (opts.batch) {
+            convertBatch(datumBuilder, opts);
+            return;
+        }
+
+        if (opts.split != null) {
+            convertSplit(datumBuilder, opts);
+            return;
+        }
 
         try (Writer writer = new FileWriter(opts.avscFile)) {
             writer.write(schema.toString(true));
         }
 
-        DatumBuilder datumBuilder = new DatumBuilder(schema);
-        Object datum = datumBuilder.createDatum(opts.xmlFile);
+        try (OutputFormat.Output output = opts.format.open(schema, opts.avroFile)) {
+            datumBuilder.encodeDatum(opts.xmlFile, output.startDatum());
+            output.endDatum();
+        }
+    }
 
-        try (OutputStream stream = new FileOutputStream(opts.avroFile)) {
-            DatumWriter<Object> datumWriter = new SpecificDatumWriter<>(schema);
-            datumWriter.write(datum, EncoderFactory.get().directBinaryEncoder(stream, null));
+    private static void convertBatch(DatumBuilder datumBuilder, Options opts) throws IOException {
+        List<File> xmlFiles = BatchConverter.listFiles(opts.xmlFiles);
+        if (xmlFiles.isEmpty()) throw new ConverterException("No xml files in " + opts.xmlFiles);
+
+        try (Writer writer = new FileWriter(opts.avscFile)) {
+            writer.write(datumBuilder.getPlan().getSchema().toString(true));
+        }
+
+        BatchConverter converter = new BatchConverter(datumBuilder);
+        converter.setThreads(opts.threads);
+        converter.setOrdered(opts.ordered);
+        converter.setFormat(opts.format);
+
+        long time = System.currentTimeMillis();
+        if (opts.perFile) converter.convertEach(xmlFiles, opts.avroFile);
+        else converter.convert(xmlFiles, opts.avroFile);
+
+        System.out.println("Converted " + xmlFiles.size() + " files in " + (System.currentTimeMillis() - time) + " ms");
+    }
+
+    private static void convertPipe(DatumBuilder datumBuilder, Options opts) throws IOException {
+        if (opts.avscFile != null)
+            try (Writer writer = new FileWriter(opts.avscFile)) {
+                writer.write(datumBuilder.getPlan().getSchema().toString(true));
+            }
+
+        PipeConverter converter = new PipeConverter(datumBuilder);
+        converter.setThreads(opts.threads);
+        converter.setDelimited(opts.delimited);
+        converter.run(System.in, System.out);
+    }
+
+    /** Writes the schema of the split element and a datum of each split element */
+    private static void convertSplit(DatumBuilder datumBuilder, Options opts) throws IOException {
+        try (DatumIterator<Object> datums = datumBuilder.createDatums(opts.xmlFile, opts.split)) {
+            Schema schema = datums.getSchema();
+
+            try (Writer writer = new FileWriter(opts.avscFile)) {
+                writer.write(schema.toString(true));
+            }
+
+            try (OutputFormat.Output output = opts.format.open(schema, opts.avroFile)) {
+                while (datums.hasNext()) {
+                    datums.encodeNext(output.startDatum());
+                    output.endDatum();
+                }
+            }
         }
     }
 }
\ No newline at end of file
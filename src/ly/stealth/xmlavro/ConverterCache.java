@@ -0,0 +1,151 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-memory cache of schemas built from xsd and of conversion plans compiled from schemas,
+ * for services converting documents of the same schemas over and over.
+ * Least recently used entries are evicted. Cache is thread-safe; values are built outside of locks,
+ * so concurrent misses of one key may build it more than once.
+ * <p>
+ * Cached schemas are shared, callers must not modify them.
+ */
+public class ConverterCache {
+    private final Cache<String, Schema> schemas;
+    private final Cache<Schema, ConversionPlan> plans;
+
+    public ConverterCache(int maxSchemas, int maxPlans) {
+        schemas = new Cache<>(maxSchemas);
+        plans = new Cache<>(maxPlans);
+    }
+
+    /** Schema of the xsd, identified by its content */
+    public Schema getSchema(String xsd) {
+        String key = "content:" + SchemaCache.hash(xsd.getBytes(Charset.forName("utf-8")));
+
+        Schema schema = schemas.get(key);
+        if (schema != null) return schema;
+
+        return schemas.put(key, new SchemaBuilder().createSchema(xsd));
+    }
+
+    public Schema getSchema(File xsdFile) { return getSchema(xsdFile, new SchemaBuilder()); }
+
+    /**
+     * Schema of the xsd file, identified by its path, modification time and size.
+     * Builder is used on a miss; files it resolves are not part of the identity.
+     */
+    public Schema getSchema(File xsdFile, SchemaBuilder builder) {
+        String key;
+        try {
+            key = "file:" + xsdFile.getCanonicalPath() + ":" + xsdFile.lastModified() + ":" + xsdFile.length();
+        } catch (IOException e) {
+            throw new ConverterException(e);
+        }
+
+        Schema schema = schemas.get(key);
+        if (schema != null) return schema;
+
+        return schemas.put(key, builder.createSchema(xsdFile));
+    }
+
+    public ConversionPlan getPlan(Schema schema) {
+        ConversionPlan plan = plans.get(schema);
+        if (plan != null) return plan;
+
+        return plans.put(schema, ConversionPlan.compile(schema));
+    }
+
+    /** Builder of the cached plan; builders are cheap, config is not cached */
+    public DatumBuilder getBuilder(Schema schema) { return new DatumBuilder(getPlan(schema)); }
+    public DatumBuilder getBuilder(Schema schema, DatumBuilder.Config config) { return new DatumBuilder(getPlan(schema), config); }
+
+    public Stats getSchemaStats() { return schemas.stats(); }
+    public Stats getPlanStats() { return plans.stats(); }
+
+    public void clear() {
+        schemas.clear();
+        plans.clear();
+    }
+
+    /** Snapshot of cache counters */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final int size;
+
+        private Stats(long hits, long misses, long evictions, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+        }
+
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        public long getEvictions() { return evictions; }
+        public int getSize() { return size; }
+
+        public String toString() { return "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size; }
+    }
+
+    private static class Cache<K, V> {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        private final Map<K, V> map;
+
+        private Cache(final int maxSize) {
+            if (maxSize < 1) throw new IllegalArgumentException("Invalid cache size " + maxSize);
+
+            map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                    if (size() <= maxSize) return false;
+
+                    evictions.incrementAndGet();
+                    return true;
+                }
+            };
+        }
+
+        V get(K key) {
+            V value;
+            synchronized (map) { value = map.get(key); }
+
+            if (value != null) hits.incrementAndGet();
+            else misses.incrementAndGet();
+
+            return value;
+        }
+
+        /** Value cached for the key: the value, or one cached meanwhile */
+        V put(K key, V value) {
+            synchronized (map) {
+                V cached = map.get(key);
+                if (cached != null) return cached;
+
+                map.put(key, value);
+                return value;
+            }
+        }
+
+        void clear() {
+            synchronized (map) { map.clear(); }
+        }
+
+        Stats stats() {
+            int size;
+            synchronized (map) { size = map.size(); }
+            return new Stats(hits.get(), misses.get(), evictions.get(), size);
+        }
+    }
+}
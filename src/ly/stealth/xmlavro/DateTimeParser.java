@@ -0,0 +1,152 @@
+package ly.stealth.xmlavro;
+
+import java.util.TimeZone;
+
+/**
+ * Parses xs:dateTime values into epoch millis, without calendar objects.
+ * Format: [-]yyyy-MM-ddThh:mm:ss[.s+][Z|(+|-)hh:mm]. Years are proleptic Gregorian,
+ * fractional seconds are truncated to millis; values without a zone are in the specified default zone.
+ */
+class DateTimeParser {
+    private static final long MILLIS_PER_DAY = 24 * 3600 * 1000L;
+
+    private CharSequence text;
+    private int p;
+    private int end;
+
+    private DateTimeParser(CharSequence text, int start, int end) {
+        this.text = text;
+        this.p = start;
+        this.end = end;
+    }
+
+    static long parse(CharSequence text, TimeZone defaultZone) {
+        return parse(text, 0, text.length(), defaultZone);
+    }
+
+    static long parse(CharSequence text, int start, int end, TimeZone defaultZone) {
+        // collapse whitespace
+        while (start < end && isWhitespace(text.charAt(start))) start++;
+        while (end > start && isWhitespace(text.charAt(end - 1))) end--;
+
+        return new DateTimeParser(text, start, end).parse(defaultZone);
+    }
+
+    private long parse(TimeZone defaultZone) {
+        boolean negativeYear = p < end && text.charAt(p) == '-';
+        if (negativeYear) p++;
+
+        int yearStart = p;
+        long year = digits(Integer.MAX_VALUE);
+        if (p - yearStart < 4 || p - yearStart > 4 && text.charAt(yearStart) == '0') throw invalid();
+        if (negativeYear) year = -year;
+
+        expect('-');
+        int month = (int) digits(2);
+        expect('-');
+        int day = (int) digits(2);
+        expect('T');
+        int hour = (int) digits(2);
+        expect(':');
+        int minute = (int) digits(2);
+        expect(':');
+        int second = (int) digits(2);
+
+        int millis = 0;
+        if (p < end && text.charAt(p) == '.') {
+            p++;
+            int fractionStart = p;
+            while (p < end && isDigit(text.charAt(p))) {
+                if (p - fractionStart < 3) millis = millis * 10 + text.charAt(p) - '0';
+                p++;
+            }
+
+            if (p == fractionStart) throw invalid();
+            for (int i = p - fractionStart; i < 3; i++) millis *= 10;
+        }
+
+        if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) throw invalid();
+        if (minute > 59 || second > 59) throw invalid();
+        if (hour > 24 || hour == 24 && (minute != 0 || second != 0 || millis != 0)) throw invalid();
+
+        long local = epochDay(year, month, day) * MILLIS_PER_DAY + ((hour * 60L + minute) * 60 + second) * 1000 + millis;
+
+        if (p == end) return local - zoneOffset(defaultZone, local);
+
+        int offset;
+        char c = text.charAt(p++);
+        if (c == 'Z') offset = 0;
+        else if (c == '+' || c == '-') {
+            int offsetHours = (int) digits(2);
+            expect(':');
+            int offsetMinutes = (int) digits(2);
+
+            if (offsetMinutes > 59 || offsetHours > 14 || offsetHours == 14 && offsetMinutes != 0) throw invalid();
+            offset = (offsetHours * 60 + offsetMinutes) * 60 * 1000;
+            if (c == '-') offset = -offset;
+        } else
+            throw invalid();
+
+        if (p != end) throw invalid();
+        return local - offset;
+    }
+
+    /** Offset of the zone at local time */
+    private static int zoneOffset(TimeZone zone, long local) {
+        int offset = zone.getOffset(local - zone.getRawOffset());
+
+        // offset could change between standard and local time
+        return zone.getOffset(local - offset);
+    }
+
+    private long digits(int maxCount) {
+        int start = p;
+        long value = 0;
+
+        while (p < end && p - start < maxCount && isDigit(text.charAt(p))) {
+            value = value * 10 + text.charAt(p) - '0';
+            if (value > Integer.MAX_VALUE) throw invalid();
+            p++;
+        }
+
+        if (p == start || maxCount != Integer.MAX_VALUE && p - start != maxCount) throw invalid();
+        return value;
+    }
+
+    private void expect(char c) {
+        if (p >= end || text.charAt(p) != c) throw invalid();
+        p++;
+    }
+
+    private ConverterException invalid() {
+        return new ConverterException("Invalid dateTime '" + text + "'");
+    }
+
+    private static boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+
+    static boolean isWhitespace(char c) { return c == ' ' || c == '\t' || c == '\n' || c == '\r'; }
+
+    static boolean isLeapYear(long year) {
+        return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    private static int daysInMonth(long year, int month) {
+        switch (month) {
+            case 2: return isLeapYear(year) ? 29 : 28;
+            case 4: case 6: case 9: case 11: return 30;
+            default: return 31;
+        }
+    }
+
+    /** Days since 1970-01-01 of the proleptic Gregorian date */
+    static long epochDay(long year, int month, int day) {
+        if (month <= 2) year--;
+
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
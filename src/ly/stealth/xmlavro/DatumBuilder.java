@@ -1,60 +1,109 @@
 package ly.stealth.xmlavro;
 
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericData;
+import org.apache.avro.io.BinaryEncoder;
 import org.w3c.dom.*;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
-import javax.xml.bind.DatatypeConverter;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
 import java.util.*;
 
+/**
+ * Converts xml documents into datums of the schema.
+ * Builder is thread-safe: its settings are held in an immutable {@link Config}
+ * and parsers are reused per thread.
+ */
 public class DatumBuilder {
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            try {
+                DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+                builderFactory.setNamespaceAware(true);
+                return builderFactory.newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new ConverterException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+
+            // keep CDATA sections of wildcard content, as DOM does
+            try { factory.setProperty("http://java.sun.com/xml/stream/properties/report-cdata-event", true); }
+            catch (IllegalArgumentException ignore) {}
+
+            return factory;
+        }
+    };
+
     public static Element parse(InputSource source) {
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
         try {
-            DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
-            builderFactory.setNamespaceAware(true);
-
-            DocumentBuilder builder = builderFactory.newDocumentBuilder();
             Document doc = builder.parse(source);
             return doc.getDocumentElement();
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+        } catch (SAXException | IOException e) {
+            throw new ConverterException(e);
+        } finally {
+            builder.reset();
+        }
+    }
+
+    public static XMLStreamReader createStreamReader(Reader reader) {
+        try {
+            return XML_INPUT_FACTORY.get().createXMLStreamReader(reader);
+        } catch (XMLStreamException e) {
             throw new ConverterException(e);
         }
     }
 
-    private static final List<Schema.Type> PRIMITIVES;
-    static {
-        PRIMITIVES = Collections.unmodifiableList(Arrays.asList(
-                Schema.Type.STRING, Schema.Type.INT, Schema.Type.LONG, Schema.Type.FLOAT,
-                Schema.Type.DOUBLE, Schema.Type.BOOLEAN, Schema.Type.NULL
-        ));
+    public static XMLStreamReader createStreamReader(InputStream stream) {
+        try {
+            return XML_INPUT_FACTORY.get().createXMLStreamReader(stream);
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        }
     }
 
-    private static TimeZone defaultTimeZone = TimeZone.getTimeZone("UTC-0");
+    private final ConversionPlan plan;
+    private volatile Config config;
 
-    public static void setDefaultTimeZone(TimeZone timeZone) { defaultTimeZone = timeZone; }
-    public static TimeZone getDefaultTimeZone() { return defaultTimeZone; }
+    public DatumBuilder(Schema schema) {
+        this(schema, new Config());
+    }
 
-    private Schema schema;
-    private boolean caseSensitiveNames = true;
+    public DatumBuilder(Schema schema, Config config) {
+        this(ConversionPlan.compile(schema), config);
+    }
 
-    public DatumBuilder(Schema schema) {
-        this.schema = schema;
+    public DatumBuilder(ConversionPlan plan) {
+        this(plan, new Config());
     }
 
-    public boolean isCaseSensitiveNames() { return caseSensitiveNames; }
-    public void setCaseSensitiveNames(boolean caseSensitiveNames) { this.caseSensitiveNames = caseSensitiveNames; }
+    public DatumBuilder(ConversionPlan plan, Config config) {
+        this.plan = plan;
+        this.config = config;
+    }
+
+    public ConversionPlan getPlan() { return plan; }
+
+    public Config getConfig() { return config; }
+    public void setConfig(Config config) { this.config = config; }
+
+    public boolean isCaseSensitiveNames() { return config.isCaseSensitiveNames(); }
+    public void setCaseSensitiveNames(boolean caseSensitiveNames) { config = config.withCaseSensitiveNames(caseSensitiveNames); }
 
     @SuppressWarnings("unchecked")
     public <T> T createDatum(String xml) {
@@ -72,12 +121,22 @@ public class DatumBuilder {
 
     @SuppressWarnings("unchecked")
     public <T> T createDatum(Reader reader) {
-        return createDatum(new InputSource(reader));
+        XMLStreamReader streamReader = createStreamReader(reader);
+        try {
+            return createDatum(streamReader);
+        } finally {
+            close(streamReader);
+        }
     }
 
     @SuppressWarnings("unchecked")
     public <T> T createDatum(InputStream stream) {
-        return createDatum(new InputSource(stream));
+        XMLStreamReader streamReader = createStreamReader(stream);
+        try {
+            return createDatum(streamReader);
+        } finally {
+            close(streamReader);
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -87,223 +146,217 @@ public class DatumBuilder {
 
     @SuppressWarnings("unchecked")
     public <T> T createDatum(Element el) {
-        return (T) createNodeDatum(schema, el, false);
+        return (T) plan.convert(el, config);
     }
 
-    private Object createNodeDatum(Schema schema, Node source, boolean setRecordFromNode) {
-        if (!Arrays.asList(Node.ELEMENT_NODE, Node.ATTRIBUTE_NODE).contains(source.getNodeType()))
-            throw new IllegalArgumentException("Unsupported node type " + source.getNodeType());
-
-        if (PRIMITIVES.contains(schema.getType()))
-            return createValue(schema.getType(), source.getTextContent());
-
-        if (schema.getType() == Schema.Type.UNION)
-            return createUnionDatum(schema, source);
-
-        if (schema.getType() == Schema.Type.RECORD)
-            return createRecord(schema, (Element) source, setRecordFromNode);
-
-        if (schema.getType() == Schema.Type.ARRAY)
-            return createArray(schema, (Element) source);
+    /**
+     * Converts the next element of the reader without building a DOM.
+     * Reader should be positioned at the document start or at the start of the element to convert;
+     * it is left at the end of that element.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T createDatum(XMLStreamReader reader) {
+        try {
+            while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+                if (!reader.hasNext()) throw new ConverterException("No root element");
+                reader.next();
+            }
 
-        throw new ConverterException("Unsupported schema type " + schema.getType());
+            return (T) plan.convert(reader, config);
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        }
     }
 
-    private Object createArray(Schema schema, Element el) {
-        NodeList childNodes = el.getChildNodes();
-        Schema elementType = schema.getElementType();
-        int numElements = childNodes.getLength();
-        GenericData.Array array = new GenericData.Array(numElements, schema);
-
-        for (int i = 0; i < numElements; i++) {
-            Element child = (Element) childNodes.item(i);
-            //noinspection unchecked
-            array.add(createNodeDatum(elementType, child, true));
+    /**
+     * Writes the datum of the document directly to the encoder, without creating datum objects.
+     * Written bytes are the same as of the datum, written by a datum writer; unlike datums,
+     * an element can't repeat a field, which is already written.
+     */
+    public void encodeDatum(File file, BinaryEncoder out) {
+        try (InputStream stream = new FileInputStream(file)) {
+            encodeDatum(stream, out);
+        } catch (IOException e) {
+            throw new ConverterException(e);
         }
-        return array;
     }
 
-  private Object createUnionDatum(Schema union, Node source) {
-        List<Schema> types = union.getTypes();
-
-        boolean optionalNode = types.size() == 2 && types.get(0).getType() == Schema.Type.NULL;
-        if (!optionalNode) throw new ConverterException("Unsupported union types " + types);
-
-        return createNodeDatum(types.get(1), source, false);
+    public void encodeDatum(Reader reader, BinaryEncoder out) {
+        XMLStreamReader streamReader = createStreamReader(reader);
+        try {
+            encodeDatum(streamReader, out);
+        } finally {
+            close(streamReader);
+        }
     }
 
-    private Object createValue(Schema.Type type, String text) {
-        if (type == Schema.Type.BOOLEAN)
-            return "true".equals(text) || "1".equals(text);
+    public void encodeDatum(InputStream stream, BinaryEncoder out) {
+        XMLStreamReader streamReader = createStreamReader(stream);
+        try {
+            encodeDatum(streamReader, out);
+        } finally {
+            close(streamReader);
+        }
+    }
 
-        if (type == Schema.Type.INT)
-            return Integer.parseInt(text);
+    /** Reader should be positioned as for {@link #createDatum(XMLStreamReader)} */
+    public void encodeDatum(XMLStreamReader reader, BinaryEncoder out) {
+        try {
+            while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+                if (!reader.hasNext()) throw new ConverterException("No root element");
+                reader.next();
+            }
 
-        if (type == Schema.Type.LONG)
-            return text.contains("T") ? parseDateTime(text) : Long.parseLong(text);
+            plan.encode(reader, out, config);
+        } catch (XMLStreamException | IOException e) {
+            throw new ConverterException(e);
+        }
+    }
 
-        if (type == Schema.Type.FLOAT)
-            return Float.parseFloat(text);
+    /**
+     * Datums of the split elements of the document, converted against the schema of the split element.
+     * Split element is specified by its name or by its path from the root element, e.g. "orders/order".
+     */
+    public <T> DatumIterator<T> createDatums(File file, String split) {
+        SplitPath path = splitPath(split);
 
-        if (type == Schema.Type.DOUBLE)
-            return Double.parseDouble(text);
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            return new DatumIterator<>(createStreamReader(stream), stream, path, config);
+        } catch (IOException | RuntimeException e) {
+            if (stream != null)
+                try { stream.close(); } catch (IOException ignore) {}
 
-        if (type == Schema.Type.STRING)
-            return text;
+            throw e instanceof ConverterException ? (ConverterException) e : new ConverterException(e);
+        }
+    }
 
-        throw new ConverterException("Unsupported type " + type);
+    public <T> DatumIterator<T> createDatums(Reader reader, String split) {
+        SplitPath path = splitPath(split);
+        return new DatumIterator<>(createStreamReader(reader), null, path, config);
     }
 
-    private static long parseDateTime(String text) {
-        Calendar c = DatatypeConverter.parseDateTime(text);
-        c.setTimeZone(defaultTimeZone);
-        return c.getTimeInMillis();
+    public <T> DatumIterator<T> createDatums(InputStream stream, String split) {
+        SplitPath path = splitPath(split);
+        return new DatumIterator<>(createStreamReader(stream), null, path, config);
     }
 
-    private GenericData.Record createRecord(Schema schema, Element el, boolean setRecordFieldFromNode) {
-        GenericData.Record record = new GenericData.Record(schema);
+    /** Reader should be positioned at the document start */
+    public <T> DatumIterator<T> createDatums(XMLStreamReader reader, String split) {
+        return new DatumIterator<>(reader, null, splitPath(split), config);
+    }
 
-        // initialize arrays and wildcard maps
-        for (Schema.Field field : record.getSchema().getFields()) {
-            if (field.schema().getType() == Schema.Type.ARRAY)
-                record.put(field.name(), new ArrayList<>());
+    private SplitPath splitPath(String split) {
+        return new SplitPath(plan.getSchema(), split, config.isCaseSensitiveNames());
+    }
 
-            if (field.name().equals(Source.WILDCARD))
-                record.put(field.name(), new HashMap<String, Object>());
+    private static void close(XMLStreamReader reader) {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
         }
+    }
 
-
-        boolean rootRecord = Source.DOCUMENT.equals(schema.getProp(Source.SOURCE));
-
-        if (setRecordFieldFromNode) {
-          setFieldFromNode(schema, record, el);
-        } else {
-          NodeList nodes = rootRecord ? el.getOwnerDocument().getChildNodes() : el.getChildNodes();
-            for (int i = 0; i < nodes.getLength(); i++) {
-              setFieldFromNode(schema, record, nodes.item(i));
-            }
+    /**
+     * Moves reader from the start of an element (or the end of its previous child) to the start of the next child element.
+     * Returns false, leaving reader at the element end, if there are no more children.
+     */
+    static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) return true;
+            if (event == XMLStreamConstants.END_ELEMENT) return false;
         }
 
-        if (!rootRecord) {
-            NamedNodeMap attrMap = el.getAttributes();
-            for (int i = 0; i < attrMap.getLength(); i++) {
-                Attr attr = (Attr) attrMap.item(i);
-
-                List<String> ignoredNamespaces = Arrays.asList("http://www.w3.org/2000/xmlns/", "http://www.w3.org/2001/XMLSchema-instance");
-                if (ignoredNamespaces.contains(attr.getNamespaceURI())) continue;
-
-                List<String> ignoredNames = Arrays.asList("xml:lang");
-                if (ignoredNames.contains(attr.getName())) continue;
-
-                if(!setRecordFieldFromNode) {
-                  Schema.Field field = getFieldBySource(schema, new Source(attr.getName(), true));
-                  if (field == null)
-                    throw new ConverterException("Unsupported attribute " + attr.getName());
+        throw new ConverterException("Unexpected end of document");
+    }
 
-                  Object datum = createNodeDatum(field.schema(), attr, false);
-                  record.put(field.name(), datum);
-                }
+    /** Concatenated text of element descendants, same as {@link Node#getTextContent()}. Leaves reader at the element end. */
+    static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder text = null;
+        String single = "";
+
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (text != null) text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    else if (single.isEmpty()) single = reader.getText();
+                    else text = new StringBuilder(single).append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
             }
         }
 
-        return record;
+        return text != null ? text.toString() : single;
     }
 
-    private void setFieldFromNode(Schema schema, GenericData.Record record, Node node) {
-        if (node.getNodeType() != Node.ELEMENT_NODE)
-            return;
-
-        Element child = (Element) node;
-        boolean setRecordFromNode = false;
-        final String fieldName = child.getLocalName();
-        Schema.Field field = getFieldBySource(schema, new Source(fieldName, false));
-        if(field == null) {
-          field = getNestedFieldBySource(schema, new Source(fieldName, false));
-          setRecordFromNode = true;
-        }
-
-        if (field != null) {
-            boolean array = field.schema().getType() == Schema.Type.ARRAY;
-          Object datum = createNodeDatum(!array ? field.schema() : field.schema().getElementType(), child, setRecordFromNode);
-
-            if (!array)
-                record.put(field.name(), datum);
-            else {
-                @SuppressWarnings("unchecked") List<Object> values = (List<Object>) record.get(field.name());
-                values.add(datum);
+    /** Same as {@link #readText(XMLStreamReader)}, collecting text into the buffer. */
+    static TextBuffer readText(XMLStreamReader reader, TextBuffer text) throws XMLStreamException {
+        text.clear();
+
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
             }
-        } else {
-            Schema.Field anyField = schema.getField(Source.WILDCARD);
-            if (anyField == null)
-                throw new ConverterException("Could not find field " + fieldName + " in Avro Schema " + schema.getName() +  " , neither as specific field nor 'any' element");
-
-            @SuppressWarnings("unchecked") Map<String, String> map = (HashMap<String, String>) record.get(Source.WILDCARD);
-            map.put(fieldName, getContentAsText(child));
         }
-    }
 
-    Schema.Field getFieldBySource(Schema schema, Source source) {
-        if(schema.getType() == Schema.Type.UNION) {
-          return getFieldBySource(schema.getTypes().get(1), source);
-        } else {
-          for (Schema.Field field : schema.getFields()) {
-            String fieldSource = field.getProp(Source.SOURCE);
-            if (caseSensitiveNames && source.toString().equals(fieldSource))
-              return field;
-            if (!caseSensitiveNames && source.toString().equalsIgnoreCase(fieldSource))
-              return field;
-          }
-
-          return null;
-        }
+        return text;
     }
 
-    Schema.Field getNestedFieldBySource(Schema schema, Source source) {
-      if(schema.getType() != Schema.Type.RECORD) {
-        return null;
-      }
-
-      for (Schema.Field field : schema.getFields()) {
-        Schema topSchema = field.schema();
+    static String qualifiedName(QName name) {
+        String prefix = name.getPrefix();
+        return prefix == null || prefix.isEmpty() ? name.getLocalPart() : prefix + ":" + name.getLocalPart();
+    }
 
-        switch (topSchema.getType()) {
-          case ARRAY: {
-            Schema.Field fieldBySource = getFieldBySource(topSchema.getElementType(), source);
-            if (fieldBySource != null) {
-              return field;
-            }
-          }
-          break;
-        }
-      }
+    /** Immutable settings of the builder */
+    public static class Config {
+        private final boolean caseSensitiveNames;
+        private final TimeZone timeZone;
+        private final boolean wildcardUtf8;
 
-      return null;
-    }
+        /** Case sensitive names and UTC; other zones are set by {@link #withTimeZone(TimeZone)} */
+        public Config() { this(true, TimeZone.getTimeZone("UTC")); }
 
-    private String getContentAsText(Element el) {
-        if (el.getTextContent().length() == 0) return "";
+        public Config(boolean caseSensitiveNames, TimeZone timeZone) { this(caseSensitiveNames, timeZone, false); }
 
-        StringWriter writer = new StringWriter();
-        try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.METHOD, "xml");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.transform(new DOMSource(el), new StreamResult(writer));
-        } catch (TransformerException impossible) {
-            throw new ConverterException(impossible);
+        private Config(boolean caseSensitiveNames, TimeZone timeZone, boolean wildcardUtf8) {
+            this.caseSensitiveNames = caseSensitiveNames;
+            this.timeZone = (TimeZone) timeZone.clone();
+            this.wildcardUtf8 = wildcardUtf8;
         }
 
-        String result = "" + writer.getBuffer();
+        public boolean isCaseSensitiveNames() { return caseSensitiveNames; }
+        public Config withCaseSensitiveNames(boolean caseSensitiveNames) { return new Config(caseSensitiveNames, timeZone, wildcardUtf8); }
 
-        //trim element's start tag
-        int startTag = result.indexOf(el.getLocalName());
-        startTag = result.indexOf('>', startTag);
-        result = result.substring(startTag + 1);
+        /** Time zone of dateTime values without one */
+        public TimeZone getTimeZone() { return (TimeZone) timeZone.clone(); }
+        public Config withTimeZone(TimeZone timeZone) { return new Config(caseSensitiveNames, timeZone, wildcardUtf8); }
 
-        //trim element's end tag
-        int endTag = result.lastIndexOf("</");
-        result = result.substring(0, endTag);
+        /** Whether wildcard content is stored in the {@code others} map as UTF-8 {@link org.apache.avro.util.Utf8} rather than String */
+        public boolean isWildcardUtf8() { return wildcardUtf8; }
+        public Config withWildcardUtf8(boolean wildcardUtf8) { return new Config(caseSensitiveNames, timeZone, wildcardUtf8); }
 
-        return result;
+        TimeZone timeZone() { return timeZone; }
     }
 }
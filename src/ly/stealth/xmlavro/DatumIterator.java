@@ -0,0 +1,114 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Datums of split elements of a document, converted one at a time while streaming the document.
+ * Only the current datum is held in memory. Iterator closes its reader when exhausted or closed.
+ *
+ * @see DatumBuilder#createDatums(XMLStreamReader, String)
+ */
+public class DatumIterator<T> implements Iterator<T>, Closeable {
+    private final XMLStreamReader reader;
+    private final Closeable source;
+    private final SplitPath path;
+    private final ConversionPlan plan;
+    private final DatumBuilder.Config config;
+
+    // names of the elements enclosing the reader position
+    private final List<String> ancestors = new ArrayList<>();
+    private boolean atSplitElement;
+    private boolean closed;
+
+    DatumIterator(XMLStreamReader reader, Closeable source, SplitPath path, DatumBuilder.Config config) {
+        this.reader = reader;
+        this.source = source;
+        this.path = path;
+        this.plan = ConversionPlan.compile(path.getSchema());
+        this.config = config;
+    }
+
+    /** Schema of the datums */
+    public Schema getSchema() { return plan.getSchema(); }
+
+    @Override
+    public boolean hasNext() {
+        if (atSplitElement) return true;
+        if (closed) return false;
+
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (path.matches(ancestors, name)) {
+                        atSplitElement = true;
+                        return true;
+                    }
+
+                    ancestors.add(name);
+                } else if (event == XMLStreamConstants.END_ELEMENT && !ancestors.isEmpty())
+                    ancestors.remove(ancestors.size() - 1);
+            }
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        }
+
+        close();
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        atSplitElement = false;
+
+        try {
+            return (T) plan.convert(reader, config);
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    /** Writes the next datum directly to the encoder, same as {@link DatumBuilder#encodeDatum(XMLStreamReader, BinaryEncoder)} */
+    public void encodeNext(BinaryEncoder out) {
+        if (!hasNext()) throw new NoSuchElementException();
+        atSplitElement = false;
+
+        try {
+            plan.encode(reader, out, config);
+        } catch (XMLStreamException | IOException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    @Override
+    public void remove() { throw new UnsupportedOperationException(); }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        atSplitElement = false;
+
+        try {
+            reader.close();
+            if (source != null) source.close();
+        } catch (XMLStreamException | IOException e) {
+            throw new ConverterException(e);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.io.BinaryData;
+import org.apache.avro.io.BinaryEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Encoded bytes of a field, which can't be written yet: array items of unknown count
+ * or a field arrived before the preceding fields. Fields of records written to a buffer
+ * can be taken back when repeated. Buffers are pooled per thread.
+ */
+class EncodingBuffer extends ByteArrayOutputStream {
+    // larger buffers, as of large fields, are not kept
+    private static final int MAX_POOLED_SIZE = 1 << 20;
+
+    private static final ThreadLocal<ArrayDeque<EncodingBuffer>> POOL = new ThreadLocal<ArrayDeque<EncodingBuffer>>() {
+        @Override
+        protected ArrayDeque<EncodingBuffer> initialValue() { return new ArrayDeque<>(); }
+    };
+
+    static EncodingBuffer acquire() {
+        EncodingBuffer buffer = POOL.get().poll();
+        return buffer != null ? buffer : new EncodingBuffer();
+    }
+
+    static void release(EncodingBuffer buffer) {
+        if (buffer.buf.length > MAX_POOLED_SIZE) return;
+
+        buffer.reset();
+        buffer.items = 0;
+        POOL.get().push(buffer);
+    }
+
+    private final BinaryEncoder encoder = new Encoder();
+    private long items;
+
+    private EncodingBuffer() { super(64); }
+
+    BinaryEncoder encoder() { return encoder; }
+
+    /** Buffer the encoder writes to; null if it is not an encoder of a buffer */
+    static EncodingBuffer of(BinaryEncoder encoder) {
+        return encoder instanceof Encoder ? ((Encoder) encoder).buffer() : null;
+    }
+
+    /** Moves bytes from the position on to the end of the other buffer */
+    void moveTo(EncodingBuffer other, int position) {
+        other.write(buf, position, count - position);
+        count = position;
+    }
+
+    void truncate(int size) { count = size; }
+
+    /** Counts an array item or map entry, written to the buffer */
+    void addItem() { items++; }
+
+    boolean hasItems() { return items > 0; }
+
+    /** Writes buffered bytes as is */
+    void writeTo(BinaryEncoder out) throws IOException {
+        out.writeFixed(buf, 0, count);
+    }
+
+    /** Writes buffered items as a single block of an array or map, same as {@link org.apache.avro.generic.GenericDatumWriter} */
+    void writeItemsTo(BinaryEncoder out) throws IOException {
+        if (items > 0) {
+            out.writeLong(items);
+            writeTo(out);
+        }
+
+        out.writeLong(0);
+    }
+
+    /** Encoder writing straight into the buffer */
+    private class Encoder extends BinaryEncoder {
+        EncodingBuffer buffer() { return EncodingBuffer.this; }
+
+        private void ensureCapacity(int length) {
+            if (count + length > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + length));
+        }
+
+        public void writeBoolean(boolean b) {
+            ensureCapacity(1);
+            count += BinaryData.encodeBoolean(b, buf, count);
+        }
+
+        public void writeInt(int n) {
+            ensureCapacity(5);
+            count += BinaryData.encodeInt(n, buf, count);
+        }
+
+        public void writeLong(long n) {
+            ensureCapacity(10);
+            count += BinaryData.encodeLong(n, buf, count);
+        }
+
+        public void writeFloat(float f) {
+            ensureCapacity(4);
+            count += BinaryData.encodeFloat(f, buf, count);
+        }
+
+        public void writeDouble(double d) {
+            ensureCapacity(8);
+            count += BinaryData.encodeDouble(d, buf, count);
+        }
+
+        public void writeFixed(byte[] bytes, int start, int len) { write(bytes, start, len); }
+
+        protected void writeZero() { write(0); }
+
+        public int bytesBuffered() { return 0; }
+
+        public void flush() {}
+    }
+}
@@ -0,0 +1,142 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+
+import java.util.*;
+
+/**
+ * Lookup of record fields by their xml source, built once per record schema.
+ * Lookups don't scan fields; case-insensitive ones match names as {@link String#equalsIgnoreCase} does,
+ * without copying them.
+ */
+class FieldIndex {
+    private static final String ELEMENT_PREFIX = "" + new Source("", false);
+    private static final String ATTRIBUTE_PREFIX = "" + new Source("", true);
+
+    private final Map<String, Schema.Field> elements = new HashMap<>();
+    private final Map<String, Schema.Field> attributes = new HashMap<>();
+    private final IgnoreCaseMap elementsIgnoreCase = new IgnoreCaseMap();
+    private final IgnoreCaseMap attributesIgnoreCase = new IgnoreCaseMap();
+
+    // array fields of nested records, by the element name of the nested record field
+    private final Map<String, Schema.Field> nested = new HashMap<>();
+    private final IgnoreCaseMap nestedIgnoreCase = new IgnoreCaseMap();
+
+    FieldIndex(Schema record) {
+        for (Schema.Field field : record.getFields()) {
+            String source = field.getProp(Source.SOURCE);
+            if (source == null) continue;
+
+            if (source.startsWith(ELEMENT_PREFIX)) {
+                String name = source.substring(ELEMENT_PREFIX.length());
+                putFirst(elements, name, field);
+                elementsIgnoreCase.putFirst(name, field);
+            } else if (source.startsWith(ATTRIBUTE_PREFIX)) {
+                String name = source.substring(ATTRIBUTE_PREFIX.length());
+                putFirst(attributes, name, field);
+                attributesIgnoreCase.putFirst(name, field);
+            }
+        }
+
+        for (Schema.Field field : record.getFields()) {
+            if (field.schema().getType() != Schema.Type.ARRAY) continue;
+
+            Schema itemRecord = record(field.schema().getElementType());
+            if (itemRecord == null) continue;
+
+            for (Schema.Field itemField : itemRecord.getFields()) {
+                String source = itemField.getProp(Source.SOURCE);
+                if (source == null || !source.startsWith(ELEMENT_PREFIX)) continue;
+
+                String name = source.substring(ELEMENT_PREFIX.length());
+                putFirst(nested, name, field);
+                nestedIgnoreCase.putFirst(name, field);
+            }
+        }
+    }
+
+    private static void putFirst(Map<String, Schema.Field> map, String name, Schema.Field field) {
+        if (!map.containsKey(name)) map.put(name, field);
+    }
+
+    public Schema.Field getField(String name, boolean attribute, boolean caseSensitive) {
+        if (caseSensitive) return (attribute ? attributes : elements).get(name);
+        return (attribute ? attributesIgnoreCase : elementsIgnoreCase).get(name);
+    }
+
+    /**
+     * Array field of nested records, which has a record with the element field of specified name.
+     * Such element becomes a record of the array itself.
+     */
+    public Schema.Field getNestedField(String name, boolean caseSensitive) {
+        return caseSensitive ? nested.get(name) : nestedIgnoreCase.get(name);
+    }
+
+    /** Record schema, optionally wrapped into an optional union; null for other schemas */
+    private static Schema record(Schema schema) {
+        if (schema.getType() == Schema.Type.UNION) {
+            List<Schema> types = schema.getTypes();
+            schema = types.get(types.size() - 1);
+        }
+
+        return schema.getType() == Schema.Type.RECORD ? schema : null;
+    }
+
+    /**
+     * Fields by names compared by {@link String#equalsIgnoreCase}, in an open addressing table.
+     * Names are hashed by characters folded as equalsIgnoreCase compares them, so equal names hash alike.
+     */
+    private static class IgnoreCaseMap {
+        private String[] names = new String[8];
+        private Schema.Field[] fields = new Schema.Field[8];
+        private int size;
+
+        void putFirst(String name, Schema.Field field) {
+            if (get(name) != null) return;
+            if (2 * (size + 1) > names.length) resize();
+
+            int i = slot(names, name);
+            names[i] = name;
+            fields[i] = field;
+            size++;
+        }
+
+        Schema.Field get(String name) {
+            int i = slot(names, name);
+            return names[i] != null ? fields[i] : null;
+        }
+
+        private void resize() {
+            String[] oldNames = names;
+            Schema.Field[] oldFields = fields;
+            names = new String[oldNames.length * 2];
+            fields = new Schema.Field[oldNames.length * 2];
+
+            for (int i = 0; i < oldNames.length; i++) {
+                if (oldNames[i] == null) continue;
+
+                int slot = slot(names, oldNames[i]);
+                names[slot] = oldNames[i];
+                fields[slot] = oldFields[i];
+            }
+        }
+
+        /** Slot holding the name, or the empty one it would take */
+        private static int slot(String[] names, String name) {
+            int mask = names.length - 1;
+            int i = hash(name) & mask;
+            while (names[i] != null && !names[i].equalsIgnoreCase(name)) i = (i + 1) & mask;
+            return i;
+        }
+
+        private static int hash(String name) {
+            int hash = 0;
+            for (int i = 0; i < name.length(); ) {
+                int c = name.codePointAt(i);
+                hash = 31 * hash + Character.toLowerCase(Character.toUpperCase(c));
+                i += Character.charCount(c);
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
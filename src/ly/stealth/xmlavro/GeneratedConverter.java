@@ -0,0 +1,284 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Base of converters generated by {@link CodeGenerator} for one schema.
+ * Generated converters write the same bytes as {@link DatumBuilder#encodeDatum(XMLStreamReader, BinaryEncoder)}
+ * of their schema. They are immutable and can be shared between threads.
+ */
+public abstract class GeneratedConverter {
+    private final Schema schema;
+    private final DatumBuilder.Config config;
+    protected final boolean caseSensitive;
+
+    protected GeneratedConverter(Schema schema, DatumBuilder.Config config) {
+        this.schema = schema;
+        this.config = config;
+        caseSensitive = config.isCaseSensitiveNames();
+    }
+
+    public Schema getSchema() { return schema; }
+    public DatumBuilder.Config getConfig() { return config; }
+
+    public void encodeDatum(File file, BinaryEncoder out) {
+        try (InputStream stream = new FileInputStream(file)) {
+            encodeDatum(stream, out);
+        } catch (IOException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    public void encodeDatum(Reader reader, BinaryEncoder out) {
+        XMLStreamReader streamReader = DatumBuilder.createStreamReader(reader);
+        try {
+            encodeDatum(streamReader, out);
+        } finally {
+            close(streamReader);
+        }
+    }
+
+    public void encodeDatum(InputStream stream, BinaryEncoder out) {
+        XMLStreamReader streamReader = DatumBuilder.createStreamReader(stream);
+        try {
+            encodeDatum(streamReader, out);
+        } finally {
+            close(streamReader);
+        }
+    }
+
+    /** Reader should be positioned as for {@link DatumBuilder#encodeDatum(XMLStreamReader, BinaryEncoder)} */
+    public void encodeDatum(XMLStreamReader reader, BinaryEncoder out) {
+        try {
+            while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+                if (!reader.hasNext()) throw new ConverterException("No root element");
+                reader.next();
+            }
+
+            encodeRoot(reader, out);
+        } catch (XMLStreamException | IOException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    private static void close(XMLStreamReader reader) {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    /** Writes the datum of the root element; reader is at the element start */
+    protected abstract void encodeRoot(XMLStreamReader reader, BinaryEncoder out) throws XMLStreamException, IOException;
+
+    /** Schema of the json split into parts, as string constants are limited in size */
+    protected static Schema parse(String... parts) {
+        StringBuilder json = new StringBuilder();
+        for (String part : parts) json.append(part);
+        return new Schema.Parser().parse(json.toString());
+    }
+
+    protected static RecordType recordType(Schema schema, String fullName) {
+        Schema record = findRecord(schema, fullName, new HashSet<Schema>());
+        if (record == null) throw new ConverterException("No record " + fullName + " in schema");
+        return new RecordType(record);
+    }
+
+    private static Schema findRecord(Schema schema, String fullName, Set<Schema> visited) {
+        switch (schema.getType()) {
+            case RECORD:
+                if (schema.getFullName().equals(fullName)) return schema;
+                if (!visited.add(schema)) return null;
+
+                for (Schema.Field field : schema.getFields()) {
+                    Schema record = findRecord(field.schema(), fullName, visited);
+                    if (record != null) return record;
+                }
+                return null;
+            case UNION:
+                for (Schema type : schema.getTypes()) {
+                    Schema record = findRecord(type, fullName, visited);
+                    if (record != null) return record;
+                }
+                return null;
+            case ARRAY:
+                return findRecord(schema.getElementType(), fullName, visited);
+            default:
+                return null;
+        }
+    }
+
+    protected static boolean nextChild(XMLStreamReader reader) throws XMLStreamException { return DatumBuilder.nextChild(reader); }
+
+    /** Name of the attribute, null for attributes which are not converted */
+    protected static String attributeName(XMLStreamReader reader, int index) { return ConversionPlan.attributeName(reader, index); }
+
+    protected static String readString(XMLStreamReader reader) throws XMLStreamException { return DatumBuilder.readText(reader); }
+
+    protected static int readInt(XMLStreamReader reader) throws XMLStreamException {
+        TextBuffer text = DatumBuilder.readText(reader, TextBuffer.get());
+        return ValueParser.parseInt(text.array(), 0, text.length());
+    }
+
+    protected static long readLong(XMLStreamReader reader) throws XMLStreamException {
+        TextBuffer text = DatumBuilder.readText(reader, TextBuffer.get());
+        return ValueParser.parseLong(text.array(), 0, text.length());
+    }
+
+    /** Long of a schema without dateTime marks, which may hold a dateTime */
+    protected long readLegacyLong(XMLStreamReader reader) throws XMLStreamException {
+        return ConversionPlan.parseLegacyLong(DatumBuilder.readText(reader, TextBuffer.get()), config.timeZone());
+    }
+
+    protected static float readFloat(XMLStreamReader reader) throws XMLStreamException {
+        TextBuffer text = DatumBuilder.readText(reader, TextBuffer.get());
+        return ValueParser.parseFloat(text.array(), 0, text.length());
+    }
+
+    protected static double readDouble(XMLStreamReader reader) throws XMLStreamException {
+        TextBuffer text = DatumBuilder.readText(reader, TextBuffer.get());
+        return ValueParser.parseDouble(text.array(), 0, text.length());
+    }
+
+    protected static boolean readBoolean(XMLStreamReader reader) throws XMLStreamException {
+        TextBuffer text = DatumBuilder.readText(reader, TextBuffer.get());
+        return ValueParser.parseBoolean(text.array(), 0, text.length());
+    }
+
+    protected long readDateTime(XMLStreamReader reader) throws XMLStreamException {
+        return DateTimeParser.parse(DatumBuilder.readText(reader, TextBuffer.get()), config.timeZone());
+    }
+
+    protected static int parseInt(String value) {
+        TextBuffer text = TextBuffer.get().set(value);
+        return ValueParser.parseInt(text.array(), 0, text.length());
+    }
+
+    protected static long parseLong(String value) {
+        TextBuffer text = TextBuffer.get().set(value);
+        return ValueParser.parseLong(text.array(), 0, text.length());
+    }
+
+    protected long parseLegacyLong(String value) { return ConversionPlan.parseLegacyLong(TextBuffer.get().set(value), config.timeZone()); }
+
+    protected static float parseFloat(String value) {
+        TextBuffer text = TextBuffer.get().set(value);
+        return ValueParser.parseFloat(text.array(), 0, text.length());
+    }
+
+    protected static double parseDouble(String value) {
+        TextBuffer text = TextBuffer.get().set(value);
+        return ValueParser.parseDouble(text.array(), 0, text.length());
+    }
+
+    protected static boolean parseBoolean(String value) {
+        TextBuffer text = TextBuffer.get().set(value);
+        return ValueParser.parseBoolean(text.array(), 0, text.length());
+    }
+
+    protected long parseDateTime(String value) { return DateTimeParser.parse(TextBuffer.get().set(value), config.timeZone()); }
+
+    protected static Fields fields(RecordType type, BinaryEncoder out) { return new Fields(new RecordEncoder(type.layout, out)); }
+
+    /** Stores content of the element, which is not a field of the record, into its wildcard field */
+    protected void other(RecordType type, Fields fields, String name, XMLStreamReader reader) throws XMLStreamException {
+        if (type.layout.wildcardPos == -1)
+            throw new ConverterException("Could not find field " + name + " in Avro Schema " + type.layout.schema.getName() +  " , neither as specific field nor 'any' element");
+
+        fields.encoder.wildcard().put(name, ContentWriter.get().write(reader, config.isWildcardUtf8()));
+    }
+
+    protected static Items items() { return new Items(); }
+
+    protected static ConverterException unsupportedAttribute(String name) { return new ConverterException("Unsupported attribute " + name); }
+
+    /** Fails conversion of a value, which the schema can't hold */
+    protected static void fail(String message) { throw new ConverterException(message); }
+
+    /** Record schema with lookups of its field names, when names are not case sensitive */
+    protected static final class RecordType {
+        private static final String ELEMENT_PREFIX = "" + new Source("", false);
+
+        private final RecordEncoder.Layout layout;
+        private final FieldIndex index;
+
+        private RecordType(Schema schema) {
+            layout = new RecordEncoder.Layout(schema);
+            index = new FieldIndex(schema);
+        }
+
+        /** Element name of the field, which the name matches ignoring case; the name itself if there is no such field */
+        public String element(String name) {
+            Schema.Field field = index.getField(name, false, false);
+            if (field != null) return sourceName(field);
+
+            field = index.getNestedField(name, false);
+            if (field == null) return name;
+
+            Schema itemRecord = field.schema().getElementType();
+            if (itemRecord.getType() == Schema.Type.UNION) {
+                List<Schema> types = itemRecord.getTypes();
+                itemRecord = types.get(types.size() - 1);
+            }
+
+            for (Schema.Field itemField : itemRecord.getFields()) {
+                String source = itemField.getProp(Source.SOURCE);
+                if (source == null || !source.startsWith(ELEMENT_PREFIX)) continue;
+
+                String itemName = source.substring(ELEMENT_PREFIX.length());
+                if (itemName.equalsIgnoreCase(name)) return itemName;
+            }
+
+            return name;
+        }
+
+        /** Attribute name of the field, which the name matches ignoring case; the name itself if there is no such field */
+        public String attribute(String name) {
+            Schema.Field field = index.getField(name, true, false);
+            return field != null ? sourceName(field) : name;
+        }
+
+        private static String sourceName(Schema.Field field) {
+            String source = field.getProp(Source.SOURCE);
+            return source.substring(source.indexOf(' ') + 1);
+        }
+    }
+
+    /** Fields of a record being written, see {@link RecordEncoder} */
+    protected static final class Fields {
+        private final RecordEncoder encoder;
+        private Fields(RecordEncoder encoder) { this.encoder = encoder; }
+
+        public BinaryEncoder valueOut(int pos) throws IOException { return encoder.valueOut(pos); }
+        public void valueWritten(int pos) throws IOException { encoder.valueWritten(pos); }
+        public void attributesWritten() throws IOException { encoder.attributesWritten(); }
+        public void singleField() { encoder.singleField(); }
+
+        public BinaryEncoder itemOut(int pos) throws IOException { return encoder.items(pos).encoder(); }
+        public void itemWritten(int pos) { encoder.itemWritten(pos); }
+
+        public void finish() throws IOException { encoder.finish(); }
+        public void release() { encoder.release(); }
+    }
+
+    /** Items of an array value being written */
+    protected static final class Items {
+        private final EncodingBuffer buffer = EncodingBuffer.acquire();
+        private Items() {}
+
+        public BinaryEncoder encoder() { return buffer.encoder(); }
+        public void add() { buffer.addItem(); }
+        public void writeTo(BinaryEncoder out) throws IOException { buffer.writeItemsTo(out); }
+        public void release() { EncodingBuffer.release(buffer); }
+    }
+}
@@ -0,0 +1,6 @@
+package ly.stealth.xmlavro;
+
+/** Schema declares no elements, as a fragment holding types only for others to include */
+public class NoRootElementException extends ConverterException {
+    public NoRootElementException() { super("No root element declaration"); }
+}
@@ -0,0 +1,156 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Format of converted avro files: an object container file with the schema, sync markers and
+ * block compression by the codec, or raw datums written one after another.
+ */
+public class OutputFormat {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CodecFactory codec = CodecFactory.nullCodec();
+    private String codecName = DataFileConstants.NULL_CODEC;
+    private int syncInterval = DataFileConstants.DEFAULT_SYNC_INTERVAL;
+    private boolean raw;
+
+    public String getCodec() { return codecName; }
+
+    /** Codec of container blocks: null, deflate, deflate:level (1..9) or snappy */
+    public void setCodec(String codec) {
+        this.codec = parseCodec(codec);
+        this.codecName = codec;
+    }
+
+    public int getSyncInterval() { return syncInterval; }
+    public void setSyncInterval(int syncInterval) {
+        if (syncInterval < 32) throw new IllegalArgumentException("Invalid sync interval " + syncInterval);
+        this.syncInterval = syncInterval;
+    }
+
+    public boolean isRaw() { return raw; }
+    public void setRaw(boolean raw) { this.raw = raw; }
+
+    private static CodecFactory parseCodec(String codec) {
+        if (codec.equals(DataFileConstants.NULL_CODEC)) return CodecFactory.nullCodec();
+
+        if (codec.equals(DataFileConstants.SNAPPY_CODEC)) {
+            if (!snappyAvailable()) throw new IllegalArgumentException("Snappy codec is not available");
+            return CodecFactory.snappyCodec();
+        }
+
+        if (codec.equals(DataFileConstants.DEFLATE_CODEC)) return CodecFactory.deflateCodec(6);
+        if (codec.startsWith(DataFileConstants.DEFLATE_CODEC + ":")) {
+            String level = codec.substring(DataFileConstants.DEFLATE_CODEC.length() + 1);
+            try {
+                int value = Integer.parseInt(level);
+                if (value >= 1 && value <= 9) return CodecFactory.deflateCodec(value);
+            } catch (NumberFormatException ignore) {}
+
+            throw new IllegalArgumentException("Invalid deflate level " + level);
+        }
+
+        throw new IllegalArgumentException("Unsupported codec " + codec);
+    }
+
+    /** Whether snappy compresses: its class may load, while its native library does not, as on newer jdks */
+    private static boolean snappyAvailable() {
+        try {
+            Class.forName("org.xerial.snappy.Snappy");
+            org.xerial.snappy.Snappy.compress(new byte[1]);
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    public Output open(Schema schema, File file) {
+        try {
+            if (raw) return new RawOutput(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+
+            DataFileWriter<Object> writer = new DataFileWriter<>(new GenericDatumWriter<>(schema));
+            writer.setCodec(codec);
+            writer.setSyncInterval(syncInterval);
+            return new ContainerOutput(writer.create(schema, file));
+        } catch (IOException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    /**
+     * Output of encoded datums. A datum is written to the encoder returned by {@link #startDatum()}
+     * and ends with {@link #endDatum()}; or is appended already encoded.
+     */
+    public abstract static class Output implements Closeable {
+        public abstract BinaryEncoder startDatum();
+        public abstract void endDatum();
+        public abstract void append(byte[] datum);
+
+        @Override
+        public abstract void close();
+    }
+
+    private static class RawOutput extends Output {
+        private final OutputStream stream;
+        private final BinaryEncoder encoder;
+
+        private RawOutput(OutputStream stream) {
+            this.stream = stream;
+            encoder = EncoderFactory.get().directBinaryEncoder(stream, null);
+        }
+
+        public BinaryEncoder startDatum() { return encoder; }
+        public void endDatum() {}
+
+        public void append(byte[] datum) {
+            try { stream.write(datum); }
+            catch (IOException e) { throw new ConverterException(e); }
+        }
+
+        public void close() {
+            try { stream.close(); }
+            catch (IOException e) { throw new ConverterException(e); }
+        }
+    }
+
+    private static class ContainerOutput extends Output {
+        private final DataFileWriter<Object> writer;
+        private final DatumBuffer buffer = new DatumBuffer();
+        private final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(buffer, null);
+
+        private ContainerOutput(DataFileWriter<Object> writer) { this.writer = writer; }
+
+        public BinaryEncoder startDatum() {
+            buffer.reset();
+            return encoder;
+        }
+
+        public void endDatum() {
+            try { writer.appendEncoded(buffer.byteBuffer()); }
+            catch (IOException e) { throw new ConverterException(e); }
+        }
+
+        public void append(byte[] datum) {
+            try { writer.appendEncoded(ByteBuffer.wrap(datum)); }
+            catch (IOException e) { throw new ConverterException(e); }
+        }
+
+        public void close() {
+            try { writer.close(); }
+            catch (IOException e) { throw new ConverterException(e); }
+        }
+    }
+
+    private static class DatumBuffer extends ByteArrayOutputStream {
+        ByteBuffer byteBuffer() { return ByteBuffer.wrap(buf, 0, count); }
+    }
+}
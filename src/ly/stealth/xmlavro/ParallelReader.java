@@ -0,0 +1,321 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.SeekableFileInput;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Decodes an avro container file on a pool of threads. The file is split into chunks of about the chunk size
+ * at sync markers, as {@link DataFileReader#sync(long)} and {@link DataFileReader#pastSync(long)} define it:
+ * a chunk holds blocks following the first sync marker at or after its start, up to the first one at or after its end,
+ * so each block belongs to exactly one chunk.
+ * <p>
+ * Chunks are decoded concurrently, with a reader per thread synced to the start of each chunk, and returned
+ * in file order. At most twice as many chunks as threads are decoded ahead of the one being returned, which bounds
+ * memory held by decoded chunks. With one thread, chunks are decoded on the calling thread as they are returned.
+ */
+public class ParallelReader {
+    /** Largest chunk size of {@link #datums()}: decoded datums take several times the size of their blocks */
+    public static final long DATUM_CHUNK_SIZE = 128 << 10;
+
+    private final File file;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long chunkSize = 8 << 20;
+
+    private final Schema schema;
+    private final Map<String, byte[]> meta = new HashMap<>();
+
+    public ParallelReader(File file) {
+        this.file = file;
+
+        try (BlockReader reader = new BlockReader(file)) {
+            schema = reader.getSchema();
+            for (String key : reader.getMetaKeys()) meta.put(key, reader.getMeta(key));
+        } catch (IOException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    public File getFile() { return file; }
+    public Schema getSchema() { return schema; }
+    public byte[] getMeta(String key) { return meta.get(key); }
+
+    public int getThreads() { return threads; }
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("Invalid thread count " + threads);
+        this.threads = threads;
+    }
+
+    public long getChunkSize() { return chunkSize; }
+    public void setChunkSize(long chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    /** Decoded chunks, in file order; should be closed, which stops decoding of chunks ahead */
+    public <T> Chunks<T> chunks(ChunkDecoder<T> decoder) { return new Chunks<>(decoder, chunkSize); }
+
+    /**
+     * Datums of chunks, as decoded by {@link GenericDatumReader} of the file schema, in chunks of at most
+     * {@link #DATUM_CHUNK_SIZE}. As with {@link DataFileReader#next(Object)}, a list and its datums are reused
+     * for a later chunk once the next one is returned, so datums to keep should be copied.
+     */
+    public <D> Chunks<List<D>> datums() { return new Chunks<>(new DatumDecoder<D>(), Math.min(chunkSize, DATUM_CHUNK_SIZE)); }
+
+    /** Decodes blocks of a chunk; called concurrently for different chunks */
+    public interface ChunkDecoder<T> {
+        T decode(Blocks blocks) throws IOException;
+    }
+
+    /** Decoder reusing lists returned before, see {@link Chunks#next()} */
+    private interface Reusing<T> {
+        void reuse(T chunk);
+    }
+
+    private static class DatumDecoder<D> implements ChunkDecoder<List<D>>, Reusing<List<D>> {
+        private final Queue<List<D>> reused = new ConcurrentLinkedQueue<>();
+        private final ThreadLocal<DatumReader<D>> datumReader = new ThreadLocal<>();
+        private final ThreadLocal<BinaryDecoder> in = new ThreadLocal<>();
+
+        public List<D> decode(Blocks blocks) throws IOException {
+            DatumReader<D> reader = datumReader.get();
+            if (reader == null) datumReader.set(reader = new GenericDatumReader<>(blocks.getSchema()));
+
+            List<D> datums = reused.poll();
+            if (datums == null) datums = new ArrayList<>();
+            int count = 0;
+
+            BinaryDecoder decoder = in.get();
+            ByteBuffer block;
+            while ((block = blocks.nextBlock()) != null) {
+                decoder = DecoderFactory.get().binaryDecoder(block.array(), block.arrayOffset() + block.position(), block.remaining(), decoder);
+                for (long i = blocks.getBlockCount(); i > 0; i--) {
+                    if (count < datums.size()) datums.set(count, reader.read(datums.get(count), decoder));
+                    else datums.add(reader.read(null, decoder));
+                    count++;
+                }
+            }
+            in.set(decoder);
+
+            datums.subList(count, datums.size()).clear();
+            return datums;
+        }
+
+        public void reuse(List<D> datums) { reused.add(datums); }
+    }
+
+    /** Blocks of a chunk */
+    public static class Blocks {
+        private final BlockReader reader;
+        private final long end;
+        private long blockCount;
+
+        private Blocks(BlockReader reader, long end) {
+            this.reader = reader;
+            this.end = end;
+        }
+
+        public Schema getSchema() { return reader.getSchema(); }
+        public byte[] getMeta(String key) { return reader.getMeta(key); }
+
+        /** Next block of the chunk, uncompressed, or null after the last one */
+        public ByteBuffer nextBlock() throws IOException {
+            if (!reader.hasNext()) return null;
+            if (reader.pastSync(end)) {
+                reader.stoppedAt = end;
+                return null;
+            }
+
+            blockCount = reader.getBlockCount();
+            return reader.nextBlock();
+        }
+
+        /** Count of datums in the last block */
+        public long getBlockCount() { return blockCount; }
+    }
+
+    /** Chunks decoded ahead on a pool of threads, returned in file order */
+    public class Chunks<T> implements Iterator<T>, Closeable {
+        private final ChunkDecoder<T> decoder;
+        private final long size;
+        // null with one thread
+        private final ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        // chunks in flight, in file order
+        private final Deque<Future<T>> pending = new ArrayDeque<>();
+        private final long length = file.length();
+        private long nextStart;
+        private T returned;
+
+        // reader of each thread of the pool, synced to the start of each of its chunks
+        private final ThreadLocal<BlockReader> reader = new ThreadLocal<>();
+        private final List<BlockReader> readers = Collections.synchronizedList(new ArrayList<BlockReader>());
+
+        private Chunks(ChunkDecoder<T> decoder, long size) {
+            this.decoder = decoder;
+            this.size = size;
+            if (executor != null) while (pending.size() < threads * 2 && submitNext());
+        }
+
+        private boolean submitNext() {
+            if (nextStart >= length) return false;
+
+            final long start = nextStart;
+            final long end = Math.min(start + size, length);
+            nextStart = end;
+
+            pending.add(executor.submit(new Callable<T>() {
+                public T call() throws IOException { return decode(start, end); }
+            }));
+
+            return true;
+        }
+
+        private T decode(long start, long end) throws IOException {
+            BlockReader blockReader = reader.get();
+            if (blockReader == null) {
+                reader.set(blockReader = new BlockReader(file));
+                readers.add(blockReader);
+            }
+
+            // a reader stopped at the end of the chunk before is at the first block of this one already
+            if (blockReader.stoppedAt != start) blockReader.sync(start);
+            blockReader.stoppedAt = -1;
+            return decoder.decode(new Blocks(blockReader, end));
+        }
+
+        public boolean hasNext() { return executor != null ? !pending.isEmpty() : nextStart < length; }
+
+        /** Next chunk; a decoder reusing chunks, as of {@link #datums()}, may reuse the one returned before */
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            if (returned != null && decoder instanceof Reusing) ((Reusing<T>) decoder).reuse(returned);
+            returned = null;
+
+            if (executor == null) {
+                long start = nextStart;
+                nextStart = Math.min(start + size, length);
+
+                try {
+                    return returned = decode(start, nextStart);
+                } catch (IOException e) {
+                    throw new ConverterException(e);
+                }
+            }
+
+            Future<T> future = pending.poll();
+            submitNext();
+
+            try {
+                return returned = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConverterException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof ConverterException) throw (ConverterException) cause;
+                throw new ConverterException(cause);
+            }
+        }
+
+        public void remove() { throw new UnsupportedOperationException(); }
+
+        /** Stops decoding and closes readers, once chunks being decoded are stopped */
+        public void close() {
+            if (executor != null) {
+                executor.shutdownNow();
+                pending.clear();
+
+                try {
+                    while (!executor.awaitTermination(1, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            for (BlockReader blockReader : readers) {
+                try { blockReader.close(); }
+                catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Reader keeping the start of the current block for {@link #pastSync(long)} when reading blocks undecoded,
+     * and finding sync markers a buffer at a time, as {@link DataFileReader#sync(long)} reads the file a byte at a time
+     */
+    private static class BlockReader extends DataFileReader<Void> {
+        private final SeekableFileInput in;
+        private final byte[] marker = new byte[DataFileConstants.SYNC_SIZE];
+        private final byte[] buffer = new byte[64 << 10];
+        // end of the chunk the reader stopped at, past its sync, or -1
+        long stoppedAt = -1;
+
+        BlockReader(File file) throws IOException { this(new SeekableFileInput(file)); }
+
+        private BlockReader(SeekableFileInput in) throws IOException {
+            super(in, new GenericDatumReader<Void>());
+            this.in = in;
+
+            // the header ends with the marker
+            long headerEnd = previousSync();
+            in.seek(headerEnd - marker.length);
+            if (in.read(marker, 0, marker.length) != marker.length) throw new IOException("Invalid sync!");
+            seek(headerEnd);
+        }
+
+        @Override
+        public void sync(long position) throws IOException {
+            if (position == 0) {
+                super.sync(position);
+                return;
+            }
+
+            in.seek(position);
+            long offset = position;
+            int kept = 0;
+
+            int read;
+            while ((read = in.read(buffer, kept, buffer.length - kept)) > 0) {
+                int length = kept + read;
+                for (int i = 0; i + marker.length <= length; i++)
+                    if (markerAt(i)) {
+                        seek(offset + i + marker.length);
+                        return;
+                    }
+
+                kept = Math.min(marker.length - 1, length);
+                System.arraycopy(buffer, length - kept, buffer, 0, kept);
+                offset += length - kept;
+            }
+
+            seek(in.length());
+        }
+
+        private boolean markerAt(int i) {
+            for (int j = 0; j < marker.length; j++)
+                if (buffer[i + j] != marker[j]) return false;
+            return true;
+        }
+
+        @Override
+        public ByteBuffer nextBlock() throws IOException {
+            ByteBuffer block = super.nextBlock();
+            blockFinished();
+            return block;
+        }
+    }
+}
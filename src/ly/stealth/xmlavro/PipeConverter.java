@@ -0,0 +1,171 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.concurrent.*;
+
+/**
+ * Converts a stream of xml documents of one schema into a stream of datums, for converting many documents
+ * with one resident process. Documents are either prefixed with their length (4 bytes, big endian)
+ * or {@link #setDelimited(boolean) delimited} by a zero byte, which never occurs in xml.
+ * <p>
+ * Documents are converted on a pool of worker threads; output is in input order.
+ * Each datum is written prefixed with its length. A document that fails to convert is answered with
+ * its error message instead, prefixed with the negated length of the message.
+ * Datums are flushed as soon as no other datum is ready, so the stream can be used request by request.
+ */
+public class PipeConverter {
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    private static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+    private final DatumBuilder builder;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean delimited;
+
+    public PipeConverter(Schema schema) { this(new DatumBuilder(schema)); }
+    public PipeConverter(DatumBuilder builder) { this.builder = builder; }
+
+    public DatumBuilder getBuilder() { return builder; }
+
+    public int getThreads() { return threads; }
+    public void setThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("Invalid thread count " + threads);
+        this.threads = threads;
+    }
+
+    public boolean isDelimited() { return delimited; }
+    public void setDelimited(boolean delimited) { this.delimited = delimited; }
+
+    /** Converts documents of the input until its end; streams are not closed */
+    public void run(InputStream in, OutputStream out) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+
+        // limit documents in flight, encoded documents are held until written
+        BlockingQueue<Future<byte[]>> pending = new ArrayBlockingQueue<>(threads * 2);
+        Future<byte[]> end = new FutureTask<>(new Callable<byte[]>() {
+            public byte[] call() { return null; }
+        });
+
+        try {
+            Future<?> reading = reader.submit(readTask(new BufferedInputStream(in), executor, pending, end));
+
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+            Future<byte[]> future;
+            while ((future = pending.take()) != end) {
+                write(output, future);
+                if (pending.isEmpty()) output.flush();
+            }
+            output.flush();
+
+            result(reading);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConverterException(e);
+        } catch (IOException e) {
+            throw new ConverterException(e);
+        } finally {
+            reader.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    private Callable<Void> readTask(final InputStream in, final ExecutorService executor,
+                                    final BlockingQueue<Future<byte[]>> pending, final Future<byte[]> end) {
+        return new Callable<Void>() {
+            public Void call() throws IOException, InterruptedException {
+                try {
+                    byte[] document;
+                    while ((document = delimited ? readDelimited(in) : readPrefixed(in)) != null)
+                        pending.put(executor.submit(encodeTask(document)));
+                } finally {
+                    pending.put(end);
+                }
+
+                return null;
+            }
+        };
+    }
+
+    private Callable<byte[]> encodeTask(final byte[] document) {
+        return new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(stream, null);
+                builder.encodeDatum(new ByteArrayInputStream(document), encoder);
+                encoder.flush();
+                return stream.toByteArray();
+            }
+        };
+    }
+
+    private static void write(DataOutputStream output, Future<byte[]> future) throws IOException, InterruptedException {
+        byte[] datum;
+        try {
+            datum = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            String message = cause.getMessage() != null ? cause.getMessage() : cause.toString();
+
+            byte[] bytes = message.getBytes(UTF8);
+            output.writeInt(-bytes.length);
+            output.write(bytes);
+            return;
+        }
+
+        output.writeInt(datum.length);
+        output.write(datum);
+    }
+
+    /** Next document prefixed with its length, or null at the end of input */
+    private static byte[] readPrefixed(InputStream in) throws IOException {
+        byte[] prefix = new byte[4];
+        int count = readFully(in, prefix);
+        if (count == 0) return null;
+        if (count < prefix.length) throw new ConverterException("Truncated document length");
+
+        int length = (prefix[0] & 0xff) << 24 | (prefix[1] & 0xff) << 16 | (prefix[2] & 0xff) << 8 | prefix[3] & 0xff;
+        if (length < 0 || length > MAX_LENGTH) throw new ConverterException("Invalid document length " + length);
+
+        byte[] document = new byte[length];
+        if (readFully(in, document) < length) throw new ConverterException("Truncated document");
+        return document;
+    }
+
+    /** Next document ending with a zero byte or the end of input, or null at the end of input */
+    private static byte[] readDelimited(InputStream in) throws IOException {
+        ByteArrayOutputStream document = new ByteArrayOutputStream();
+
+        int b;
+        while ((b = in.read()) != -1 && b != 0)
+            document.write(b);
+
+        if (b == -1 && document.size() == 0) return null;
+        return document.toByteArray();
+    }
+
+    private static int readFully(InputStream in, byte[] bytes) throws IOException {
+        int count = 0;
+        while (count < bytes.length) {
+            int read = in.read(bytes, count, bytes.length - count);
+            if (read == -1) break;
+            count += read;
+        }
+
+        return count;
+    }
+
+    private static void result(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ConverterException) throw (ConverterException) cause;
+            throw new ConverterException(cause);
+        }
+    }
+}
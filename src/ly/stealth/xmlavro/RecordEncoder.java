@@ -0,0 +1,209 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes fields of a record in schema order. Values arriving in order are written directly;
+ * values arriving ahead of preceding fields, array items and wildcard entries are buffered
+ * until all preceding fields are written. Items of an array are written once a following field
+ * arrives, wildcard entries at the record end.
+ * <p>
+ * Last value of a repeated field wins, as for datums, while the field is buffered. Written to
+ * an {@link EncodingBuffer}, as within a buffered field, fields written since the repeated one
+ * are moved back into buffers, and it is written again; arrays are then kept until the record end.
+ * Otherwise a value of a field already written fails conversion.
+ */
+class RecordEncoder {
+    private final Layout layout;
+    private final BinaryEncoder out;
+    // buffer of the output, if any, and where fields written to it start
+    private final EncodingBuffer outBuffer;
+    private final int[] starts;
+    private final EncodingBuffer[] buffers;
+    private final boolean[] present;
+    private Map<String, Object> wildcard;
+    private int next;
+    // only one field is written
+    private boolean single;
+
+    RecordEncoder(Layout layout, BinaryEncoder out) {
+        this.layout = layout;
+        this.out = out;
+
+        outBuffer = EncodingBuffer.of(out);
+        starts = new int[layout.arrays.length];
+        buffers = new EncodingBuffer[layout.arrays.length];
+        present = new boolean[layout.arrays.length];
+    }
+
+    /** Encoder for the value of a non-array field */
+    BinaryEncoder valueOut(int pos) throws IOException {
+        if (pos < next) rewind(pos);
+        else if (pos > next) writePreceding(pos);
+
+        if (pos == next) {
+            if (outBuffer != null) starts[pos] = outBuffer.size();
+            return out;
+        }
+
+        EncodingBuffer buffer = buffer(pos);
+        buffer.reset();
+        return buffer.encoder();
+    }
+
+    /** Takes back written fields from the position on, moving the following ones into buffers */
+    private void rewind(int pos) {
+        if (outBuffer == null)
+            throw new ConverterException("Field " + layout.fieldName(pos) + " of " + layout.schema.getName() + " is repeated after following fields were written");
+
+        for (int i = next - 1; i > pos; i--) {
+            EncodingBuffer buffer = buffer(i);
+            buffer.reset();
+            outBuffer.moveTo(buffer, starts[i]);
+        }
+
+        outBuffer.truncate(starts[pos]);
+        next = pos;
+    }
+
+    void valueWritten(int pos) throws IOException {
+        present[pos] = true;
+        if (pos != next) return;
+
+        next++;
+        writeBuffered();
+    }
+
+    /** Writes buffered values following the written fields, up to a missing one */
+    private void writeBuffered() throws IOException {
+        while (next < buffers.length && present[next] && !layout.arrays[next] && next != layout.wildcardPos) {
+            if (outBuffer != null) starts[next] = outBuffer.size();
+            buffers[next].writeTo(out);
+            next++;
+        }
+    }
+
+    /**
+     * Writes fields preceding a field, which arrived after them, as far as no more values of them are expected:
+     * arrays with items and, of a single field record, absent optional fields; then buffered values following them.
+     * Within a buffer arrays are kept until the record end, so repeated fields can be written again.
+     */
+    private void writePreceding(int pos) throws IOException {
+        if (outBuffer != null) return;
+
+        while (next < pos) {
+            if (layout.arrays[next] && buffers[next] != null && buffers[next].hasItems()) buffers[next].writeItemsTo(out);
+            else if (single && layout.optionals[next] && !present[next]) out.writeIndex(0);
+            else return;
+
+            next++;
+            writeBuffered();
+        }
+    }
+
+    /** Only one field of the record is written, as of the root element in a document record */
+    void singleField() { single = true; }
+
+    /** Writes absent optional attribute fields as nulls, once attributes of the element are read */
+    void attributesWritten() throws IOException {
+        for (int pos = 0; pos < present.length; pos++) {
+            if (!layout.attributes[pos] || present[pos] || !layout.optionals[pos]) continue;
+
+            valueOut(pos).writeIndex(0);
+            valueWritten(pos);
+        }
+    }
+
+    /** Buffer of items of an array field */
+    EncodingBuffer items(int pos) throws IOException {
+        if (pos < next)
+            throw new ConverterException("Items of field " + layout.fieldName(pos) + " of " + layout.schema.getName() + " follow fields written after them");
+        if (pos > next) writePreceding(pos);
+
+        return buffer(pos);
+    }
+
+    /** Counts an item written to the buffer of the array field */
+    void itemWritten(int pos) { buffers[pos].addItem(); }
+
+    Map<String, Object> wildcard() {
+        if (wildcard == null) wildcard = new HashMap<>();
+        return wildcard;
+    }
+
+    private EncodingBuffer buffer(int pos) {
+        if (buffers[pos] == null) buffers[pos] = EncodingBuffer.acquire();
+        return buffers[pos];
+    }
+
+    void finish() throws IOException {
+        for (; next < buffers.length; next++) {
+            if (layout.arrays[next]) {
+                if (buffers[next] != null) buffers[next].writeItemsTo(out);
+                else out.writeLong(0);
+            } else if (next == layout.wildcardPos) {
+                writeWildcard();
+            } else if (present[next]) {
+                buffers[next].writeTo(out);
+            } else if (layout.optionals[next]) {
+                out.writeIndex(0);
+            } else
+                throw new ConverterException("No value of required field " + layout.fieldName(next) + " of " + layout.schema.getName());
+        }
+    }
+
+    /** Entries are written in the order of the same HashMap, as datum writers do */
+    private void writeWildcard() throws IOException {
+        if (wildcard != null && !wildcard.isEmpty()) {
+            out.writeLong(wildcard.size());
+            for (Map.Entry<String, Object> entry : wildcard.entrySet()) {
+                out.writeString(entry.getKey());
+                out.writeString((CharSequence) entry.getValue());
+            }
+        }
+
+        out.writeLong(0);
+    }
+
+    void release() {
+        for (EncodingBuffer buffer : buffers)
+            if (buffer != null) EncodingBuffer.release(buffer);
+    }
+
+    /** Fields of a record schema: array, optional (null first unions), attribute and wildcard fields */
+    static class Layout {
+        private static final String ATTRIBUTE_PREFIX = "" + new Source("", true);
+
+        final Schema schema;
+        final boolean[] arrays;
+        final boolean[] optionals;
+        final boolean[] attributes;
+        final int wildcardPos;
+
+        Layout(Schema schema) {
+            this.schema = schema;
+
+            Schema.Field wildcard = schema.getField(Source.WILDCARD);
+            wildcardPos = wildcard != null ? wildcard.pos() : -1;
+
+            arrays = new boolean[schema.getFields().size()];
+            optionals = new boolean[arrays.length];
+            attributes = new boolean[arrays.length];
+            for (Schema.Field field : schema.getFields()) {
+                Schema fieldSchema = field.schema();
+                arrays[field.pos()] = fieldSchema.getType() == Schema.Type.ARRAY;
+                optionals[field.pos()] = fieldSchema.getType() == Schema.Type.UNION && fieldSchema.getTypes().get(0).getType() == Schema.Type.NULL;
+
+                String source = field.getProp(Source.SOURCE);
+                attributes[field.pos()] = source != null && source.startsWith(ATTRIBUTE_PREFIX);
+            }
+        }
+
+        String fieldName(int pos) { return schema.getFields().get(pos).name(); }
+    }
+}
@@ -5,8 +5,12 @@ import org.apache.xerces.dom.DOMInputImpl;
 import org.apache.xerces.impl.Constants;
 import org.apache.xerces.impl.xs.XMLSchemaLoader;
 import org.apache.xerces.impl.xs.XSComplexTypeDecl;
+import org.apache.xerces.impl.xs.XSDDescription;
 import org.apache.xerces.xni.XMLResourceIdentifier;
 import org.apache.xerces.xni.XNIException;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
 import org.apache.xerces.xni.parser.XMLEntityResolver;
 import org.apache.xerces.xni.parser.XMLErrorHandler;
 import org.apache.xerces.xni.parser.XMLInputSource;
@@ -19,10 +23,18 @@ import org.w3c.dom.ls.LSInput;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SchemaBuilder {
+    /** Avro logical type of xs:dateTime values, stored as epoch millis longs */
+    public static final String LOGICAL_TYPE = "logicalType";
+    public static final String TIMESTAMP_MILLIS = "timestamp-millis";
+
     private boolean debug;
     private Resolver resolver;
+    private XMLGrammarPool grammarPool;
+    // resolver is given system ids expanded against the including document, as they are read without a resolver
+    boolean expandSystemIds;
 
     private static Map<Short, Schema.Type> primitives = new HashMap<>();
     static {
@@ -59,19 +71,36 @@ public class SchemaBuilder {
     public Resolver getResolver() { return resolver; }
     public void setResolver(Resolver resolver) { this.resolver = resolver; }
 
+    /**
+     * Pool of parsed grammars, shared by loads of schemas with common imports, so each import is parsed once.
+     * Grammars are pooled by target namespace: schemas loaded with one pool should agree on each imported namespace.
+     * The loaded document itself is always parsed, so roots of one namespace do not get each other's grammar.
+     */
+    public XMLGrammarPool getGrammarPool() { return grammarPool; }
+    public void setGrammarPool(XMLGrammarPool grammarPool) { this.grammarPool = grammarPool; }
+
 
     public Schema createSchema(String xsd) {
         return createSchema(new StringReader(xsd));
     }
 
+    /** Schema of the xsd file; without a resolver, its includes and imports are read relative to it */
     public Schema createSchema(File file) throws ConverterException {
         try (InputStream stream = new FileInputStream(file)) {
-            return createSchema(stream);
+            return createSchema(stream, file);
         } catch (IOException e) {
             throw new ConverterException(e);
         }
     }
 
+    /** Schema of the content of the xsd file, read from the stream */
+    Schema createSchema(InputStream stream, File file) {
+        DOMInputImpl input = new DOMInputImpl();
+        input.setByteStream(stream);
+        input.setSystemId(file.getAbsoluteFile().toURI().toString());
+        return createSchema(input);
+    }
+
     public Schema createSchema(Reader reader) {
         DOMInputImpl input = new DOMInputImpl();
         input.setCharacterStream(reader);
@@ -90,6 +119,8 @@ public class SchemaBuilder {
         XMLSchemaLoader loader = new XMLSchemaLoader();
         if (resolver != null)
             loader.setEntityResolver(new EntityResolver(resolver));
+        if (grammarPool != null)
+            loader.setProperty(Constants.XERCES_PROPERTY_PREFIX + Constants.XMLGRAMMAR_POOL_PROPERTY, new ImportPool(grammarPool));
 
         loader.setErrorHandler(errorHandler);
         loader.setParameter(Constants.DOM_ERROR_HANDLER, errorHandler);
@@ -115,7 +146,7 @@ public class SchemaBuilder {
             schemas.put(new Source(el.getName()), schema);
         }
 
-        if (schemas.size() == 0) throw new ConverterException("No root element declaration");
+        if (schemas.size() == 0) throw new NoRootElementException();
         if (schemas.size() == 1) return schemas.values().iterator().next();
 
         return createRootRecordSchema(schemas);
@@ -146,9 +177,11 @@ public class SchemaBuilder {
         typeLevel++;
         Schema schema;
 
-        if (type.getTypeCategory() == XSTypeDefinition.SIMPLE_TYPE)
-            schema = Schema.create(getPrimitiveType((XSSimpleTypeDefinition) type));
-        else {
+        if (type.getTypeCategory() == XSTypeDefinition.SIMPLE_TYPE) {
+            XSSimpleTypeDefinition simpleType = (XSSimpleTypeDefinition) type;
+            schema = Schema.create(getPrimitiveType(simpleType));
+            if (simpleType.getBuiltInKind() == XSConstants.DATETIME_DT) schema.addProp(LOGICAL_TYPE, TIMESTAMP_MILLIS);
+        } else {
             String name = complexTypeName(type);
             debug("Creating schema for type " + name);
 
@@ -300,6 +333,31 @@ public class SchemaBuilder {
         return avroType == null ? Schema.Type.STRING : avroType;
     }
 
+    /**
+     * Whether any long of the schema is marked as a dateTime. Schemas generated before dateTime longs were marked
+     * have no marks, holding dateTime values in plain longs.
+     */
+    static boolean marksDateTimes(Schema schema) {
+        return marksDateTimes(schema, Collections.newSetFromMap(new IdentityHashMap<Schema, Boolean>()));
+    }
+
+    private static boolean marksDateTimes(Schema schema, Set<Schema> visited) {
+        switch (schema.getType()) {
+            case LONG: return TIMESTAMP_MILLIS.equals(schema.getProp(LOGICAL_TYPE));
+            case ARRAY: return marksDateTimes(schema.getElementType(), visited);
+            case UNION:
+                for (Schema type : schema.getTypes())
+                    if (marksDateTimes(type, visited)) return true;
+                return false;
+            case RECORD:
+                if (!visited.add(schema)) return false;
+                for (Schema.Field field : schema.getFields())
+                    if (marksDateTimes(field.schema(), visited)) return true;
+                return false;
+            default: return false;
+        }
+    }
+
     static String uniqueFieldName(Iterable<Schema.Field> fields, String name) {
         int duplicates = 0;
 
@@ -410,7 +468,7 @@ public class SchemaBuilder {
 
         @Override
         public XMLInputSource resolveEntity(XMLResourceIdentifier id) throws XNIException, IOException {
-            String systemId = id.getLiteralSystemId();
+            String systemId = expandSystemIds && id.getExpandedSystemId() != null ? id.getExpandedSystemId() : id.getLiteralSystemId();
             debug("Resolving " + systemId);
 
             XMLInputSource source = new XMLInputSource(id);
@@ -419,7 +477,70 @@ public class SchemaBuilder {
         }
     }
 
+    /** Pool serving grammars of imports and includes only, not of the loaded document */
+    private static class ImportPool implements XMLGrammarPool {
+        private XMLGrammarPool pool;
+        private ImportPool(XMLGrammarPool pool) { this.pool = pool; }
+
+        @Override
+        public Grammar[] retrieveInitialGrammarSet(String grammarType) { return new Grammar[0]; }
+
+        @Override
+        public Grammar retrieveGrammar(XMLGrammarDescription desc) {
+            if (desc instanceof XSDDescription && ((XSDDescription) desc).getContextType() == XSDDescription.CONTEXT_PREPARSE) return null;
+            return pool.retrieveGrammar(desc);
+        }
+
+        @Override
+        public void cacheGrammars(String grammarType, Grammar[] grammars) { pool.cacheGrammars(grammarType, grammars); }
+
+        @Override
+        public void lockPool() { pool.lockPool(); }
+
+        @Override
+        public void unlockPool() { pool.unlockPool(); }
+
+        @Override
+        public void clear() { pool.clear(); }
+    }
+
     public static interface Resolver {
         InputStream getStream(String systemId);
     }
+
+    /** Resolver keeping resolved documents in memory, so each document is read from its resolver once */
+    public static class CachingResolver implements Resolver {
+        private final Resolver resolver;
+        private final Map<String, byte[]> documents = new ConcurrentHashMap<>();
+
+        public CachingResolver(Resolver resolver) { this.resolver = resolver; }
+
+        public InputStream getStream(String systemId) {
+            byte[] document = documents.get(systemId);
+            if (document == null) {
+                document = read(systemId);
+                if (document == null) return null;
+                documents.put(systemId, document);
+            }
+
+            return new ByteArrayInputStream(document);
+        }
+
+        private byte[] read(String systemId) {
+            InputStream stream = resolver.getStream(systemId);
+            if (stream == null) return null;
+
+            try (InputStream in = stream) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new ConverterException(e);
+            }
+        }
+
+        public void clear() { documents.clear(); }
+    }
 }
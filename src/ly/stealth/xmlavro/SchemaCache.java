@@ -0,0 +1,176 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Directory of Avro schemas generated from xsd files, so repeated runs skip loading xsd.
+ * Entry is keyed by the hash of the root xsd and holds the schema (key.avsc) and a manifest (key.deps)
+ * of files resolved by the {@link SchemaBuilder.Resolver} with their hashes; without a resolver, includes and imports
+ * are read relative to the including document, as {@link SchemaBuilder#createSchema(File)} reads them, and recorded
+ * at their absolute URIs. Entry is used only if all the resolved files are unchanged.
+ * <p>
+ * Schemas are built by a private copy of the builder, which leaves the builder unchanged and reads every document
+ * through the recording resolver: its grammar pool is not used, since imports served from it would not be recorded.
+ */
+public class SchemaCache {
+    // bump when generated schemas change
+    private static final String VERSION = "1";
+    private static final Charset UTF8 = Charset.forName("utf-8");
+    private static final String MISSING = "-";
+
+    private final File dir;
+
+    public SchemaCache(File dir) { this.dir = dir; }
+
+    public File getDir() { return dir; }
+
+    public Schema createSchema(SchemaBuilder builder, File xsdFile) {
+        byte[] xsd;
+        try {
+            xsd = Files.readAllBytes(xsdFile.toPath());
+        } catch (IOException e) {
+            throw new ConverterException(e);
+        }
+
+        String key = hash(VERSION.getBytes(UTF8), xsd);
+        File schemaFile = new File(dir, key + ".avsc");
+        File depsFile = new File(dir, key + ".deps");
+
+        SchemaBuilder.Resolver resolver = builder.getResolver();
+        SchemaBuilder.Resolver depsResolver = resolver != null ? resolver : new UrlResolver();
+
+        Schema schema = load(schemaFile, depsFile, depsResolver);
+        if (schema != null) return schema;
+
+        RecordingResolver recordingResolver = new RecordingResolver(depsResolver);
+        SchemaBuilder recordingBuilder = new SchemaBuilder();
+        recordingBuilder.setDebug(builder.getDebug());
+        recordingBuilder.setResolver(recordingResolver);
+        recordingBuilder.expandSystemIds = resolver == null;
+
+        schema = recordingBuilder.createSchema(new ByteArrayInputStream(xsd), xsdFile);
+
+        store(schema, recordingResolver.hashes, schemaFile, depsFile);
+        return schema;
+    }
+
+    /** Cached schema, if entry exists and its resolved files are unchanged */
+    private Schema load(File schemaFile, File depsFile, SchemaBuilder.Resolver resolver) {
+        if (!depsFile.exists() || !schemaFile.exists()) return null;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(depsFile), UTF8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+
+                int space = line.indexOf(' ');
+                String hash = line.substring(0, space);
+                String systemId = line.substring(space + 1);
+
+                if (!hash.equals(hash(resolver, systemId))) return null;
+            }
+
+            return new Schema.Parser().parse(schemaFile);
+        } catch (IOException | RuntimeException e) {
+            // broken entry is replaced
+            return null;
+        }
+    }
+
+    private void store(Schema schema, Map<String, String> deps, File schemaFile, File depsFile) {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new ConverterException("Can't create dir " + dir);
+
+        StringBuilder manifest = new StringBuilder();
+        for (Map.Entry<String, String> entry : deps.entrySet())
+            manifest.append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+
+        // manifest is written last, it completes the entry
+        write(schemaFile, schema.toString(true));
+        write(depsFile, manifest.toString());
+    }
+
+    /** Writes the file via a temp file, so concurrent runs never read a partial file */
+    private void write(File file, String content) {
+        try {
+            File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+            try {
+                Files.write(tmp.toPath(), content.getBytes(UTF8));
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    private static String hash(SchemaBuilder.Resolver resolver, String systemId) throws IOException {
+        byte[] bytes = read(resolver, systemId);
+        return bytes != null ? hash(bytes) : MISSING;
+    }
+
+    private static byte[] read(SchemaBuilder.Resolver resolver, String systemId) throws IOException {
+        InputStream stream = resolver.getStream(systemId);
+        if (stream == null) return null;
+
+        try (InputStream in = stream) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+            return out.toByteArray();
+        }
+    }
+
+    static String hash(byte[]... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (byte[] part : parts) digest.update(part);
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    /** Reads documents at their absolute URIs */
+    private static class UrlResolver implements SchemaBuilder.Resolver {
+        public InputStream getStream(String systemId) {
+            try { return new URL(systemId).openStream(); }
+            catch (IOException e) { return null; }
+        }
+    }
+
+    /** Records hashes of the resolved files */
+    private static class RecordingResolver implements SchemaBuilder.Resolver {
+        private final SchemaBuilder.Resolver resolver;
+        private final Map<String, String> hashes = new LinkedHashMap<>();
+
+        private RecordingResolver(SchemaBuilder.Resolver resolver) { this.resolver = resolver; }
+
+        public InputStream getStream(String systemId) {
+            byte[] bytes;
+            try {
+                bytes = read(resolver, systemId);
+            } catch (IOException e) {
+                throw new ConverterException(e);
+            }
+
+            if (!hashes.containsKey(systemId)) hashes.put(systemId, bytes != null ? hash(bytes) : MISSING);
+            return bytes != null ? new ByteArrayInputStream(bytes) : null;
+        }
+    }
+}
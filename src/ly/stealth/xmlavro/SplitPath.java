@@ -0,0 +1,124 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+
+import java.util.*;
+
+/**
+ * Element which splits a document into separate datums, specified by its name or by
+ * a slash separated path from the root element, for example "order" or "orders/order".
+ * Schema of the element is resolved from the schema of the whole document.
+ */
+class SplitPath {
+    private static final String ELEMENT_PREFIX = "" + new Source("", false);
+
+    private final String[] names;
+    private final boolean caseSensitive;
+    private final Schema schema;
+
+    SplitPath(Schema root, String path, boolean caseSensitive) {
+        String trimmed = path.startsWith("/") ? path.substring(1) : path;
+        names = trimmed.split("/");
+        this.caseSensitive = caseSensitive;
+
+        for (String name : names)
+            if (name.isEmpty()) throw new ConverterException("Invalid split path " + path);
+
+        schema = names.length == 1 ? resolveName(root) : resolvePath(root);
+    }
+
+    /** Schema of the split element */
+    Schema getSchema() { return schema; }
+
+    /** Whether element of the name, having specified ancestors, is a split element */
+    boolean matches(List<String> ancestors, String name) {
+        if (!equal(names[names.length - 1], name)) return false;
+        if (names.length == 1) return true;
+        if (ancestors.size() != names.length - 1) return false;
+
+        for (int i = 0; i < ancestors.size(); i++)
+            if (!equal(names[i], ancestors.get(i))) return false;
+
+        return true;
+    }
+
+    private boolean equal(String expected, String name) {
+        return caseSensitive ? expected.equals(name) : expected.equalsIgnoreCase(name);
+    }
+
+    private Schema resolveName(Schema root) {
+        List<Schema> schemas = new ArrayList<>();
+        collectElementSchemas(root, names[0], schemas, Collections.newSetFromMap(new IdentityHashMap<Schema, Boolean>()));
+
+        if (schemas.isEmpty()) throw new ConverterException("No element " + names[0] + " in schema");
+        if (schemas.size() > 1) throw new ConverterException("Element " + names[0] + " has different types in schema, specify its path");
+        return schemas.get(0);
+    }
+
+    private void collectElementSchemas(Schema schema, String name, List<Schema> schemas, Set<Schema> visited) {
+        Schema record = unwrap(schema);
+        if (record.getType() != Schema.Type.RECORD || !visited.add(record)) return;
+
+        for (Schema.Field field : record.getFields()) {
+            String elementName = elementName(field);
+            if (elementName != null && equal(name, elementName)) {
+                Schema elementSchema = unwrap(field.schema());
+                if (!schemas.contains(elementSchema)) schemas.add(elementSchema);
+            }
+
+            collectElementSchemas(field.schema(), name, schemas, visited);
+        }
+    }
+
+    private Schema resolvePath(Schema root) {
+        Schema schema = unwrap(root);
+
+        // root of a single element schema is the root element itself
+        int start = 0;
+        if (!Source.DOCUMENT.equals(schema.getProp(Source.SOURCE))) start = 1;
+
+        for (int i = start; i < names.length; i++) {
+            Schema elementSchema = schema.getType() == Schema.Type.RECORD ? elementSchema(schema, names[i]) : null;
+            if (elementSchema == null) throw new ConverterException("No element " + Arrays.asList(names).subList(0, i + 1) + " in schema");
+            schema = elementSchema;
+        }
+
+        return schema;
+    }
+
+    /** Schema of the child element of the record, including elements of nested groups */
+    private Schema elementSchema(Schema record, String name) {
+        for (Schema.Field field : record.getFields()) {
+            String elementName = elementName(field);
+            if (elementName != null && equal(name, elementName)) return unwrap(field.schema());
+        }
+
+        for (Schema.Field field : record.getFields()) {
+            if (field.getProp(Source.SOURCE) != null) continue;
+
+            Schema group = unwrap(field.schema());
+            if (group.getType() != Schema.Type.RECORD) continue;
+
+            Schema elementSchema = elementSchema(group, name);
+            if (elementSchema != null) return elementSchema;
+        }
+
+        return null;
+    }
+
+    private static String elementName(Schema.Field field) {
+        String source = field.getProp(Source.SOURCE);
+        if (source == null || !source.startsWith(ELEMENT_PREFIX)) return null;
+        return source.substring(ELEMENT_PREFIX.length());
+    }
+
+    /** Schema of an element value: optional unions and arrays are unwrapped */
+    private static Schema unwrap(Schema schema) {
+        while (true) {
+            if (schema.getType() == Schema.Type.ARRAY) schema = schema.getElementType();
+            else if (schema.getType() == Schema.Type.UNION && schema.getTypes().size() == 2 && schema.getTypes().get(0).getType() == Schema.Type.NULL)
+                schema = schema.getTypes().get(1);
+            else return schema;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ly.stealth.xmlavro;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer of element or attribute text, so primitive values are parsed without intermediate Strings.
+ * Buffer is reused between values, so there is one buffer per thread.
+ */
+class TextBuffer implements CharSequence {
+    private static final ThreadLocal<TextBuffer> BUFFER = new ThreadLocal<TextBuffer>() {
+        @Override
+        protected TextBuffer initialValue() { return new TextBuffer(); }
+    };
+
+    static TextBuffer get() { return BUFFER.get(); }
+
+    private char[] chars = new char[64];
+    private int length;
+
+    TextBuffer clear() {
+        length = 0;
+        return this;
+    }
+
+    TextBuffer append(char[] src, int start, int count) {
+        ensureCapacity(length + count);
+        System.arraycopy(src, start, chars, length, count);
+        length += count;
+        return this;
+    }
+
+    TextBuffer set(String s) {
+        length = 0;
+        ensureCapacity(s.length());
+        s.getChars(0, s.length(), chars, 0);
+        length = s.length();
+        return this;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > chars.length)
+            chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+    }
+
+    char[] array() { return chars; }
+
+    @Override
+    public int length() { return length; }
+
+    @Override
+    public char charAt(int index) { return chars[index]; }
+
+    @Override
+    public CharSequence subSequence(int start, int end) { return new String(chars, start, end - start); }
+
+    @Override
+    public String toString() { return new String(chars, 0, length); }
+}
@@ -0,0 +1,169 @@
+package ly.stealth.xmlavro;
+
+/**
+ * Parses xsd numeric and boolean values from a char window, without creating Strings.
+ * Surrounding whitespace is collapsed, as xsd does for these types.
+ * Invalid values throw {@link NumberFormatException}, same as JDK parsers.
+ */
+class ValueParser {
+    // exactly representable powers of ten
+    private static final double[] DOUBLE_POWERS = new double[23];
+    private static final float[] FLOAT_POWERS = new float[11];
+    static {
+        DOUBLE_POWERS[0] = 1;
+        for (int i = 1; i < DOUBLE_POWERS.length; i++) DOUBLE_POWERS[i] = DOUBLE_POWERS[i - 1] * 10;
+
+        FLOAT_POWERS[0] = 1;
+        for (int i = 1; i < FLOAT_POWERS.length; i++) FLOAT_POWERS[i] = FLOAT_POWERS[i - 1] * 10;
+    }
+
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+    private static final long MAX_EXACT_FLOAT = 1L << 24;
+
+    static int parseInt(char[] chars, int start, int end) {
+        long value = parseLong(chars, start, end);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw invalid(chars, start, end);
+        return (int) value;
+    }
+
+    static long parseLong(char[] chars, int start, int end) {
+        while (start < end && DateTimeParser.isWhitespace(chars[start])) start++;
+        while (end > start && DateTimeParser.isWhitespace(chars[end - 1])) end--;
+
+        int p = start;
+        boolean negative = false;
+        if (p < end && (chars[p] == '-' || chars[p] == '+')) {
+            negative = chars[p] == '-';
+            p++;
+        }
+
+        if (p == end) throw invalid(chars, start, end);
+
+        // accumulate negatively, to reach Long.MIN_VALUE
+        long value = 0;
+        for (; p < end; p++) {
+            int digit = chars[p] - '0';
+            if (digit < 0 || digit > 9) throw invalid(chars, start, end);
+            if (value < (Long.MIN_VALUE + digit) / 10) throw invalid(chars, start, end);
+
+            value = value * 10 - digit;
+        }
+
+        if (!negative && value == Long.MIN_VALUE) throw invalid(chars, start, end);
+        return negative ? value : -value;
+    }
+
+    static boolean parseBoolean(char[] chars, int start, int end) {
+        while (start < end && DateTimeParser.isWhitespace(chars[start])) start++;
+        while (end > start && DateTimeParser.isWhitespace(chars[end - 1])) end--;
+
+        int length = end - start;
+        if (length == 1) return chars[start] == '1';
+        return length == 4 && chars[start] == 't' && chars[start + 1] == 'r' && chars[start + 2] == 'u' && chars[start + 3] == 'e';
+    }
+
+    static double parseDouble(char[] chars, int start, int end) {
+        return parseDecimal(chars, start, end, false);
+    }
+
+    static float parseFloat(char[] chars, int start, int end) {
+        return (float) parseDecimal(chars, start, end, true);
+    }
+
+    /**
+     * Values which mantissa and power of ten are exactly representable are computed with a single
+     * correctly rounded multiplication or division; others fall back to the JDK parser.
+     */
+    private static double parseDecimal(char[] chars, int start, int end, boolean floatValue) {
+        while (start < end && DateTimeParser.isWhitespace(chars[start])) start++;
+        while (end > start && DateTimeParser.isWhitespace(chars[end - 1])) end--;
+
+        int p = start;
+        boolean negative = false;
+        if (p < end && (chars[p] == '-' || chars[p] == '+')) {
+            negative = chars[p] == '-';
+            p++;
+        }
+
+        if (matches(chars, p, end, "INF")) return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        if (p == start && matches(chars, p, end, "NaN")) return Double.NaN;
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean exact = true;
+
+        int intStart = p;
+        for (; p < end && isDigit(chars[p]); p++) {
+            if (mantissa != 0 || chars[p] != '0') digits++;
+            mantissa = mantissa * 10 + chars[p] - '0';
+            if (digits > 18) exact = false;
+        }
+        boolean hasDigits = p > intStart;
+
+        if (p < end && chars[p] == '.') {
+            p++;
+            int fractionStart = p;
+            for (; p < end && isDigit(chars[p]); p++) {
+                if (mantissa != 0 || chars[p] != '0') digits++;
+                mantissa = mantissa * 10 + chars[p] - '0';
+                exponent--;
+                if (digits > 18) exact = false;
+            }
+            hasDigits |= p > fractionStart;
+        }
+
+        if (!hasDigits) return fallback(chars, start, end, floatValue);
+
+        if (p < end && (chars[p] == 'e' || chars[p] == 'E')) {
+            p++;
+            boolean negativeExponent = false;
+            if (p < end && (chars[p] == '-' || chars[p] == '+')) {
+                negativeExponent = chars[p] == '-';
+                p++;
+            }
+
+            int exponentStart = p;
+            int value = 0;
+            for (; p < end && isDigit(chars[p]); p++) {
+                value = value * 10 + chars[p] - '0';
+                if (value > 1000) exact = false;
+            }
+
+            if (p == exponentStart) return fallback(chars, start, end, floatValue);
+            exponent += negativeExponent ? -value : value;
+        }
+
+        if (p != end || !exact) return fallback(chars, start, end, floatValue);
+
+        if (floatValue) {
+            if (mantissa > MAX_EXACT_FLOAT || exponent < -10 || exponent > 10) return fallback(chars, start, end, true);
+            float value = exponent < 0 ? mantissa / FLOAT_POWERS[-exponent] : mantissa * FLOAT_POWERS[exponent];
+            return negative ? -value : value;
+        }
+
+        if (mantissa > MAX_EXACT_DOUBLE || exponent < -22 || exponent > 22) return fallback(chars, start, end, false);
+        double value = exponent < 0 ? mantissa / DOUBLE_POWERS[-exponent] : mantissa * DOUBLE_POWERS[exponent];
+        return negative ? -value : value;
+    }
+
+    private static double fallback(char[] chars, int start, int end, boolean floatValue) {
+        String s = new String(chars, start, end - start);
+        return floatValue ? Float.parseFloat(s) : Double.parseDouble(s);
+    }
+
+    private static boolean matches(char[] chars, int start, int end, String s) {
+        if (end - start != s.length()) return false;
+
+        for (int i = 0; i < s.length(); i++)
+            if (chars[start + i] != s.charAt(i)) return false;
+
+        return true;
+    }
+
+    private static boolean isDigit(char c) { return c >= '0' && c <= '9'; }
+
+    private static NumberFormatException invalid(char[] chars, int start, int end) {
+        return new NumberFormatException("For input string: \"" + new String(chars, start, end - start) + "\"");
+    }
+}
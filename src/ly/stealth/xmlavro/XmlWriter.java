@@ -0,0 +1,446 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.Decoder;
+
+import javax.xml.stream.*;
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Writes datums of a schema built by {@link SchemaBuilder} back as xml, using the sources of fields:
+ * attribute fields become attributes, element fields elements, entries of the wildcard field become
+ * elements with their stored content, items of nested group arrays become their elements.
+ * Datums are read either as objects or decoded from avro binary; either is streamed into an
+ * {@link XMLStreamWriter} without building a document.
+ * <p>
+ * Schema of a single root element doesn't keep the element name, so it's {@link #setRootElement(String) set}
+ * on the writer. Values are written in their canonical form: original formatting, order of wildcard elements
+ * and namespaces are not preserved. Writer is immutable once set up and can be shared between threads.
+ */
+public class XmlWriter {
+    private static final ThreadLocal<SimpleDateFormat> DATE_TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private static final String ELEMENT_PREFIX = "" + new Source("", false);
+    private static final String ATTRIBUTE_PREFIX = "" + new Source("", true);
+
+    private final Schema schema;
+    private final boolean document;
+    private final Map<Schema, FieldWriter[]> records = new IdentityHashMap<>();
+    private String rootElement;
+
+    public XmlWriter(Schema schema) {
+        this.schema = schema;
+        document = schema.getType() == Schema.Type.RECORD && Source.DOCUMENT.equals(schema.getProp(Source.SOURCE));
+        compile(schema);
+    }
+
+    public Schema getSchema() { return schema; }
+
+    /** Name of the root element, required unless the schema has several root elements */
+    public String getRootElement() { return rootElement; }
+    public void setRootElement(String rootElement) { this.rootElement = rootElement; }
+
+    /** Writes the datum as a utf-8 document */
+    public void write(Object datum, OutputStream out) {
+        XMLStreamWriter writer = createWriter(out);
+        try {
+            writer.writeStartDocument("UTF-8", "1.0");
+            write(datum, writer);
+            writer.writeEndDocument();
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        } finally {
+            close(writer);
+        }
+    }
+
+    /** Decodes a datum and writes it as a utf-8 document */
+    public void write(Decoder in, OutputStream out) {
+        XMLStreamWriter writer = createWriter(out);
+        try {
+            writer.writeStartDocument("UTF-8", "1.0");
+            write(in, writer);
+            writer.writeEndDocument();
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        } finally {
+            close(writer);
+        }
+    }
+
+    /** Writes the root element of the datum */
+    public void write(Object datum, XMLStreamWriter writer) {
+        try {
+            if (document) writeContent(schema, (GenericRecord) datum, writer);
+            else writeElement(rootElement(), schema, datum, writer);
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    /** Decodes a datum and writes its root element */
+    public void write(Decoder in, XMLStreamWriter writer) {
+        try {
+            if (document) readContent(schema, in, writer);
+            else readElement(rootElement(), schema, in, writer);
+        } catch (XMLStreamException | IOException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    private String rootElement() {
+        if (rootElement == null) throw new ConverterException("Root element name required for schema " + schema.getName());
+        return rootElement;
+    }
+
+    private static XMLStreamWriter createWriter(OutputStream out) {
+        try {
+            return OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    private static void close(XMLStreamWriter writer) {
+        try {
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new ConverterException(e);
+        }
+    }
+
+    private void compile(Schema schema) {
+        switch (schema.getType()) {
+            case UNION:
+                for (Schema type : schema.getTypes()) compile(type);
+                break;
+            case ARRAY:
+                compile(schema.getElementType());
+                break;
+            case RECORD:
+                if (records.containsKey(schema)) return;
+
+                List<FieldWriter> fields = new ArrayList<>();
+                records.put(schema, null);
+
+                for (Schema.Field field : schema.getFields()) {
+                    String source = field.getProp(Source.SOURCE);
+                    FieldWriter writer;
+
+                    if (source != null && source.startsWith(ATTRIBUTE_PREFIX))
+                        writer = new FieldWriter(FieldWriter.ATTRIBUTE, source.substring(ATTRIBUTE_PREFIX.length()), field);
+                    else if (source != null && source.startsWith(ELEMENT_PREFIX))
+                        writer = new FieldWriter(FieldWriter.ELEMENT, source.substring(ELEMENT_PREFIX.length()), field);
+                    else if (field.name().equals(Source.WILDCARD))
+                        writer = new FieldWriter(FieldWriter.WILDCARD, null, field);
+                    else
+                        writer = new FieldWriter(FieldWriter.GROUP, null, field);
+
+                    fields.add(writer);
+                    compile(field.schema());
+                }
+
+                records.put(schema, fields.toArray(new FieldWriter[fields.size()]));
+                break;
+        }
+    }
+
+    /** Field of a record with the way it's written */
+    private static class FieldWriter {
+        static final int ATTRIBUTE = 0;
+        static final int ELEMENT = 1;
+        static final int WILDCARD = 2;
+        // array of nested group records, items are written as their element fields
+        static final int GROUP = 3;
+
+        final int kind;
+        final String name;
+        final int pos;
+        final Schema schema;
+
+        FieldWriter(int kind, String name, Schema.Field field) {
+            this.kind = kind;
+            this.name = name;
+            pos = field.pos();
+            schema = field.schema();
+        }
+    }
+
+    // datums
+
+    private void writeElement(String name, Schema schema, Object datum, XMLStreamWriter writer) throws XMLStreamException {
+        switch (schema.getType()) {
+            case UNION:
+                if (datum != null) writeElement(name, valueType(schema), datum, writer);
+                break;
+            case ARRAY:
+                for (Object item : (Collection<?>) datum)
+                    writeElement(name, schema.getElementType(), item, writer);
+                break;
+            case RECORD:
+                writer.writeStartElement(name);
+                writeContent(schema, (GenericRecord) datum, writer);
+                writer.writeEndElement();
+                break;
+            default:
+                writer.writeStartElement(name);
+                writer.writeCharacters(text(schema, datum));
+                writer.writeEndElement();
+        }
+    }
+
+    /** Attributes and child elements of a record, written into the current element */
+    private void writeContent(Schema schema, GenericRecord record, XMLStreamWriter writer) throws XMLStreamException {
+        for (FieldWriter field : records.get(schema)) {
+            Object value = record.get(field.pos);
+
+            switch (field.kind) {
+                case FieldWriter.ATTRIBUTE:
+                    if (value != null) writer.writeAttribute(field.name, text(valueType(field.schema), value));
+                    break;
+                case FieldWriter.ELEMENT:
+                    writeElement(field.name, field.schema, value, writer);
+                    break;
+                case FieldWriter.WILDCARD:
+                    if (value != null)
+                        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                            writeWildcard("" + entry.getKey(), "" + entry.getValue(), writer);
+                    break;
+                case FieldWriter.GROUP:
+                    writeGroup(field.schema, value, writer);
+                    break;
+            }
+        }
+    }
+
+    private void writeGroup(Schema schema, Object datum, XMLStreamWriter writer) throws XMLStreamException {
+        switch (schema.getType()) {
+            case UNION:
+                if (datum != null) writeGroup(valueType(schema), datum, writer);
+                break;
+            case ARRAY:
+                for (Object item : (Collection<?>) datum)
+                    writeGroup(schema.getElementType(), item, writer);
+                break;
+            case RECORD:
+                writeContent(schema, (GenericRecord) datum, writer);
+                break;
+            default:
+                throw new ConverterException("Unsupported group type " + schema.getType());
+        }
+    }
+
+    // decoded datums
+
+    private void readElement(String name, Schema schema, Decoder in, XMLStreamWriter writer) throws XMLStreamException, IOException {
+        switch (schema.getType()) {
+            case UNION:
+                if (readIndex(schema, in) != 0) readElement(name, valueType(schema), in, writer);
+                break;
+            case ARRAY:
+                for (long count = in.readArrayStart(); count != 0; count = in.arrayNext())
+                    for (long i = 0; i < count; i++)
+                        readElement(name, schema.getElementType(), in, writer);
+                break;
+            case RECORD:
+                writer.writeStartElement(name);
+                readContent(schema, in, writer);
+                writer.writeEndElement();
+                break;
+            default:
+                writer.writeStartElement(name);
+                writer.writeCharacters(readText(schema, in));
+                writer.writeEndElement();
+        }
+    }
+
+    private void readContent(Schema schema, Decoder in, XMLStreamWriter writer) throws XMLStreamException, IOException {
+        for (FieldWriter field : records.get(schema)) {
+            switch (field.kind) {
+                case FieldWriter.ATTRIBUTE:
+                    Schema type = field.schema;
+                    if (type.getType() == Schema.Type.UNION) {
+                        if (readIndex(type, in) == 0) break;
+                        type = valueType(type);
+                    }
+
+                    writer.writeAttribute(field.name, readText(type, in));
+                    break;
+                case FieldWriter.ELEMENT:
+                    readElement(field.name, field.schema, in, writer);
+                    break;
+                case FieldWriter.WILDCARD:
+                    for (long count = in.readMapStart(); count != 0; count = in.mapNext())
+                        for (long i = 0; i < count; i++)
+                            writeWildcard(in.readString(), in.readString(), writer);
+                    break;
+                case FieldWriter.GROUP:
+                    readGroup(field.schema, in, writer);
+                    break;
+            }
+        }
+    }
+
+    private void readGroup(Schema schema, Decoder in, XMLStreamWriter writer) throws XMLStreamException, IOException {
+        switch (schema.getType()) {
+            case UNION:
+                if (readIndex(schema, in) != 0) readGroup(valueType(schema), in, writer);
+                break;
+            case ARRAY:
+                for (long count = in.readArrayStart(); count != 0; count = in.arrayNext())
+                    for (long i = 0; i < count; i++)
+                        readGroup(schema.getElementType(), in, writer);
+                break;
+            case RECORD:
+                readContent(schema, in, writer);
+                break;
+            default:
+                throw new ConverterException("Unsupported group type " + schema.getType());
+        }
+    }
+
+    private static int readIndex(Schema union, Decoder in) throws IOException {
+        valueType(union);
+        return in.readIndex();
+    }
+
+    private static String readText(Schema schema, Decoder in) throws IOException {
+        switch (schema.getType()) {
+            case STRING: return in.readString();
+            case INT: return Integer.toString(in.readInt());
+            case LONG:
+                long value = in.readLong();
+                return isDateTime(schema) ? formatDateTime(value) : Long.toString(value);
+            case FLOAT: return formatFloat(in.readFloat());
+            case DOUBLE: return formatDouble(in.readDouble());
+            case BOOLEAN: return Boolean.toString(in.readBoolean());
+            default: throw new ConverterException("Unsupported value type " + schema.getType());
+        }
+    }
+
+    // values
+
+    /** Value type of an optional union */
+    private static Schema valueType(Schema union) {
+        List<Schema> types = union.getTypes();
+        if (types.size() != 2 || types.get(0).getType() != Schema.Type.NULL)
+            throw new ConverterException("Unsupported union types " + types);
+
+        return types.get(1);
+    }
+
+    private static String text(Schema schema, Object value) {
+        switch (schema.getType()) {
+            case LONG: return isDateTime(schema) ? formatDateTime((Long) value) : value.toString();
+            case FLOAT: return formatFloat((Float) value);
+            case DOUBLE: return formatDouble((Double) value);
+            case STRING:
+            case INT:
+            case BOOLEAN:
+                return value.toString();
+            default: throw new ConverterException("Unsupported value type " + schema.getType());
+        }
+    }
+
+    private static boolean isDateTime(Schema schema) {
+        return SchemaBuilder.TIMESTAMP_MILLIS.equals(schema.getProp(SchemaBuilder.LOGICAL_TYPE));
+    }
+
+    /** UTC date time, with millis only if there are any */
+    private static String formatDateTime(long millis) {
+        String text = DATE_TIME_FORMAT.get().format(new Date(millis));
+        return millis % 1000 == 0 ? text.substring(0, text.length() - 5) + "Z" : text;
+    }
+
+    private static String formatDouble(double value) {
+        if (Double.isInfinite(value)) return value > 0 ? "INF" : "-INF";
+        return Double.toString(value);
+    }
+
+    private static String formatFloat(float value) {
+        if (Float.isInfinite(value)) return value > 0 ? "INF" : "-INF";
+        return Float.toString(value);
+    }
+
+    // wildcards
+
+    /** Writes the wildcard element with its stored content, which is a serialized xml fragment */
+    private static void writeWildcard(String name, String content, XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartElement(name);
+
+        if (!content.isEmpty()) {
+            XMLStreamReader reader = DatumBuilder.createStreamReader(new StringReader("<w>" + content + "</w>"));
+            try {
+                reader.nextTag();
+                copyContent(reader, writer);
+            } finally {
+                reader.close();
+            }
+        }
+
+        writer.writeEndElement();
+    }
+
+    /** Copies content of the current element; leaves reader at the element end */
+    private static void copyContent(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    writeStartElement(reader, writer);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (--depth > 0) writer.writeEndElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(reader.getText());
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+            }
+        }
+    }
+
+    private static void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        String prefix = reader.getPrefix();
+        String namespace = reader.getNamespaceURI();
+
+        if (namespace == null || namespace.isEmpty()) writer.writeStartElement(reader.getLocalName());
+        else writer.writeStartElement(prefix != null ? prefix : "", reader.getLocalName(), namespace);
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String nsPrefix = reader.getNamespacePrefix(i);
+            if (nsPrefix == null || nsPrefix.isEmpty()) writer.writeDefaultNamespace(reader.getNamespaceURI(i));
+            else writer.writeNamespace(nsPrefix, reader.getNamespaceURI(i));
+        }
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attrNamespace = reader.getAttributeNamespace(i);
+            if (attrNamespace == null || attrNamespace.isEmpty())
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            else
+                writer.writeAttribute(reader.getAttributePrefix(i), attrNamespace, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+    }
+}
@@ -20,45 +20,43 @@ import org.apache.avro.Protocol;
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileReader;
 import org.apache.avro.file.DataFileWriter;
-import org.apache.avro.generic.GenericArray;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.DatumReader;
 import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.specific.SpecificDatumWriter;
-import org.apache.avro.util.Utf8;
 import org.w3c.dom.*;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+import java.util.*;
 
 public class Converter {
-    private static Protocol protocol;
-    static {
+    private static Protocol protocol = loadProtocol("xml.avsc");
+    // names of elements and attributes are indexes in a table of names
+    private static Protocol namesProtocol = loadProtocol("xml-names.avsc");
+    private static Protocol indexProtocol = loadProtocol("index.avsc");
+
+    private static Protocol loadProtocol(String name) {
         try {
-            InputStream stream = Converter.class.getResourceAsStream("xml.avsc");
-            if (stream == null) throw new IllegalStateException("Classpath should include xml.avsc");
+            InputStream stream = Converter.class.getResourceAsStream(name);
+            if (stream == null) throw new IllegalStateException("Classpath should include " + name);
 
-            protocol = Protocol.parse(stream);
+            return Protocol.parse(stream);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    static Schema elementSchema() { return protocol.getType("Element"); }
+    static Schema namesElementSchema() { return namesProtocol.getType("Element"); }
+    static Schema indexNodeSchema() { return indexProtocol.getType("Node"); }
+
     public static void xmlToAvro(File xmlFile, File avroFile) throws IOException, SAXException {
         Schema schema = protocol.getType("Element");
 
@@ -71,6 +69,80 @@ public class Converter {
         }
     }
 
+    /**
+     * Converts the xml file with StAX, writing each element at the split depth (root is at 0) as its own record,
+     * so memory is bounded by an element rather than the document. Elements above the split depth are
+     * kept in file metadata, so {@link #avroToXml(File, File)} reassembles the document.
+     */
+    public static void xmlToAvro(File xmlFile, File avroFile, int splitDepth) throws IOException {
+        xmlToAvro(xmlFile, avroFile, splitDepth, false);
+    }
+
+    /**
+     * Converts as {@link #xmlToAvro(File, File, int)}; with a table of names, records are written with the schema
+     * of xml-names.avsc, referring to element and attribute names by their index in a table kept in file metadata.
+     */
+    public static void xmlToAvro(File xmlFile, File avroFile, int splitDepth, boolean nameTable) throws IOException {
+        Options options = new Options();
+        options.setSplitDepth(splitDepth);
+        options.setNameTable(nameTable);
+        xmlToAvro(xmlFile, avroFile, options);
+    }
+
+    /** Converts as {@link #xmlToAvro(File, File, int)}, with the options */
+    public static void xmlToAvro(File xmlFile, File avroFile, Options options) throws IOException {
+        try {
+            new Splitter(protocol, namesProtocol, options).split(xmlFile, avroFile);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** Options of the StAX conversion to avro */
+    public static class Options {
+        private int splitDepth;
+        private boolean nameTable;
+        private boolean compact;
+        private Set<String> preserveWhitespace = new HashSet<>();
+        private int indexDepth = -1;
+
+        /** Depth of elements written as records; root is at 0 */
+        public int getSplitDepth() { return splitDepth; }
+        public void setSplitDepth(int splitDepth) {
+            if (splitDepth < 0) throw new IllegalArgumentException("Invalid split depth " + splitDepth);
+            this.splitDepth = splitDepth;
+        }
+
+        /** Whether records refer to names by their index in a table of names, with the schema of xml-names.avsc */
+        public boolean isNameTable() { return nameTable; }
+        public void setNameTable(boolean nameTable) { this.nameTable = nameTable; }
+
+        /**
+         * Whether whitespace-only text is dropped, except in elements preserving whitespace, and namespaces
+         * are declared once, in a table of file metadata, rather than on elements. Result is the same document,
+         * as far as xml without a DTD tells, but not the same text.
+         */
+        public boolean isCompact() { return compact; }
+        public void setCompact(boolean compact) { this.compact = compact; }
+
+        /**
+         * Qualified names of elements keeping whitespace-only text in compact mode, along with their descendants,
+         * besides elements of {@code xml:space="preserve"}
+         */
+        public Set<String> getPreserveWhitespace() { return Collections.unmodifiableSet(preserveWhitespace); }
+        public void setPreserveWhitespace(Collection<String> names) { preserveWhitespace = new HashSet<>(names); }
+
+        /**
+         * Depth down to which paths of elements, from the split depth on, are indexed in a sidecar file,
+         * {@link PathIndex#indexFile(File)}; -1 for no index
+         */
+        public int getIndexDepth() { return indexDepth; }
+        public void setIndexDepth(int indexDepth) {
+            if (indexDepth < -1) throw new IllegalArgumentException("Invalid index depth " + indexDepth);
+            this.indexDepth = indexDepth;
+        }
+    }
+
     private static GenericData.Record wrapElement(Element el) {
         GenericData.Record record = new GenericData.Record(protocol.getType("Element"));
         record.put("name", el.getNodeName());
@@ -116,78 +188,94 @@ public class Converter {
         }
     }
 
+    /**
+     * Writes all records of the file, in order, decoding them straight into utf-8 xml; a split file
+     * is reassembled into its document. Files of several records written otherwise result in a sequence
+     * of root elements.
+     */
     public static void avroToXml(File avroFile, File xmlFile) throws IOException {
-        DatumReader<GenericRecord> datumReader = new GenericDatumReader<>(protocol.getType("Element"));
-        DataFileReader<GenericRecord> dataFileReader = new DataFileReader<>(avroFile, datumReader);
-
-        GenericRecord record = dataFileReader.next();
+        try (DataFileReader<Object> reader = new DataFileReader<>(avroFile, new GenericDatumReader<>());
+             OutputStream stream = new FileOutputStream(xmlFile)) {
+            XmlOutput out = new XmlOutput(stream);
+            ElementWriter elementWriter = new ElementWriter(out);
 
-        Document doc;
-        try {
-            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException(e);
-        }
-
-        Element el = unwrapElement(record, doc);
-        doc.appendChild(el);
-
-        saveDocument(doc, xmlFile);
-    }
+            byte[] skeleton = reader.getMeta(Splitter.SKELETON);
+            elementWriter.readFormat(reader.getSchema(), reader.getMeta(Splitter.NAMES), reader.getMeta(Splitter.NAMESPACES), skeleton != null);
 
-    private static Element unwrapElement(GenericRecord record, Document doc) {
-        String name = "" + record.get("name");
-        Element el = doc.createElement(name);
+            out.declaration();
 
-        @SuppressWarnings("unchecked")
-        GenericArray<GenericRecord> attrArray = (GenericArray<GenericRecord>) record.get("attributes");
-        for (GenericRecord attrRecord : attrArray)
-            el.setAttributeNode(unwrapAttr(attrRecord, doc));
+            ElementWriter.Records records = elementWriter.records(reader);
+            if (skeleton != null) {
+                GenericRecord root = new GenericDatumReader<GenericRecord>(elementSchema()).read(null, DecoderFactory.get().binaryDecoder(skeleton, null));
+                elementWriter.writeSkeleton(root, records);
+            } else
+                ElementWriter.writeAll(records);
 
-        @SuppressWarnings("unchecked")
-        GenericArray<Object> childArray = (GenericArray<Object>) record.get("children");
-        for (Object childObj : childArray) {
-            if (childObj instanceof GenericRecord)
-                el.appendChild(unwrapElement((GenericRecord) childObj, doc));
-
-            if (childObj instanceof Utf8)
-                el.appendChild(doc.createTextNode("" + childObj));
+            out.flush();
         }
-
-        return el;
     }
 
-    private static Attr unwrapAttr(GenericRecord record, Document doc) {
-        Attr attr = doc.createAttribute("" + record.get("name"));
-        attr.setValue("" + record.get("value"));
-        return attr;
-    }
+    public static void main(String[] args) throws IOException, SAXException {
+        String conversion = args.length > 0 ? args[0] : null;
+        int splitDepth = -1;
+        boolean nameTable = false;
+        boolean compact = false;
+        List<String> preserveWhitespace = new ArrayList<>();
+        int indexDepth = -1;
+        String path = null;
+        List<String> files = new ArrayList<>();
 
-    private static void saveDocument(Document doc, File file) {
-        try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.transform(new DOMSource(doc), new StreamResult(file));
-        } catch (TransformerException e) {
-            throw new RuntimeException(e);
+        boolean valid = Arrays.asList("xml", "avro").contains(conversion);
+        for (int i = 1; i < args.length && valid; i++) {
+            if (args[i].equals("--splitDepth") && conversion.equals("avro") && i + 1 < args.length) {
+                try { splitDepth = Integer.parseInt(args[++i]); }
+                catch (NumberFormatException e) { valid = false; }
+                valid &= splitDepth >= 0;
+            } else if (args[i].equals("--nameTable") && conversion.equals("avro")) {
+                nameTable = true;
+            } else if (args[i].equals("--compact") && conversion.equals("avro")) {
+                compact = true;
+            } else if (args[i].equals("--preserveWhitespace") && conversion.equals("avro") && i + 1 < args.length) {
+                preserveWhitespace.addAll(Arrays.asList(args[++i].split(",")));
+            } else if (args[i].equals("--indexDepth") && conversion.equals("avro") && i + 1 < args.length) {
+                try { indexDepth = Integer.parseInt(args[++i]); }
+                catch (NumberFormatException e) { valid = false; }
+                valid &= indexDepth >= 0;
+            } else if (args[i].equals("--path") && conversion.equals("xml") && i + 1 < args.length) {
+                path = args[++i];
+            } else
+                files.add(args[i]);
         }
-    }
 
-    public static void main(String[] args) throws IOException, SAXException {
-        if (args.length != 3 || !Arrays.asList("xml", "avro").contains(args[0])) {
-            System.out.println("Usage: \n {xml|avro} input-file output-file\n");
+        if (!valid || files.size() != 2) {
+            System.out.println("Usage: \n {xml|avro} input-file output-file\n avro {--splitDepth <depth>} {--nameTable} {--compact {--preserveWhitespace <name,...>}} {--indexDepth <depth>} input-file output-file\n xml --path <path> input-file output-file\n");
             System.exit(1);
         }
 
-        File inputFile = new File(args[1]);
-        File outputFile = new File(args[2]);
+        File inputFile = new File(files.get(0));
+        File outputFile = new File(files.get(1));
 
-        String conversion = args[0];
         switch (conversion) {
             case "xml":
-                avroToXml(inputFile, outputFile);
+                if (path != null) {
+                    try (PathIndex index = new PathIndex(inputFile);
+                         OutputStream stream = new FileOutputStream(outputFile)) {
+                        index.extract(path, stream);
+                    }
+                } else
+                    avroToXml(inputFile, outputFile);
                 break;
             case "avro":
-                xmlToAvro(inputFile, outputFile);
+                if (splitDepth != -1 || nameTable || compact || indexDepth != -1) {
+                    Options options = new Options();
+                    options.setSplitDepth(Math.max(splitDepth, 0));
+                    options.setNameTable(nameTable);
+                    options.setCompact(compact);
+                    options.setPreserveWhitespace(preserveWhitespace);
+                    options.setIndexDepth(indexDepth);
+                    xmlToAvro(inputFile, outputFile, options);
+                } else
+                    xmlToAvro(inputFile, outputFile);
                 break;
         }
     }
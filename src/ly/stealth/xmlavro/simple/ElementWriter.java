@@ -0,0 +1,295 @@
+package ly.stealth.xmlavro.simple;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.util.Utf8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes Element records as xml, without building a document.
+ * Records of a container file are decoded from its blocks straight into {@link XmlOutput}, without datum objects,
+ * so memory is bounded by a block. Strings are decoded into reused {@link Utf8}s and their bytes copied as they are;
+ * names are looked up in a cache of their bytes per unique name, or, for files of xml-names.avsc, in the table of names.
+ * Namespaces of the table of a compact file are declared on the root element: of the skeleton, if any, else of each record.
+ */
+class ElementWriter {
+    private static final int ELEMENT_CHILD = 0;
+    // names beyond it are not cached, for documents of generated names
+    private static final int MAX_CACHED_NAMES = 4096;
+
+    private final XmlOutput out;
+
+    // table of names, unless names are written in records
+    private byte[][] names;
+    private final Map<Utf8, byte[]> nameCache = new HashMap<>();
+
+    // declarations of the table of namespaces, as name and value pairs
+    private byte[][] namespaces = new byte[0][];
+    private boolean declareOnRecords;
+    private int depth;
+
+    private BinaryDecoder in;
+    private long remaining;
+    private Utf8 name = new Utf8();
+    private Utf8 value = new Utf8();
+
+    ElementWriter(XmlOutput out) { this.out = out; }
+
+    /** Source of records, written one by one */
+    interface Records {
+        /** Writes the next record; false if there are no more records */
+        boolean writeNext() throws IOException;
+    }
+
+    /** Records decoded from the file in order, once set up for its format */
+    Records records(final DataFileStream<?> file) {
+
+        return new Records() {
+            public boolean writeNext() throws IOException {
+                if (remaining == 0) {
+                    if (!file.hasNext()) return false;
+
+                    remaining = file.getBlockCount();
+                    startBlock(file.nextBlock());
+                }
+
+                writeRecord();
+                remaining--;
+                return true;
+            }
+        };
+    }
+
+    /** Writes all records one after another */
+    static void writeAll(Records records) throws IOException {
+        while (records.writeNext());
+    }
+
+    /** Writes the skeleton of a split file, taking records of its placeholders from the records */
+    void writeSkeleton(GenericRecord element, Records records) throws IOException {
+        writeSkeletonElement(element, records);
+        if (records.writeNext()) throw new IllegalStateException("More records than the skeleton refers to");
+    }
+
+    private void writeSkeletonElement(GenericRecord element, Records records) throws IOException {
+        String name = "" + element.get("name");
+        List<?> children = (List<?>) element.get("children");
+
+        if (name.isEmpty()) {
+            GenericRecord count = (GenericRecord) ((List<?>) element.get("attributes")).get(0);
+            byte[] text = children.isEmpty() ? null : bytes(children.get(0));
+
+            for (int i = Integer.parseInt("" + count.get("value")); i > 0; i--) {
+                if (!records.writeNext()) throw new IllegalStateException("Less records than the skeleton refers to");
+                if (text != null) out.text(text, text.length);
+            }
+            return;
+        }
+
+        out.startElement(bytes(name));
+        if (depth++ == 0) declareNamespaces();
+
+        for (Object attribute : (List<?>) element.get("attributes")) {
+            GenericRecord record = (GenericRecord) attribute;
+            byte[] attributeValue = bytes(record.get("value"));
+            out.attribute(bytes(record.get("name")), attributeValue, attributeValue.length);
+        }
+
+        for (Object child : children) {
+            if (child instanceof GenericRecord) {
+                writeSkeletonElement((GenericRecord) child, records);
+            } else {
+                byte[] text = bytes(child);
+                out.text(text, text.length);
+            }
+        }
+
+        out.endElement();
+        depth--;
+    }
+
+    private static byte[] bytes(Object value) { return ("" + value).getBytes(XmlOutput.UTF8); }
+
+    /**
+     * Sets up decoding of records of a file of the schema, with the tables of names and namespaces of the file, if any;
+     * namespaces are declared on records, unless the file has a skeleton
+     */
+    void readFormat(Schema schema, byte[] nameTable, byte[] namespaceTable, boolean skeleton) {
+        if (schema.equals(Converter.elementSchema())) {
+            names = null;
+        } else {
+            if (!schema.equals(Converter.namesElementSchema()) || nameTable == null)
+                throw new IllegalStateException("File schema is not " + schema.getFullName() + " of xml.avsc or xml-names.avsc");
+
+            names = lines(nameTable);
+        }
+
+        namespaces = new byte[0][];
+        if (namespaceTable != null) {
+            byte[][] lines = lines(namespaceTable);
+
+            namespaces = new byte[lines.length * 2][];
+            for (int i = 0; i < lines.length; i++) {
+                String line = new String(lines[i], XmlOutput.UTF8);
+                int separator = line.indexOf('=');
+                if (separator == -1) throw new IllegalStateException("Invalid namespace " + line);
+
+                String prefix = line.substring(0, separator);
+                namespaces[i * 2] = bytes(prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix);
+                namespaces[i * 2 + 1] = bytes(line.substring(separator + 1));
+            }
+        }
+
+        declareOnRecords = !skeleton;
+    }
+
+    private static byte[][] lines(byte[] table) {
+        String[] lines = new String(table, XmlOutput.UTF8).split("\n", -1);
+
+        byte[][] bytes = new byte[lines.length][];
+        for (int i = 0; i < lines.length; i++) bytes[i] = bytes(lines[i]);
+        return bytes;
+    }
+
+    private void declareNamespaces() throws IOException {
+        for (int i = 0; i < namespaces.length; i += 2)
+            out.attribute(namespaces[i], namespaces[i + 1], namespaces[i + 1].length);
+    }
+
+    private byte[] readName() throws IOException {
+        if (names != null) {
+            int index = in.readInt();
+            if (index < 0 || index >= names.length) throw new IllegalStateException("Invalid name index " + index);
+            return names[index];
+        }
+
+        name = in.readString(name);
+
+        byte[] bytes = nameCache.get(name);
+        if (bytes == null) {
+            bytes = new byte[name.getByteLength()];
+            System.arraycopy(name.getBytes(), 0, bytes, 0, bytes.length);
+            if (nameCache.size() < MAX_CACHED_NAMES) nameCache.put(new Utf8(bytes), bytes);
+        }
+
+        return bytes;
+    }
+
+    /** Starts decoding records of the block */
+    void startBlock(ByteBuffer block) {
+        in = DecoderFactory.get().binaryDecoder(block.array(), block.arrayOffset() + block.position(), block.remaining(), in);
+    }
+
+    /** Decodes and writes the next record of the block */
+    void writeRecord() throws IOException {
+        out.startElement(readName());
+        if (declareOnRecords) declareNamespaces();
+        writeContent();
+    }
+
+    /** Decodes the next record of the block without writing it */
+    void skipRecord() throws IOException { skipElement(); }
+
+    /**
+     * Decodes the next record of the block down to the element at the positions of children, writing only that
+     * element, with the namespaces of the table and the namespaces given declared on it
+     */
+    void writeSubtree(int[] positions, Map<String, String> namespaces) throws IOException {
+        for (int position : positions) skipToChild(position);
+
+        out.startElement(readName());
+        declareNamespaces();
+        for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+            byte[] uri = bytes(namespace.getValue());
+            out.attribute(bytes(namespace.getKey().isEmpty() ? "xmlns" : "xmlns:" + namespace.getKey()), uri, uri.length);
+        }
+
+        writeContent();
+    }
+
+    /** Decodes the element up to its child element at the position */
+    private void skipToChild(int position) throws IOException {
+        skipName();
+        skipAttributes();
+
+        int index = 0;
+        for (long count = in.readArrayStart(); count != 0; count = in.arrayNext()) {
+            for (long i = 0; i < count; i++, index++) {
+                boolean element = in.readIndex() == ELEMENT_CHILD;
+
+                if (index == position) {
+                    if (!element) throw new IllegalStateException("No element at position " + position);
+                    return;
+                }
+
+                if (element) skipElement();
+                else in.skipString();
+            }
+        }
+
+        throw new IllegalStateException("No child at position " + position);
+    }
+
+    private void skipElement() throws IOException {
+        skipName();
+        skipAttributes();
+
+        for (long count = in.readArrayStart(); count != 0; count = in.arrayNext()) {
+            for (long i = 0; i < count; i++) {
+                if (in.readIndex() == ELEMENT_CHILD) skipElement();
+                else in.skipString();
+            }
+        }
+    }
+
+    private void skipAttributes() throws IOException {
+        for (long count = in.readArrayStart(); count != 0; count = in.arrayNext()) {
+            for (long i = 0; i < count; i++) {
+                skipName();
+                in.skipString();
+            }
+        }
+    }
+
+    private void skipName() throws IOException {
+        if (names != null) in.readInt();
+        else in.skipString();
+    }
+
+    /** Decodes an Element record in schema order: name, attributes, children */
+    private void writeElement() throws IOException {
+        out.startElement(readName());
+        writeContent();
+    }
+
+    private void writeContent() throws IOException {
+        for (long count = in.readArrayStart(); count != 0; count = in.arrayNext()) {
+            for (long i = 0; i < count; i++) {
+                byte[] attribute = readName();
+                value = in.readString(value);
+                out.attribute(attribute, value.getBytes(), value.getByteLength());
+            }
+        }
+
+        for (long count = in.readArrayStart(); count != 0; count = in.arrayNext()) {
+            for (long i = 0; i < count; i++) {
+                if (in.readIndex() == ELEMENT_CHILD) {
+                    writeElement();
+                } else {
+                    value = in.readString(value);
+                    out.text(value.getBytes(), value.getByteLength());
+                }
+            }
+        }
+
+        out.endElement();
+    }
+}
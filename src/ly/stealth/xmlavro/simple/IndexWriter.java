@@ -0,0 +1,231 @@
+package ly.stealth.xmlavro.simple;
+
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Writes the {@link PathIndex} of a file along with its records. A node of index.avsc is written for each element
+ * down to the index depth once it ends, after nodes of its children, followed by the offsets of its children per name;
+ * the node of the document, with the root as its child, comes last, followed by its offset. An index of a document
+ * not read to its end is deleted.
+ * <p>
+ * Blocks of the file are ended here, as the file writer does not tell where a record goes: at the default sync interval,
+ * same as the file writer, so once it ends a block itself, ending it here writes nothing and tells where the next starts.
+ */
+class IndexWriter implements Closeable {
+    private final int splitDepth;
+    private final int indexDepth;
+    // namespaces declared on the root by xml conversion
+    private final Map<String, String> namespaceTable;
+
+    private final File indexFile;
+    private final Output out;
+    private final BinaryEncoder encoder;
+
+    private final DatumWriter<GenericRecord> recordWriter;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private BinaryEncoder recordEncoder;
+
+    // nodes of open elements, after the node of the document
+    private final List<Node> nodes = new ArrayList<>();
+    private int level;
+    private final List<Integer> positions = new ArrayList<>();
+
+    private long block;
+    private int blockRecords;
+    private long blockBytes;
+    private boolean complete;
+
+    IndexWriter(File indexFile, DatumWriter<GenericRecord> recordWriter, int splitDepth, int indexDepth, Map<String, String> namespaceTable) throws IOException {
+        this.recordWriter = recordWriter;
+        this.splitDepth = splitDepth;
+        this.indexDepth = indexDepth;
+        this.namespaceTable = namespaceTable != null ? namespaceTable : Collections.<String, String>emptyMap();
+
+        this.indexFile = indexFile;
+        out = new Output(new FileOutputStream(indexFile));
+        encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        nodes.add(new Node(null, -1, Collections.<String, String>emptyMap()));
+    }
+
+    /** Starts indexing records of the file, created with the default sync interval */
+    void start(DataFileWriter<GenericRecord> fileWriter) throws IOException { block = fileWriter.sync(); }
+
+    /** Element at the reader start; position among children of its parent, if within a record */
+    void startElement(XMLStreamReader reader, int position) {
+        if (level > indexDepth) {
+            level++;
+            return;
+        }
+
+        if (level > splitDepth) positions.add(position);
+        String name = Splitter.qualifiedName(reader.getPrefix(), reader.getLocalName());
+        nodes.add(new Node(name, level >= splitDepth ? block : -1, namespaces(reader)));
+        level++;
+    }
+
+    void endElement() throws IOException {
+        level--;
+        if (level > indexDepth) return;
+
+        Node node = nodes.remove(nodes.size() - 1);
+        nodes.get(nodes.size() - 1).addChild(node.name, writeNode(node));
+
+        if (level > splitDepth) positions.remove(positions.size() - 1);
+    }
+
+    /** Namespaces declared by the element, unless declared by the table instead */
+    private Map<String, String> namespaces(XMLStreamReader reader) {
+        if (reader.getNamespaceCount() == 0) return Collections.emptyMap();
+
+        Map<String, String> namespaces = new LinkedHashMap<>();
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = Splitter.prefix(reader.getNamespacePrefix(i));
+            if (!reader.getNamespaceURI(i).equals(namespaceTable.get(prefix))) namespaces.put(prefix, reader.getNamespaceURI(i));
+        }
+
+        return namespaces;
+    }
+
+    /** Writes offsets of children of the node, then the node in schema order; returns its offset */
+    private long writeNode(Node node) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        for (Node.Children children : node.children.values()) {
+            offsets.add(out.position);
+            for (int i = 0; i < children.count; i++) out.writeLong(children.offsets[i]);
+        }
+
+        long offset = out.position;
+        encoder.writeLong(node.block);
+        encoder.writeInt(node.record);
+
+        List<Integer> nodePositions = node.block != -1 ? positions : Collections.<Integer>emptyList();
+        encoder.writeArrayStart();
+        encoder.setItemCount(nodePositions.size());
+        for (int position : nodePositions) {
+            encoder.startItem();
+            encoder.writeInt(position);
+        }
+        encoder.writeArrayEnd();
+
+        encoder.writeMapStart();
+        encoder.setItemCount(node.namespaces.size());
+        for (Map.Entry<String, String> namespace : node.namespaces.entrySet()) {
+            encoder.startItem();
+            encoder.writeString(namespace.getKey());
+            encoder.writeString(namespace.getValue());
+        }
+        encoder.writeMapEnd();
+
+        encoder.writeArrayStart();
+        encoder.setItemCount(node.children.size());
+        int i = 0;
+        for (Map.Entry<String, Node.Children> children : node.children.entrySet()) {
+            encoder.startItem();
+            encoder.writeString(children.getKey());
+            encoder.writeInt(children.getValue().count);
+            encoder.writeLong(offsets.get(i++));
+        }
+        encoder.writeArrayEnd();
+
+        return offset;
+    }
+
+    /** Appends the record of the elements read since the last one, ending the block once it is large enough */
+    void append(DataFileWriter<GenericRecord> fileWriter, GenericRecord record) throws IOException {
+        recordBytes.reset();
+        recordEncoder = EncoderFactory.get().binaryEncoder(recordBytes, recordEncoder);
+        recordWriter.write(record, recordEncoder);
+        recordEncoder.flush();
+        fileWriter.appendEncoded(ByteBuffer.wrap(recordBytes.toByteArray()));
+
+        blockRecords++;
+        blockBytes += recordBytes.size();
+        if (blockBytes >= DataFileConstants.DEFAULT_SYNC_INTERVAL) {
+            block = fileWriter.sync();
+            blockRecords = 0;
+            blockBytes = 0;
+        }
+    }
+
+    /** Writes the node of the document and its offset, once the document is read to its end */
+    void endDocument() throws IOException {
+        long offset = writeNode(nodes.get(0));
+        out.writeLong(offset);
+        complete = true;
+    }
+
+    /** Deletes the index, unless the document was ended and the index written */
+    public void close() throws IOException {
+        try {
+            out.close();
+        } catch (IOException e) {
+            complete = false;
+            throw e;
+        } finally {
+            if (!complete) indexFile.delete();
+        }
+    }
+
+    private class Node {
+        final String name;
+        final long block;
+        // position of the record in its block
+        final int record;
+        final Map<String, String> namespaces;
+        final Map<String, Children> children = new LinkedHashMap<>();
+
+        Node(String name, long block, Map<String, String> namespaces) {
+            this.name = name;
+            this.block = block;
+            this.record = blockRecords;
+            this.namespaces = namespaces;
+        }
+
+        void addChild(String name, long offset) {
+            Children named = children.get(name);
+            if (named == null) children.put(name, named = new Children());
+
+            if (named.count == named.offsets.length) named.offsets = Arrays.copyOf(named.offsets, named.count * 2);
+            named.offsets[named.count++] = offset;
+        }
+
+        /** Offsets of children of a name, in document order */
+        class Children {
+            long[] offsets = new long[4];
+            int count;
+        }
+    }
+
+    /** Buffered output counting its bytes */
+    private static class Output extends BufferedOutputStream {
+        long position;
+
+        Output(OutputStream out) { super(out, 64 << 10); }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            super.write(b);
+            position++;
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+            super.write(bytes, offset, length);
+            position += length;
+        }
+
+        void writeLong(long value) throws IOException {
+            for (int shift = 56; shift >= 0; shift -= 8) write((int) (value >>> shift));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ly.stealth.xmlavro.simple;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.util.*;
+
+/**
+ * Index of element paths of a file converted with an index depth ({@link Converter.Options#setIndexDepth(int)}),
+ * kept in a sidecar file next to it. Paths are of qualified names, each with the position among siblings of
+ * the same name: {@code /responses[1]/samlp:ArtifactResponse[3]/saml:Assertion[1]}; positions of 1 may be omitted.
+ * <p>
+ * The index is a tree of nodes, each with offsets of its children per name and namespaces declared by its element
+ * in records, so a path is looked up by reading one node per step, without reading the index. An element from
+ * the split depth on is extracted by seeking to the block of its record, skipping records before it in the block
+ * and children before it down the record, so only one block is read and only the element is written, declaring
+ * namespaces of its ancestors.
+ */
+public class PathIndex implements Closeable {
+    private final File avroFile;
+    private final RandomAccessFile index;
+    private final long documentOffset;
+
+    private final DatumReader<GenericRecord> nodeReader = new GenericDatumReader<>(Converter.indexNodeSchema());
+    private BinaryDecoder decoder;
+
+    /** Opens the index of the file */
+    public PathIndex(File avroFile) throws IOException {
+        this.avroFile = avroFile;
+
+        File indexFile = indexFile(avroFile);
+        if (!indexFile.exists()) throw new IllegalArgumentException("No index of " + avroFile);
+
+        index = new RandomAccessFile(indexFile, "r");
+        long offset = -1;
+        if (index.length() >= 8) {
+            index.seek(index.length() - 8);
+            offset = index.readLong();
+        }
+
+        // node of the document precedes its offset
+        if (offset < 0 || offset >= index.length() - 8) {
+            index.close();
+            throw new IllegalStateException("Invalid index " + indexFile);
+        }
+
+        documentOffset = offset;
+    }
+
+    /** Sidecar file of the index of the avro file */
+    public static File indexFile(File avroFile) { return new File(avroFile.getPath() + ".index"); }
+
+    public File getFile() { return avroFile; }
+
+    /** Whether the element of the path is indexed and can be extracted */
+    public boolean contains(String path) throws IOException {
+        GenericRecord node = find(path, new HashMap<String, String>());
+        return node != null && (Long) node.get("block") != -1;
+    }
+
+    /** Writes the element of the path as an xml document */
+    public void extract(String path, OutputStream stream) throws IOException {
+        Map<String, String> namespaces = new LinkedHashMap<>();
+        GenericRecord node = find(path, namespaces);
+        if (node == null) throw new IllegalArgumentException("Path is not indexed: " + path);
+
+        long block = (Long) node.get("block");
+        if (block == -1) throw new IllegalArgumentException("Path is above the split depth: " + path);
+
+        List<?> positionList = (List<?>) node.get("positions");
+        int[] positions = new int[positionList.size()];
+        for (int i = 0; i < positions.length; i++) positions[i] = (Integer) positionList.get(i);
+
+        for (Object prefix : ((Map<?, ?>) node.get("namespaces")).keySet()) namespaces.remove("" + prefix);
+        if ("".equals(namespaces.get(""))) namespaces.remove("");
+
+        try (DataFileReader<Object> reader = new DataFileReader<>(avroFile, new GenericDatumReader<>())) {
+            reader.seek(block);
+            if (!reader.hasNext()) throw new IllegalStateException("No block at " + block + " of " + avroFile);
+
+            XmlOutput out = new XmlOutput(stream);
+            ElementWriter writer = new ElementWriter(out);
+            writer.readFormat(reader.getSchema(), reader.getMeta(Splitter.NAMES), reader.getMeta(Splitter.NAMESPACES), true);
+            writer.startBlock(reader.nextBlock());
+
+            for (int i = (Integer) node.get("record"); i > 0; i--) writer.skipRecord();
+
+            out.declaration();
+            writer.writeSubtree(positions, namespaces);
+            out.flush();
+        }
+    }
+
+    /** Node of the path, adding namespaces declared by its ancestors; null if there is none */
+    private GenericRecord find(String path, Map<String, String> namespaces) throws IOException {
+        GenericRecord node = readNode(documentOffset);
+
+        for (String step : normalize(path).substring(1).split("/")) {
+            int bracket = step.lastIndexOf('[');
+            if (bracket < 1) throw new IllegalArgumentException("Invalid path " + path);
+            String name = step.substring(0, bracket);
+
+            int position;
+            try { position = Integer.parseInt(step.substring(bracket + 1, step.length() - 1)); }
+            catch (NumberFormatException e) { throw new IllegalArgumentException("Invalid path " + path); }
+
+            GenericRecord named = null;
+            for (Object children : (List<?>) node.get("children"))
+                if (name.equals("" + ((GenericRecord) children).get("name"))) named = (GenericRecord) children;
+
+            if (named == null || position < 1 || position > (Integer) named.get("count")) return null;
+
+            for (Map.Entry<?, ?> namespace : ((Map<?, ?>) node.get("namespaces")).entrySet())
+                namespaces.put("" + namespace.getKey(), "" + namespace.getValue());
+
+            index.seek((Long) named.get("offsets") + (position - 1) * 8L);
+            node = readNode(index.readLong());
+        }
+
+        return node;
+    }
+
+    private GenericRecord readNode(long offset) throws IOException {
+        index.seek(offset);
+        decoder = DecoderFactory.get().binaryDecoder(Channels.newInputStream(index.getChannel()), decoder);
+        return nodeReader.read(null, decoder);
+    }
+
+    /** Path with the position of each name: /a/b[2] is /a[1]/b[2] */
+    static String normalize(String path) {
+        StringBuilder normalized = new StringBuilder();
+
+        for (String step : path.split("/")) {
+            if (step.isEmpty()) continue;
+
+            normalized.append('/').append(step);
+            if (!step.endsWith("]")) normalized.append("[1]");
+        }
+
+        if (normalized.length() == 0) throw new IllegalArgumentException("Invalid path " + path);
+        return normalized.toString();
+    }
+
+    public void close() throws IOException { index.close(); }
+}
@@ -0,0 +1,497 @@
+package ly.stealth.xmlavro.simple;
+
+import org.apache.avro.Protocol;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * Converts an xml file into Element records of its subtrees at the split depth, read with StAX,
+ * so memory is bounded by a subtree rather than the document.
+ * <p>
+ * Elements above the split depth (with their attributes and text) are kept as a skeleton in file metadata:
+ * an Element tree, in which split subtrees are replaced by placeholders of their runs. A placeholder is
+ * an element with an empty name, a {@code count} attribute and optionally a text child: it stands for
+ * {@code count} records, each followed by the text.
+ * <p>
+ * With a names protocol, records refer to element and attribute names by their index in a table of names,
+ * kept in file metadata as names separated by new lines; documents of more than {@link #MAX_NAMES} names are rejected.
+ * <p>
+ * Entities declared by the internal dtd subset are replaced; external entities and the external subset are not read,
+ * references to external entities are dropped. The doctype itself is not kept.
+ * <p>
+ * Adjacent text, including CDATA and text around comments, is always merged into one child; comments are dropped.
+ * In compact mode, whitespace-only text is dropped, except in elements preserving whitespace, and namespace
+ * declarations are kept in a table of prefixes in file metadata, as {@code prefix=uri} lines, to be declared
+ * on the root element. Only prefixes bound to one namespace throughout the document are in the table,
+ * and the default namespace only if the root element declares it; other declarations are kept in place.
+ * <p>
+ * Skeleton, names and namespaces are collected by reading the file once before writing records, as metadata precedes them.
+ */
+class Splitter {
+    static final String SPLIT_DEPTH = "xml.split.depth";
+    static final String SKELETON = "xml.skeleton";
+    static final String NAMES = "xml.names";
+    static final String NAMESPACES = "xml.namespaces";
+
+    static final String COUNT = "count";
+    // names of a table, which is kept in file metadata
+    static final int MAX_NAMES = 1 << 16;
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        // internal entities are replaced, external entities and dtds are not read
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, true);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try { INPUT_FACTORY.setProperty("http://java.sun.com/xml/stream/properties/ignore-external-dtd", true); }
+        catch (IllegalArgumentException ignore) {}
+    }
+
+    private final Schema elementSchema;
+    private final Schema attributeSchema;
+    // schemas of records, same as above unless names are indexed
+    private final Schema recordSchema;
+    private final Schema recordAttributeSchema;
+    private final int depth;
+    private final boolean compact;
+    private final Set<String> preserveWhitespace;
+    private final int indexDepth;
+
+    private Map<String, Integer> names;
+    // prefixes of namespaces, in compact mode
+    private Map<String, String> namespaces;
+    private Set<String> reboundPrefixes;
+    // index of the file being written, if any
+    private IndexWriter index;
+
+    /** Names protocol is used if names are written into a table */
+    Splitter(Protocol protocol, Protocol namesProtocol, Converter.Options options) {
+        depth = options.getSplitDepth();
+        compact = options.isCompact();
+        preserveWhitespace = new HashSet<>(options.getPreserveWhitespace());
+        indexDepth = options.getIndexDepth();
+        if (indexDepth != -1 && indexDepth < depth) throw new IllegalArgumentException("Index depth " + indexDepth + " is above split depth " + depth);
+
+        elementSchema = protocol.getType("Element");
+        attributeSchema = protocol.getType("Attribute");
+
+        Protocol recordProtocol = options.isNameTable() ? namesProtocol : protocol;
+        recordSchema = recordProtocol.getType("Element");
+        recordAttributeSchema = recordProtocol.getType("Attribute");
+
+        if (options.isNameTable()) names = new LinkedHashMap<>();
+        if (compact) {
+            namespaces = new LinkedHashMap<>();
+            reboundPrefixes = new HashSet<>();
+        }
+    }
+
+    void split(File xmlFile, File avroFile) throws IOException, XMLStreamException {
+        try (DataFileWriter<GenericRecord> fileWriter = new DataFileWriter<GenericRecord>(new SpecificDatumWriter<GenericRecord>(recordSchema))) {
+            if (depth > 0 || names != null || namespaces != null) {
+                GenericRecord skeleton = readSkeleton(xmlFile);
+
+                if (depth > 0) {
+                    fileWriter.setMeta(SPLIT_DEPTH, depth);
+                    fileWriter.setMeta(SKELETON, encode(skeleton));
+                }
+
+                if (names != null) fileWriter.setMeta(NAMES, encodeNames(names.keySet()));
+                if (namespaces != null && !namespaces.isEmpty()) fileWriter.setMeta(NAMESPACES, encodeNamespaces(namespaces));
+            }
+
+            if (indexDepth != -1)
+                index = new IndexWriter(PathIndex.indexFile(avroFile), new SpecificDatumWriter<GenericRecord>(recordSchema), depth, indexDepth, namespaces);
+            else
+                // of a previous file, pointing to other blocks
+                PathIndex.indexFile(avroFile).delete();
+
+            fileWriter.create(recordSchema, avroFile);
+            if (index != null) index.start(fileWriter);
+
+            try (InputStream stream = new BufferedInputStream(new FileInputStream(xmlFile))) {
+                XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(stream);
+                try {
+                    // whether ancestors preserve whitespace
+                    Deque<Boolean> preserving = new ArrayDeque<>();
+                    int level = 0;
+
+                    while (reader.hasNext()) {
+                        switch (reader.next()) {
+                            case XMLStreamConstants.START_ELEMENT:
+                                boolean inherited = !preserving.isEmpty() && preserving.peek();
+                                if (level == depth) {
+                                    GenericData.Record record = readElement(reader, inherited, -1);
+                                    if (index != null) index.append(fileWriter, record);
+                                    else fileWriter.append(record);
+                                } else {
+                                    if (index != null) index.startElement(reader, -1);
+                                    preserving.push(preserves(reader, inherited));
+                                    level++;
+                                }
+                                break;
+                            case XMLStreamConstants.END_ELEMENT:
+                                if (index != null) index.endElement();
+                                preserving.pop();
+                                level--;
+                                break;
+                        }
+                    }
+
+                    if (index != null) index.endDocument();
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            if (index != null) index.close();
+            index = null;
+        }
+    }
+
+    /** Element record of the subtree at the position among its siblings; reader is at the element start, left at its end */
+    private GenericData.Record readElement(XMLStreamReader reader, boolean inherited, int position) throws IOException, XMLStreamException {
+        if (index != null) index.startElement(reader, position);
+        boolean preserve = preserves(reader, inherited);
+        GenericData.Record record = element(reader, true);
+
+        List<Object> children = children(record);
+        StringBuilder text = new StringBuilder();
+
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            switch (reader.getEventType()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    flushText(text, children, preserve);
+                    children.add(readElement(reader, preserve, children.size()));
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+            }
+        }
+
+        flushText(text, children, preserve);
+        if (index != null) index.endElement();
+        return record;
+    }
+
+    private void flushText(StringBuilder text, List<Object> children, boolean preserve) {
+        if (text.length() == 0) return;
+        if (!elides(text, preserve)) children.add(text.toString());
+        text.setLength(0);
+    }
+
+    /** Whether the text is dropped as ignorable whitespace */
+    private boolean elides(CharSequence text, boolean preserve) {
+        if (!compact || preserve) return false;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return false;
+        }
+
+        return true;
+    }
+
+    /** Whether text of the current element preserves whitespace, by xml:space or the element name */
+    private boolean preserves(XMLStreamReader reader, boolean inherited) {
+        if (!compact) return true;
+
+        String space = reader.getAttributeValue(XMLConstants.XML_NS_URI, "space");
+        if ("preserve".equals(space)) return true;
+        if ("default".equals(space)) return false;
+
+        return inherited || preserveWhitespace.contains(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+    }
+
+    /** Element record with the name and attributes of the current element, without children */
+    private GenericData.Record element(XMLStreamReader reader, boolean record) {
+        GenericData.Record element = new GenericData.Record(record ? recordSchema : elementSchema);
+        element.put("name", name(qualifiedName(reader.getPrefix(), reader.getLocalName()), record));
+
+        List<GenericData.Record> attributes = new ArrayList<>();
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String uri = reader.getNamespaceURI(i);
+            if (record && namespaces != null && uri.equals(namespaces.get(prefix(reader.getNamespacePrefix(i))))) continue;
+            attributes.add(attribute(namespaceName(reader.getNamespacePrefix(i)), uri, record));
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+            attributes.add(attribute(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i), record));
+
+        element.put("attributes", attributes);
+        element.put("children", new ArrayList<>());
+        return element;
+    }
+
+    private GenericData.Record attribute(String name, String value, boolean record) {
+        GenericData.Record attribute = new GenericData.Record(record ? recordAttributeSchema : attributeSchema);
+        attribute.put("name", name(name, record));
+        attribute.put("value", value);
+        return attribute;
+    }
+
+    /** Name, or its index in the table of names for records */
+    private Object name(String name, boolean record) {
+        if (!record || names == null) return name;
+
+        Integer index = names.get(name);
+        if (index == null) throw new IllegalStateException("Name " + name + " is missing from the table of names");
+        return index;
+    }
+
+    private void addNames(XMLStreamReader reader) {
+        addName(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++)
+            addName(namespaceName(reader.getNamespacePrefix(i)));
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+            addName(qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)));
+    }
+
+    private void addName(String name) {
+        if (names.containsKey(name)) return;
+        if (names.size() == MAX_NAMES) throw new IllegalStateException("More than " + MAX_NAMES + " names for the table of names");
+        names.put(name, names.size());
+    }
+
+    /** Adds namespaces declared by the current element to the table, noting prefixes bound to several namespaces */
+    private void addNamespaces(XMLStreamReader reader, int level) {
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String prefix = prefix(reader.getNamespacePrefix(i));
+            String uri = reader.getNamespaceURI(i);
+
+            String known = namespaces.get(prefix);
+            if (known == null) {
+                // elements above are in no namespace
+                if (prefix.isEmpty() && level > 0) reboundPrefixes.add(prefix);
+                namespaces.put(prefix, uri);
+            } else if (!known.equals(uri))
+                reboundPrefixes.add(prefix);
+        }
+    }
+
+    /** Removes declarations of namespaces of the table from the skeleton, which is read before the table is complete */
+    private void removeNamespaces(GenericRecord element) {
+        for (Iterator<?> i = ((List<?>) element.get("attributes")).iterator(); i.hasNext(); ) {
+            GenericRecord attribute = (GenericRecord) i.next();
+            String name = "" + attribute.get("name");
+
+            String prefix;
+            if (name.equals("xmlns")) prefix = "";
+            else if (name.startsWith("xmlns:")) prefix = name.substring("xmlns:".length());
+            else continue;
+
+            if (("" + attribute.get("value")).equals(namespaces.get(prefix))) i.remove();
+        }
+
+        for (Object child : (List<?>) element.get("children"))
+            if (child instanceof GenericRecord) removeNamespaces((GenericRecord) child);
+    }
+
+    static String prefix(String prefix) { return prefix != null ? prefix : ""; }
+
+    private static String namespaceName(String prefix) {
+        return prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix;
+    }
+
+    static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> children(GenericRecord record) { return (List<Object>) record.get("children"); }
+
+    /** Elements above the split depth, with placeholders of split subtrees; null if the depth is 0. Collects names and namespaces */
+    private GenericData.Record readSkeleton(File xmlFile) throws IOException, XMLStreamException {
+        List<GenericData.Record> ancestors = new ArrayList<>();
+        // whether ancestors preserve whitespace
+        List<Boolean> preserving = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        GenericData.Record root = null;
+        int level = 0;
+
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(xmlFile))) {
+            XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(stream);
+            try {
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            if (names != null) addNames(reader);
+                            if (namespaces != null) addNamespaces(reader, level);
+
+                            if (level < depth) {
+                                boolean inherited = level > 0 && preserving.get(level - 1);
+                                GenericData.Record record = element(reader, false);
+                                if (level > 0) {
+                                    List<Object> children = children(ancestors.get(level - 1));
+                                    flushSkeletonText(text, children, inherited);
+                                    children.add(record);
+                                } else
+                                    root = record;
+
+                                ancestors.add(record);
+                                preserving.add(preserves(reader, inherited));
+                            } else if (level == depth && depth > 0) {
+                                List<Object> children = children(ancestors.get(level - 1));
+                                flushSkeletonText(text, children, preserving.get(level - 1));
+                                addRecord(children);
+                            }
+
+                            level++;
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            level--;
+
+                            if (level < depth) {
+                                List<Object> children = children(ancestors.remove(level));
+                                flushSkeletonText(text, children, preserving.remove(level));
+                                endRuns(children);
+                            }
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.SPACE:
+                        case XMLStreamConstants.CDATA:
+                            if (level > 0 && level <= depth)
+                                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        if (root == null && depth > 0) throw new IllegalStateException("No root element in " + xmlFile);
+
+        if (namespaces != null) {
+            namespaces.keySet().removeAll(reboundPrefixes);
+            if (root != null) removeNamespaces(root);
+        }
+
+        return root;
+    }
+
+    private void flushSkeletonText(StringBuilder text, List<Object> children, boolean preserve) {
+        if (text.length() == 0) return;
+        if (elides(text, preserve)) {
+            text.setLength(0);
+            return;
+        }
+
+        Object last = children.isEmpty() ? null : children.get(children.size() - 1);
+        if (last instanceof Run && ((Run) last).open) closeRun(children, text.toString());
+        else children.add(text.toString());
+
+        text.setLength(0);
+    }
+
+    /** Adds a split subtree to the last run, expecting it to be followed by the same text as others of the run */
+    private static void addRecord(List<Object> children) {
+        Object last = children.isEmpty() ? null : children.get(children.size() - 1);
+        if (last instanceof Run && ((Run) last).open) {
+            closeRun(children, "");
+            last = children.get(children.size() - 1);
+        }
+
+        if (last instanceof Run) {
+            Run run = (Run) last;
+            run.count++;
+            run.open = true;
+        } else
+            children.add(new Run());
+    }
+
+    /** Sets the text following the last record of the last run, splitting the run if the text differs */
+    private static void closeRun(List<Object> children, String text) {
+        Run run = (Run) children.get(children.size() - 1);
+        run.open = false;
+
+        if (run.count == 1) {
+            run.text = text;
+
+            Object previous = children.size() > 1 ? children.get(children.size() - 2) : null;
+            if (previous instanceof Run && ((Run) previous).text.equals(text)) {
+                ((Run) previous).count++;
+                children.remove(children.size() - 1);
+            }
+        } else if (!run.text.equals(text)) {
+            run.count--;
+
+            Run last = new Run();
+            last.open = false;
+            last.text = text;
+            children.add(last);
+        }
+    }
+
+    /** Replaces runs of an ended element with placeholder records */
+    private void endRuns(List<Object> children) {
+        Object last = children.isEmpty() ? null : children.get(children.size() - 1);
+        if (last instanceof Run && ((Run) last).open) closeRun(children, "");
+
+        for (int i = 0; i < children.size(); i++) {
+            if (!(children.get(i) instanceof Run)) continue;
+            Run run = (Run) children.get(i);
+
+            GenericData.Record placeholder = new GenericData.Record(elementSchema);
+            placeholder.put("name", "");
+
+            List<GenericData.Record> attributes = new ArrayList<>();
+            attributes.add(attribute(COUNT, "" + run.count, false));
+            placeholder.put("attributes", attributes);
+
+            List<Object> placeholderChildren = new ArrayList<>();
+            if (!run.text.isEmpty()) placeholderChildren.add(run.text);
+            placeholder.put("children", placeholderChildren);
+
+            children.set(i, placeholder);
+        }
+    }
+
+    private static byte[] encodeNames(Collection<String> names) {
+        StringBuilder table = new StringBuilder();
+        for (String name : names) {
+            if (table.length() > 0) table.append('\n');
+            table.append(name);
+        }
+
+        return table.toString().getBytes(Charset.forName("utf-8"));
+    }
+
+    private static byte[] encodeNamespaces(Map<String, String> namespaces) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String> entry : namespaces.entrySet()) lines.add(entry.getKey() + "=" + entry.getValue());
+        return encodeNames(lines);
+    }
+
+    private byte[] encode(GenericRecord record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bytes, null);
+        new SpecificDatumWriter<GenericRecord>(elementSchema).write(record, encoder);
+        encoder.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Consecutive split subtrees, each followed by the same text */
+    private static class Run {
+        int count = 1;
+        String text;
+        // text following the last record is not known yet
+        boolean open = true;
+    }
+}
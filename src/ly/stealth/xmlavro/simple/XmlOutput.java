@@ -0,0 +1,141 @@
+package ly.stealth.xmlavro.simple;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes utf-8 xml from utf-8 bytes, escaping them as they are copied into its buffer, without decoding
+ * them into strings. Bytes of multi-byte utf-8 sequences are never ascii, so escaping looks at single bytes.
+ * Characters a parser would normalize are written as character references, as by {@code ContentWriter}:
+ * carriage returns in text, and tabs and line breaks in attribute values, so they read back the same.
+ * Start and end tags of empty elements are not collapsed.
+ */
+class XmlOutput {
+    static final Charset UTF8 = Charset.forName("utf-8");
+
+    private static final byte[] DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>".getBytes(UTF8);
+    private static final byte[] LT = "&lt;".getBytes(UTF8);
+    private static final byte[] GT = "&gt;".getBytes(UTF8);
+    private static final byte[] AMP = "&amp;".getBytes(UTF8);
+    private static final byte[] QUOT = "&quot;".getBytes(UTF8);
+    private static final byte[] CR = "&#13;".getBytes(UTF8);
+    private static final byte[] LF = "&#10;".getBytes(UTF8);
+    private static final byte[] TAB = "&#9;".getBytes(UTF8);
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[8192];
+    private int length;
+
+    // names of open elements
+    private byte[][] elements = new byte[16][];
+    private int depth;
+    // start tag of the last element is not closed yet, as attributes may follow
+    private boolean inStartTag;
+
+    XmlOutput(OutputStream out) { this.out = out; }
+
+    void declaration() throws IOException { write(DECLARATION, 0, DECLARATION.length); }
+
+    /** Name is utf-8 bytes of the whole array, kept until the element ends */
+    void startElement(byte[] name) throws IOException {
+        closeStartTag();
+
+        if (depth == elements.length) {
+            byte[][] grown = new byte[depth * 2][];
+            System.arraycopy(elements, 0, grown, 0, depth);
+            elements = grown;
+        }
+        elements[depth++] = name;
+
+        write('<');
+        write(name, 0, name.length);
+        inStartTag = true;
+    }
+
+    void attribute(byte[] name, byte[] value, int valueLength) throws IOException {
+        if (!inStartTag) throw new IllegalStateException("Attribute outside of a start tag");
+
+        write(' ');
+        write(name, 0, name.length);
+        write('=');
+        write('"');
+        escape(value, valueLength, true);
+        write('"');
+    }
+
+    void text(byte[] value, int valueLength) throws IOException {
+        closeStartTag();
+        escape(value, valueLength, false);
+    }
+
+    void endElement() throws IOException {
+        closeStartTag();
+
+        byte[] name = elements[--depth];
+        elements[depth] = null;
+
+        write('<');
+        write('/');
+        write(name, 0, name.length);
+        write('>');
+    }
+
+    void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    private void closeStartTag() throws IOException {
+        if (!inStartTag) return;
+        write('>');
+        inStartTag = false;
+    }
+
+    private void escape(byte[] value, int valueLength, boolean attribute) throws IOException {
+        int start = 0;
+        for (int i = 0; i < valueLength; i++) {
+            byte b = value[i];
+
+            byte[] entity;
+            if (b == '<') entity = LT;
+            else if (b == '>') entity = GT;
+            else if (b == '&') entity = AMP;
+            else if (b == '\r') entity = CR;
+            else if (b == '"' && attribute) entity = QUOT;
+            else if (b == '\n' && attribute) entity = LF;
+            else if (b == '\t' && attribute) entity = TAB;
+            else continue;
+
+            write(value, start, i - start);
+            write(entity, 0, entity.length);
+            start = i + 1;
+        }
+
+        write(value, start, valueLength - start);
+    }
+
+    private void write(int b) throws IOException {
+        if (length == buffer.length) drain();
+        buffer[length++] = (byte) b;
+    }
+
+    private void write(byte[] bytes, int offset, int count) throws IOException {
+        if (count > buffer.length - length) {
+            drain();
+
+            if (count > buffer.length) {
+                out.write(bytes, offset, count);
+                return;
+            }
+        }
+
+        System.arraycopy(bytes, offset, buffer, length, count);
+        length += count;
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, length);
+        length = 0;
+    }
+}
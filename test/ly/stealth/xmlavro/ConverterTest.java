@@ -16,17 +16,64 @@
  */
 package ly.stealth.xmlavro;
 
+import ly.stealth.xmlavro.simple.Converter.Options;
+import ly.stealth.xmlavro.simple.PathIndex;
 import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.util.Utf8;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
 import org.json.JSONException;
 import org.junit.Test;
 import org.skyscreamer.jsonassert.JSONAssert;
-
+import org.xml.sax.InputSource;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static junit.framework.Assert.*;
+import static ly.stealth.xmlavro.simple.Converter.avroToXml;
+import static ly.stealth.xmlavro.simple.Converter.xmlToAvro;
 
 public class ConverterTest {
     @Test
@@ -75,9 +122,187 @@ public class ConverterTest {
       rootPrimitiveWithType("xs:dateTime", "2014-10-30T14:58:33", Schema.Type.LONG, 1414681113000L);
       rootPrimitiveWithType("xs:dateTime", "2014-09-10T12:58:33", Schema.Type.LONG, 1410353913000L);
 
-      DatumBuilder.setDefaultTimeZone(TimeZone.getTimeZone("America/Los_Angeles"));
-      rootPrimitiveWithType("xs:dateTime", "2014-10-30T07:58:33", Schema.Type.LONG, 1414681113000L);
-      rootPrimitiveWithType("xs:dateTime", "2014-09-10T05:58:33", Schema.Type.LONG, 1410353913000L);
+      DatumBuilder.Config la = new DatumBuilder.Config().withTimeZone(TimeZone.getTimeZone("America/Los_Angeles"));
+      rootPrimitiveWithType("xs:dateTime", "2014-10-30T07:58:33", Schema.Type.LONG, 1414681113000L, la);
+      rootPrimitiveWithType("xs:dateTime", "2014-09-10T05:58:33", Schema.Type.LONG, 1410353913000L, la);
+    }
+
+    @Test
+    public void dateTimeParser() {
+        TimeZone utc = TimeZone.getTimeZone("UTC");
+        TimeZone la = TimeZone.getTimeZone("America/Los_Angeles");
+
+        assertEquals(0L, DateTimeParser.parse("1970-01-01T00:00:00", utc));
+        assertEquals(1414681113000L, DateTimeParser.parse("2014-10-30T14:58:33Z", la));
+        assertEquals(1414681113000L, DateTimeParser.parse(" 2014-10-30T14:58:33Z\n", la));
+        assertEquals(1414681113000L, DateTimeParser.parse("2014-10-30T16:58:33+02:00", la));
+        assertEquals(1414681113000L, DateTimeParser.parse("2014-10-30T09:28:33-05:30", la));
+        assertEquals(1414681113000L, DateTimeParser.parse("2014-10-30T07:58:33", la));
+        assertEquals(1418000000000L, DateTimeParser.parse("2014-12-08T00:53:20", utc));
+        assertEquals(1418000000000L, DateTimeParser.parse("2014-12-07T16:53:20", la));
+
+        // fractional seconds are truncated to millis
+        assertEquals(500L, DateTimeParser.parse("1970-01-01T00:00:00.5Z", la));
+        assertEquals(123L, DateTimeParser.parse("1970-01-01T00:00:00.123456Z", la));
+        assertEquals(-877L, DateTimeParser.parse("1969-12-31T23:59:59.123Z", la));
+
+        // leap years
+        assertEquals(951782400000L, DateTimeParser.parse("2000-02-29T00:00:00Z", la));
+        assertEquals(1330473600000L, DateTimeParser.parse("2012-02-29T00:00:00Z", la));
+        assertInvalidDateTime("2013-02-29T00:00:00Z");
+        assertInvalidDateTime("1900-02-29T00:00:00Z");
+
+        // end of day, far years
+        assertEquals(86400000L, DateTimeParser.parse("1970-01-01T24:00:00Z", la));
+        assertEquals(253402300799000L, DateTimeParser.parse("9999-12-31T23:59:59Z", la));
+        assertEquals(-62135596800000L, DateTimeParser.parse("0001-01-01T00:00:00Z", la));
+        assertEquals(-62167219200000L, DateTimeParser.parse("0000-01-01T00:00:00Z", la));
+        assertEquals(253402300800000L, DateTimeParser.parse("10000-01-01T00:00:00Z", la));
+
+        assertInvalidDateTime("");
+        assertInvalidDateTime("2014-10-30");
+        assertInvalidDateTime("2014-10-30 14:58:33");
+        assertInvalidDateTime("14-10-30T14:58:33");
+        assertInvalidDateTime("2014-13-30T14:58:33");
+        assertInvalidDateTime("2014-10-30T14:60:33");
+        assertInvalidDateTime("2014-10-30T24:00:01");
+        assertInvalidDateTime("2014-10-30T14:58:33.");
+        assertInvalidDateTime("2014-10-30T14:58:33+2:00");
+        assertInvalidDateTime("2014-10-30T14:58:33+15:00");
+        assertInvalidDateTime("2014-10-30T14:58:33Z0");
+    }
+
+    private static void assertInvalidDateTime(String text) {
+        try {
+            DateTimeParser.parse(text, TimeZone.getTimeZone("UTC"));
+            fail(text);
+        } catch (ConverterException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Invalid dateTime"));
+        }
+    }
+
+    @Test
+    public void dateTimeIsDecidedBySchema() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:element name='time' type='xs:dateTime'/>" +
+                "        <xs:element name='count' type='xs:long'/>" +
+                "      </xs:sequence>" +
+                "      <xs:attribute name='time' type='xs:dateTime'/>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        assertEquals(SchemaBuilder.TIMESTAMP_MILLIS, schema.getField("time0").schema().getProp(SchemaBuilder.LOGICAL_TYPE));
+        assertNull(schema.getField("count").schema().getProp(SchemaBuilder.LOGICAL_TYPE));
+
+        DatumBuilder builder = new DatumBuilder(schema, new DatumBuilder.Config(true, TimeZone.getTimeZone("UTC")));
+        GenericData.Record record = builder.createDatum("<root time='1970-01-01T00:00:01+01:00'><time>1970-01-01T00:00:02</time><count>3</count></root>");
+        assertEquals(-3599000L, record.get("time"));
+        assertEquals(2000L, record.get("time0"));
+        assertEquals(3L, record.get("count"));
+
+        // longs of a schema with dateTime marks are never dateTimes
+        String xml = "<root time='1970-01-01T00:00:01+01:00'><time>1970-01-01T00:00:02</time><count>1970-01-01T00:00:03Z</count></root>";
+        try {
+            builder.createDatum(xml);
+            fail();
+        } catch (NumberFormatException expected) {}
+
+        // schemas generated before the logical type hold dateTime values in plain longs
+
+        Schema old = new Schema.Parser().parse(schema.toString().replace(",\"" + SchemaBuilder.LOGICAL_TYPE + "\":\"" + SchemaBuilder.TIMESTAMP_MILLIS + "\"", ""));
+        assertFalse(old.toString().contains(SchemaBuilder.TIMESTAMP_MILLIS));
+
+        DatumBuilder oldBuilder = new DatumBuilder(old, new DatumBuilder.Config(true, TimeZone.getTimeZone("UTC")));
+        GenericData.Record oldRecord = oldBuilder.createDatum(xml);
+        assertEquals(-3599000L, oldRecord.get("time"));
+        assertEquals(2000L, oldRecord.get("time0"));
+        assertEquals(3000L, oldRecord.get("count"));
+
+        // generated converters decide the same
+        assertGeneratedEncoding(oldBuilder, compileConverter(old, "generated.LegacyDateTimeConverter", oldBuilder.getConfig()), xml);
+        try {
+            compileConverter(schema, "generated.DateTimeConverter", builder.getConfig()).encodeDatum(new StringReader(xml), EncoderFactory.get().binaryEncoder(new ByteArrayOutputStream(), null));
+            fail();
+        } catch (NumberFormatException expected) {}
+
+        try {
+            builder.createDatum("<root><time>1970-01-01T00:00:02</time><count>x</count></root>");
+            fail();
+        } catch (NumberFormatException expected) {}
+    }
+
+    @Test
+    public void valueParser() {
+        assertEquals(0, parseInt("0"));
+        assertEquals(-12, parseInt(" -12\n"));
+        assertEquals(12, parseInt("+12"));
+        assertEquals(Integer.MIN_VALUE, parseInt("-2147483648"));
+        assertEquals(Long.MAX_VALUE, parseLong("9223372036854775807"));
+        assertEquals(Long.MIN_VALUE, parseLong("-9223372036854775808"));
+        for (String invalid : Arrays.asList("", "-", "1 2", "1.0", "a", "2147483648"))
+            try { parseInt(invalid); fail(invalid); } catch (NumberFormatException expected) {}
+        try { parseLong("9223372036854775808"); fail(); } catch (NumberFormatException expected) {}
+
+        assertTrue(parseBoolean("true"));
+        assertTrue(parseBoolean(" 1 "));
+        assertFalse(parseBoolean("false"));
+        assertFalse(parseBoolean("0"));
+
+        // fast path and fallback should match the JDK parsers
+        for (String value : Arrays.asList("0", "-0", "1", "1.5", "-.5", "5.", "0.1", "3.14159", "1e10", "1E-5", "123456789012345",
+                "1234567890123456789", "0.30000000000000004", "1e23", "1e-300", "2.2250738585072014E-308", "16777217", "0.000001234"))
+            assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(parseDouble(value)));
+
+        for (String value : Arrays.asList("0", "1.5", "0.1", "3.14159", "16777216", "16777217", "1e10", "1e-11", "1.17549435E-38"))
+            assertEquals(value, Float.floatToIntBits(Float.parseFloat(value)), Float.floatToIntBits(parseFloat(value)));
+
+        assertEquals(Double.POSITIVE_INFINITY, parseDouble("INF"));
+        assertEquals(Double.NEGATIVE_INFINITY, parseDouble("-INF"));
+        assertTrue(Double.isNaN(parseDouble("NaN")));
+        assertEquals(1.5, parseDouble(" 1.5\t"));
+        try { parseDouble("1.5x"); fail(); } catch (NumberFormatException expected) {}
+    }
+
+    private static int parseInt(String s) { return ValueParser.parseInt(s.toCharArray(), 0, s.length()); }
+    private static long parseLong(String s) { return ValueParser.parseLong(s.toCharArray(), 0, s.length()); }
+    private static boolean parseBoolean(String s) { return ValueParser.parseBoolean(s.toCharArray(), 0, s.length()); }
+    private static double parseDouble(String s) { return ValueParser.parseDouble(s.toCharArray(), 0, s.length()); }
+    private static float parseFloat(String s) { return ValueParser.parseFloat(s.toCharArray(), 0, s.length()); }
+
+    @Test
+    public void collapsedPrimitiveValues() {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:element name='i' type='xs:int'/>" +
+                "        <xs:element name='d' type='xs:double'/>" +
+                "        <xs:element name='b' type='xs:boolean'/>" +
+                "      </xs:sequence>" +
+                "      <xs:attribute name='f' type='xs:float'/>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        String xml = "<root f=' 2.5 '><i>\n  42\n</i><d>1<!-- split -->.25</d><b> 1 </b></root>";
+
+        DatumBuilder builder = new DatumBuilder(schema);
+        GenericData.Record streamed = builder.createDatum(xml);
+        GenericData.Record parsed = builder.createDatum(new InputSource(new StringReader(xml)));
+        for (GenericData.Record record : Arrays.asList(streamed, parsed)) {
+            assertEquals(42, record.get("i"));
+            assertEquals(1.25, record.get("d"));
+            assertEquals(true, record.get("b"));
+            assertEquals(2.5f, record.get("f"));
+        }
     }
 
     public <T> void rootPrimitiveWithType(String xmlType, String xmlValue, Schema.Type avroType, T avroValue) {
@@ -93,6 +318,19 @@ public class ConverterTest {
         assertEquals(avroValue, Converter.createDatum(schema, xml));
     }
 
+    public <T> void rootPrimitiveWithType(String xmlType, String xmlValue, Schema.Type avroType, T avroValue, DatumBuilder.Config config) {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "   <xs:element name='value' type='" + xmlType + "'/>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        assertEquals(avroType, schema.getType());
+
+        String xml = "<value>" + xmlValue + "</value>";
+        assertEquals(avroValue, new DatumBuilder(schema, config).createDatum(xml));
+    }
+
     @Test
     public void severalRoots() {
         String xsd =
@@ -300,7 +538,7 @@ public class ConverterTest {
         assertEquals("field", record.get("field"));
 
         @SuppressWarnings("unchecked")
-        java.util.Map<String, String> map = (java.util.Map<String, String>) record.get(Source.WILDCARD);
+        Map<String, String> map = (Map<String, String>) record.get(Source.WILDCARD);
 
         assertEquals(2, map.size());
         assertEquals("field0", map.get("field0"));
@@ -314,6 +552,62 @@ public class ConverterTest {
         assertEquals(Collections.emptyMap(), record.get(Source.WILDCARD));
     }
 
+    @Test
+    public void wildcardContent() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:any maxOccurs='unbounded'/>" +
+                "      </xs:sequence>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        String[] contents = {
+                "text &amp; &lt;b&gt; \"q\" 'x' &#13;\u00e9",
+                "<e/><f a='1&amp;&lt;&gt;&quot;&#10;&#9;x'>t</f><!--c--><?pi d?><![CDATA[<z>]]>",
+                "<p:e p:a='1'>x</p:e><g xmlns='urn:g'><h>y</h></g><p:e xmlns:p='urn:other'>z</p:e>",
+                "<e><f/></e>"
+        };
+
+        Schema schema = Converter.createSchema(xsd);
+        DatumBuilder builder = new DatumBuilder(schema);
+        DatumBuilder utf8Builder = new DatumBuilder(schema, new DatumBuilder.Config().withWildcardUtf8(true));
+
+        for (String content : contents) {
+            String xml = "<root xmlns:p='urn:p'><w>" + content + "</w></root>";
+            String expected = transformContent(xml);
+
+            GenericData.Record record = builder.createDatum(xml);
+            assertEquals(expected, ((Map<?, ?>) record.get(Source.WILDCARD)).get("w"));
+
+            record = builder.createDatum(new InputSource(new StringReader(xml)));
+            assertEquals(expected, ((Map<?, ?>) record.get(Source.WILDCARD)).get("w"));
+
+            record = utf8Builder.createDatum(xml);
+            assertEquals(new Utf8(expected), ((Map<?, ?>) record.get(Source.WILDCARD)).get("w"));
+        }
+
+        // supplementary characters are kept as is
+        GenericData.Record record = utf8Builder.createDatum("<root><w>\ud83d\ude00</w></root>");
+        assertEquals(new Utf8("\ud83d\ude00"), ((Map<?, ?>) record.get(Source.WILDCARD)).get("w"));
+    }
+
+    private static String transformContent(String xml) throws Exception {
+        org.w3c.dom.Element el = (org.w3c.dom.Element) DatumBuilder.parse(new InputSource(new StringReader(xml))).getFirstChild();
+        if (el.getTextContent().isEmpty()) return "";
+
+        StringWriter writer = new StringWriter();
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.transform(new DOMSource(el), new StreamResult(writer));
+
+        String result = "" + writer;
+        return result.substring(result.indexOf('>') + 1, result.lastIndexOf("</"));
+    }
+
     @Test
     public void severalWildcards() {
         String xsd =
@@ -626,6 +920,1306 @@ public class ConverterTest {
                 "}", datum.toString(), false);
     }
 
+    @Test
+    public void caseInsensitiveNames() {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:element name='value' type='xs:string'/>" +
+                "        <xs:choice maxOccurs='unbounded'>" +
+                "          <xs:element name='x' type='xs:string'/>" +
+                "        </xs:choice>" +
+                "      </xs:sequence>" +
+                "      <xs:attribute name='attr' type='xs:string'/>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        String xml = "<root ATTR='a'><Value>v</Value><X>x</X></root>";
+
+        DatumBuilder builder = new DatumBuilder(schema);
+        try {
+            builder.createDatum(xml);
+            fail();
+        } catch (ConverterException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ATTR"));
+        }
+
+        builder.setCaseSensitiveNames(false);
+        GenericData.Record record = builder.createDatum(xml);
+        assertEquals("a", record.get("attr"));
+        assertEquals("v", record.get("value"));
+
+        @SuppressWarnings("unchecked")
+        List<GenericData.Record> nested = (List<GenericData.Record>) record.get("type0");
+        assertEquals(1, nested.size());
+        assertEquals("x", nested.get(0).get("x"));
+    }
+
+    @Test
+    public void caseInsensitiveNamesAsEqualsIgnoreCase() {
+        // lower case forms differ: "k\u0130nd" folds to "ki\u0307nd", final sigma stays itself
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:element name='k\u0130nd' type='xs:string'/>" +
+                "        <xs:element name='x\u03c3' type='xs:string'/>" +
+                "      </xs:sequence>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        DatumBuilder builder = new DatumBuilder(Converter.createSchema(xsd));
+        builder.setCaseSensitiveNames(false);
+
+        GenericData.Record record = builder.createDatum("<root><KIND>k</KIND><X\u03c2>s</X\u03c2></root>");
+        assertEquals("k", record.get(0));
+        assertEquals("s", record.get(1));
+    }
+
+    @Test
+    public void sharedConversionPlan() {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:complexType name='type'>" +
+                "    <xs:sequence>" +
+                "      <xs:element name='node' type='type' minOccurs='0'/>" +
+                "    </xs:sequence>" +
+                "    <xs:attribute name='i' type='xs:int'/>" +
+                "  </xs:complexType>" +
+                "  <xs:element name='root' type='type'/>" +
+                "</xs:schema>";
+
+        ConversionPlan plan = ConversionPlan.compile(Converter.createSchema(xsd));
+        DatumBuilder sensitive = new DatumBuilder(plan);
+        DatumBuilder insensitive = new DatumBuilder(plan);
+        insensitive.setCaseSensitiveNames(false);
+
+        GenericData.Record record = sensitive.createDatum("<root i='1'><node i='2'/></root>");
+        assertEquals(1, record.get("i"));
+        assertEquals(2, ((GenericData.Record) record.get("node")).get("i"));
+
+        record = insensitive.createDatum("<root I='1'><NODE i='2'/></root>");
+        assertEquals(1, record.get("i"));
+        assertEquals(2, ((GenericData.Record) record.get("node")).get("i"));
+        assertSame(plan, insensitive.getPlan());
+    }
+
+    @Test
+    public void concurrentConversion() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:element name='time' type='xs:dateTime'/>" +
+                "        <xs:element name='value' type='xs:int' maxOccurs='unbounded'/>" +
+                "        <xs:any maxOccurs='unbounded'/>" +
+                "      </xs:sequence>" +
+                "      <xs:attribute name='id' type='xs:string'/>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        DatumBuilder.Config config = new DatumBuilder.Config().withTimeZone(TimeZone.getTimeZone("America/Los_Angeles"));
+        final DatumBuilder builder = new DatumBuilder(schema, config);
+
+        final int documents = 20;
+        final List<String> xmls = new ArrayList<>();
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            String xml = "<root id='" + i + "'><time>2014-10-30T07:58:" + (10 + i) + "</time>" +
+                         "<value>" + i + "</value><value>" + -i + "</value><w" + i + "><e>" + i + "</e></w" + i + "></root>";
+            xmls.add(xml);
+            expected.add("" + builder.createDatum(xml));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                final int doc = i % documents;
+                final boolean dom = i % 2 == 0;
+                results.add(executor.submit(new Callable<String>() {
+                    public String call() {
+                        String xml = xmls.get(doc);
+                        Object datum = dom ? builder.createDatum(new InputSource(new StringReader(xml))) : builder.createDatum(xml);
+                        return "" + datum;
+                    }
+                }));
+            }
+
+            for (int i = 0; i < results.size(); i++)
+                assertEquals(expected.get(i % documents), results.get(i).get());
+        } finally {
+            executor.shutdown();
+        }
+
+        GenericData.Record record = builder.createDatum(xmls.get(0));
+        assertEquals(1414681090000L, record.get("time"));
+    }
+
+    @Test
+    public void directEncoding() throws IOException {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:complexType name='type'>" +
+                "    <xs:sequence>" +
+                "      <xs:element name='i' type='xs:int'/>" +
+                "      <xs:element name='node' type='type' minOccurs='0'/>" +
+                "      <xs:element name='value' type='xs:string' maxOccurs='unbounded'/>" +
+                "      <xs:element name='d' type='xs:double' minOccurs='0'/>" +
+                "      <xs:choice maxOccurs='2'>" +
+                "        <xs:element name='x' type='xs:string'/>" +
+                "        <xs:element name='y' type='xs:int'/>" +
+                "      </xs:choice>" +
+                "      <xs:any maxOccurs='unbounded'/>" +
+                "    </xs:sequence>" +
+                "    <xs:attribute name='a' type='xs:string'/>" +
+                "    <xs:attribute name='b' type='xs:boolean'/>" +
+                "  </xs:complexType>" +
+                "  <xs:element name='root' type='type'/>" +
+                "  <xs:element name='other' type='xs:long'/>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+
+        // in order, out of order, interleaved arrays, missing optional fields, repeated buffered field
+        assertEncodedAsDatum(schema, "<root a='a' b='1'><i>1</i><node><i>2</i><value>v</value><y>3</y></node><value>1</value><value>2</value>" +
+                "<d>1.5</d><x>x1</x><y>2</y><w1>text<e/></w1><w2/><w3>3</w3><w4>4</w4></root>");
+        assertEncodedAsDatum(schema, "<root><w1>1</w1><y>2</y><value>1</value><d>1.5</d><x>x</x><value>2</value><node><value>v</value><i>2</i></node><i>1</i></root>");
+        assertEncodedAsDatum(schema, "<root b='false'><value>v</value><d>1</d><d>2</d><i>1</i></root>");
+        assertEncodedAsDatum(schema, "<other>5</other>");
+
+        // repeated fields while buffered, last value wins
+        assertEncodedAsDatum(schema, "<root><value>v</value><node><i>2</i><value>w</value><i>5</i></node><d>1</d><d>2</d><i>1</i></root>");
+        assertEncodedAsDatum(schema, "<root b='true'><value>x</value><node><i>2</i><i>3</i><value>v</value></node><node><i>4</i><value>w</value></node><i>1</i></root>");
+
+        // values of fields already written
+        DatumBuilder builder = new DatumBuilder(schema);
+        for (String xml : new String[]{"<root a='a' b='1'><i>1</i><i>2</i><value>v</value></root>", "<root><i>1</i><node><i>2</i><value>u</value></node><value>v</value><d>1</d><value>w</value></root>"}) {
+            try {
+                builder.encodeDatum(new StringReader(xml), EncoderFactory.get().binaryEncoder(new ByteArrayOutputStream(), null));
+                fail(xml);
+            } catch (ConverterException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("written"));
+            }
+        }
+
+        // split datums
+        String xml = "<root><node><i>1</i></node><value>v</value><node><i>2</i><value>w</value></node></root>";
+        DatumIterator<Object> datums = builder.createDatums(new StringReader(xml), "root/node");
+        DatumIterator<Object> encoded = builder.createDatums(new StringReader(xml), "root/node");
+        while (datums.hasNext()) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(stream, null);
+            encoded.encodeNext(encoder);
+            encoder.flush();
+
+            assertTrue(Arrays.equals(datumBytes(datums.getSchema(), datums.next()), stream.toByteArray()));
+        }
+        assertFalse(encoded.hasNext());
+    }
+
+    private static void assertEncodedAsDatum(Schema schema, String xml) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(stream, null);
+        new DatumBuilder(schema).encodeDatum(new StringReader(xml), encoder);
+        encoder.flush();
+
+        byte[] expected = datumBytes(schema, Converter.createDatum(schema, xml));
+        assertEquals(Arrays.toString(expected), Arrays.toString(stream.toByteArray()));
+    }
+
+    private static byte[] datumBytes(Schema schema, Object datum) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(stream, null);
+        new SpecificDatumWriter<>(schema).write(datum, encoder);
+        encoder.flush();
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void generatedConverter() throws Exception {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:complexType name='type'>" +
+                "    <xs:sequence>" +
+                "      <xs:element name='i' type='xs:int'/>" +
+                "      <xs:element name='node' type='type' minOccurs='0'/>" +
+                "      <xs:element name='value' type='xs:string' maxOccurs='unbounded'/>" +
+                "      <xs:element name='d' type='xs:double' minOccurs='0'/>" +
+                "      <xs:element name='time' type='xs:dateTime' minOccurs='0'/>" +
+                "      <xs:choice maxOccurs='2'>" +
+                "        <xs:element name='x' type='xs:string'/>" +
+                "        <xs:element name='y' type='xs:int'/>" +
+                "      </xs:choice>" +
+                "      <xs:any maxOccurs='unbounded'/>" +
+                "    </xs:sequence>" +
+                "    <xs:attribute name='a' type='xs:string'/>" +
+                "    <xs:attribute name='b' type='xs:boolean'/>" +
+                "    <xs:attribute name='l' type='xs:long'/>" +
+                "  </xs:complexType>" +
+                "  <xs:element name='root' type='type'/>" +
+                "  <xs:element name='other' type='xs:long'/>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        GeneratedConverter converter = compileConverter(schema, "generated.TypeConverter", new DatumBuilder.Config());
+
+        String[] xmls = {
+                "<root a='a' b='1' l='7'><i>1</i><node><i>2</i><value>v</value><y>3</y></node><value>1</value><value>2</value>" +
+                "<d>1.5</d><time>2014-01-01T10:00:00</time><x>x1</x><y>2</y><w1>text<e/></w1><w2/><w3>3</w3></root>",
+                "<root><w1>1</w1><y>2</y><value>1</value><d>1.5</d><x>x</x><value>2</value><node><value>v</value><i>2</i></node><i>1</i></root>",
+                "<root b='false'><value>v</value><d>1</d><d>2</d><i>1</i></root>",
+                "<root a='a' b='1' l='1'><value>w</value><node><i>2</i><value>v</value><i>3</i></node><node><i>5</i><value>u</value></node><i>4</i></root>",
+                "<other>5</other>"
+        };
+        for (String xml : xmls)
+            assertGeneratedEncoding(new DatumBuilder(schema), converter, xml);
+
+        // errors are the same as of the builder
+        String[] invalidXmls = {"<root c='1'><i>1</i></root>", "<root><value>v</value></root>",
+                "<root a='a'><i>1</i><node><i>2</i><value>v</value></node><value>w</value><i>4</i></root>", "<root><i>1</i><node><i>2</i><value>u</value></node><value>v</value><d>1</d><value>w</value></root>"};
+        for (String xml : invalidXmls) {
+            String message = null;
+            try { new DatumBuilder(schema).encodeDatum(new StringReader(xml), EncoderFactory.get().binaryEncoder(new ByteArrayOutputStream(), null)); }
+            catch (ConverterException e) { message = e.getMessage(); }
+
+            try {
+                converter.encodeDatum(new StringReader(xml), EncoderFactory.get().binaryEncoder(new ByteArrayOutputStream(), null));
+                fail();
+            } catch (ConverterException e) {
+                assertEquals(message, e.getMessage());
+            }
+        }
+
+        // case insensitive names, time zone
+        DatumBuilder.Config config = new DatumBuilder.Config(false, TimeZone.getTimeZone("GMT+3"));
+        GeneratedConverter ignoreCase = compileConverter(schema, "generated.IgnoreCaseConverter", config);
+        assertGeneratedEncoding(new DatumBuilder(schema, config), ignoreCase, "<ROOT A='a'><I>1</I><Value>v</Value><TIME>2014-01-01T10:00:00</TIME><W>w</W></ROOT>");
+
+        // nested groups and single root schemas
+        xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence maxOccurs='unbounded'>" +
+                "        <xs:element name='s' type='xs:string' minOccurs='0'/>" +
+                "        <xs:element name='f' type='xs:float' minOccurs='0'/>" +
+                "      </xs:sequence>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        schema = Converter.createSchema(xsd);
+        converter = compileConverter(schema, "NestedConverter", new DatumBuilder.Config());
+        assertGeneratedEncoding(new DatumBuilder(schema), converter, "<root><s>1</s><f>1.5</f><s>2</s><s>3</s><f>-2</f></root>");
+    }
+
+    private static void assertGeneratedEncoding(DatumBuilder builder, GeneratedConverter converter, String xml) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(expected, null);
+        builder.encodeDatum(new StringReader(xml), encoder);
+        encoder.flush();
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        encoder = EncoderFactory.get().binaryEncoder(actual, null);
+        converter.encodeDatum(new StringReader(xml), encoder);
+        encoder.flush();
+
+        assertEquals(Arrays.toString(expected.toByteArray()), Arrays.toString(actual.toByteArray()));
+    }
+
+    private static GeneratedConverter compileConverter(Schema schema, String className, DatumBuilder.Config config) throws Exception {
+        File dir = Files.createTempDirectory("xml-avro").toFile();
+        try {
+            File source = new CodeGenerator().generate(schema, className, dir);
+
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            int result = compiler.run(null, null, null, "-classpath", System.getProperty("java.class.path"), "-d", dir.getPath(), source.getPath());
+            assertEquals(0, result);
+
+            try (URLClassLoader loader = new URLClassLoader(new URL[]{dir.toURI().toURL()}, ConverterTest.class.getClassLoader())) {
+                return (GeneratedConverter) loader.loadClass(className).getConstructor(DatumBuilder.Config.class).newInstance(config);
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void batchConversion() throws IOException {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:element name='i' type='xs:int'/>" +
+                "      </xs:sequence>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        File dir = Files.createTempDirectory("xml-avro").toFile();
+        try {
+            File xmlDir = new File(dir, "xml");
+            assertTrue(new File(xmlDir, "nested").mkdirs());
+
+            List<File> xmlFiles = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                File file = new File(i % 2 == 0 ? xmlDir : new File(xmlDir, "nested"), String.format("%02d.xml", i));
+                Files.write(file.toPath(), ("<root><i>" + i + "</i></root>").getBytes("utf-8"));
+                xmlFiles.add(file);
+            }
+
+            assertEquals(10, BatchConverter.listFiles(xmlDir.getPath()).size());
+            assertEquals(10, BatchConverter.listFiles(xmlDir.getPath() + "/*.xml").size());
+            assertEquals(20, BatchConverter.listFiles(xmlDir.getPath() + "/**.xml").size());
+
+            File list = new File(dir, "list");
+            Files.write(list.toPath(), (xmlFiles.get(3) + "\n" + xmlFiles.get(1) + "\n").getBytes("utf-8"));
+            assertEquals(Arrays.asList(xmlFiles.get(3), xmlFiles.get(1)), BatchConverter.listFiles("@" + list));
+
+            BatchConverter converter = new BatchConverter(schema);
+            converter.setThreads(4);
+            converter.setOrdered(true);
+
+            File avroFile = new File(dir, "all.avro");
+            converter.convert(xmlFiles, avroFile);
+
+            List<Object> values = new ArrayList<>();
+            try (DataFileReader<GenericData.Record> reader = new DataFileReader<>(avroFile, new GenericDatumReader<GenericData.Record>())) {
+                for (GenericData.Record record : reader) values.add(record.get("i"));
+            }
+
+            List<Object> expected = new ArrayList<>();
+            for (int i = 0; i < 20; i++) expected.add(i);
+            assertEquals(expected, values);
+
+            converter.setOrdered(false);
+            converter.convert(xmlFiles, avroFile);
+            try (DataFileReader<GenericData.Record> reader = new DataFileReader<>(avroFile, new GenericDatumReader<GenericData.Record>())) {
+                values.clear();
+                for (GenericData.Record record : reader) values.add(record.get("i"));
+            }
+            Collections.sort(values, null);
+            assertEquals(expected, values);
+
+            File avroDir = new File(dir, "avro");
+            converter.getFormat().setRaw(true);
+            converter.convertEach(xmlFiles, avroDir);
+            assertEquals(20, avroDir.list().length);
+
+            byte[] bytes = Files.readAllBytes(new File(avroDir, "07.avro").toPath());
+            assertTrue(Arrays.equals(datumBytes(schema, Converter.createDatum(schema, xmlFiles.get(7))), bytes));
+
+            Files.write(xmlFiles.get(5).toPath(), "<root><i>x</i></root>".getBytes("utf-8"));
+            try {
+                converter.convert(xmlFiles, avroFile);
+                fail();
+            } catch (ConverterException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("05.xml"));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void outputFormats() throws IOException {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:element name='s' type='xs:string'/>" +
+                "      </xs:sequence>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        DatumBuilder builder = new DatumBuilder(schema);
+        String xml = "<root><s>value value value value</s></root>";
+
+        File file = File.createTempFile("xml-avro", ".avro");
+        try {
+            for (String codec : Arrays.asList("null", "deflate", "deflate:1", "snappy")) {
+                OutputFormat format = new OutputFormat();
+                try {
+                    format.setCodec(codec);
+                } catch (IllegalArgumentException e) {
+                    // native snappy is not loadable on every jdk
+                    assertEquals("snappy", codec);
+                    assertEquals("Snappy codec is not available", e.getMessage());
+                    continue;
+                }
+                format.setSyncInterval(64);
+
+                try (OutputFormat.Output output = format.open(schema, file)) {
+                    for (int i = 0; i < 100; i++) {
+                        builder.encodeDatum(new StringReader(xml), output.startDatum());
+                        output.endDatum();
+                    }
+                }
+
+                try (DataFileReader<Object> reader = new DataFileReader<>(file, new GenericDatumReader<>())) {
+                    assertEquals(codec.replaceAll(":.*", ""), reader.getMetaString("avro.codec"));
+                    assertEquals(schema, reader.getSchema());
+                    assertEquals(100, count(reader));
+                }
+            }
+
+            OutputFormat format = new OutputFormat();
+            format.setRaw(true);
+            try (OutputFormat.Output output = format.open(schema, file)) {
+                builder.encodeDatum(new StringReader(xml), output.startDatum());
+                output.endDatum();
+                output.append(datumBytes(schema, builder.createDatum(xml)));
+            }
+
+            byte[] datum = datumBytes(schema, builder.createDatum(xml));
+            byte[] expected = Arrays.copyOf(datum, datum.length * 2);
+            System.arraycopy(datum, 0, expected, datum.length, datum.length);
+            assertTrue(Arrays.equals(expected, Files.readAllBytes(file.toPath())));
+        } finally {
+            assertTrue(file.delete());
+        }
+
+        for (String codec : Arrays.asList("gzip", "deflate:0", "deflate:x"))
+            try {
+                new OutputFormat().setCodec(codec);
+                fail(codec);
+            } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void schemaCache() throws IOException {
+        final File dir = Files.createTempDirectory("xml-avro").toFile();
+        try {
+            File xsdFile = new File(dir, "root.xsd");
+            Files.write(xsdFile.toPath(), (
+                    "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                    "  <xs:include schemaLocation='type.xsd'/>" +
+                    "  <xs:element name='root' type='type'/>" +
+                    "</xs:schema>").getBytes("utf-8"));
+
+            File typeFile = new File(dir, "type.xsd");
+            String type =
+                    "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                    "  <xs:complexType name='type'>" +
+                    "    <xs:sequence>" +
+                    "      <xs:element name='i' type='xs:int'/>" +
+                    "      <xs:element name='time' type='xs:dateTime'/>" +
+                    "    </xs:sequence>" +
+                    "  </xs:complexType>" +
+                    "</xs:schema>";
+            Files.write(typeFile.toPath(), type.getBytes("utf-8"));
+
+            SchemaBuilder builder = new SchemaBuilder();
+            builder.setResolver(new SchemaBuilder.Resolver() {
+                public InputStream getStream(String systemId) {
+                    try { return new FileInputStream(new File(dir, systemId)); }
+                    catch (FileNotFoundException e) { return null; }
+                }
+            });
+
+            SchemaCache cache = new SchemaCache(new File(dir, "cache"));
+            Schema schema = cache.createSchema(builder, xsdFile);
+            assertEquals(builder.createSchema(xsdFile), schema);
+            assertEquals(2, cache.getDir().list().length);
+
+            // cached schema is loaded
+            File[] avscFiles = cache.getDir().listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) { return name.endsWith(".avsc"); }
+            });
+            Files.write(avscFiles[0].toPath(), schema.toString().replace("\"i\"", "\"cached\"").getBytes("utf-8"));
+
+            Schema cached = cache.createSchema(builder, xsdFile);
+            assertNotNull(cached.getField("cached"));
+            assertEquals(schema.getField("time").schema(), cached.getField("time").schema());
+
+            // changed include invalidates the entry
+            Files.write(typeFile.toPath(), type.replace("xs:int", "xs:long").getBytes("utf-8"));
+            schema = cache.createSchema(builder, xsdFile);
+            assertEquals(Schema.Type.LONG, schema.getField("i").schema().getType());
+            assertEquals(schema, cache.createSchema(builder, xsdFile));
+
+            // without a resolver, includes are read next to the xsd and recorded
+            SchemaBuilder plain = new SchemaBuilder();
+            SchemaCache plainCache = new SchemaCache(new File(dir, "plain"));
+            assertEquals(Schema.Type.LONG, plainCache.createSchema(plain, xsdFile).getField("i").schema().getType());
+
+            Files.write(typeFile.toPath(), type.replace("xs:int", "xs:string").getBytes("utf-8"));
+            assertEquals(Schema.Type.STRING, plainCache.createSchema(plain, xsdFile).getField("i").schema().getType());
+            assertNull(plain.getResolver());
+
+            // as the builder reads them, relative to the including document rather than the working dir
+            assertEquals(plain.createSchema(xsdFile), plainCache.createSchema(plain, xsdFile));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void schemaCacheRecordsPooledImports() throws IOException {
+        final File dir = Files.createTempDirectory("xml-avro").toFile();
+        try {
+            File xsdFile = new File(dir, "root.xsd");
+            Files.write(xsdFile.toPath(), (
+                    "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:t='urn:t'>" +
+                    "  <xs:import namespace='urn:t' schemaLocation='types/type.xsd'/>" +
+                    "  <xs:element name='root' type='t:type'/>" +
+                    "</xs:schema>").getBytes("utf-8"));
+
+            File typesDir = new File(dir, "types");
+            assertTrue(typesDir.mkdir());
+            String type =
+                    "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:t'>" +
+                    "  <xs:include schemaLocation='inner.xsd'/>" +
+                    "</xs:schema>";
+            Files.write(new File(typesDir, "type.xsd").toPath(), type.getBytes("utf-8"));
+
+            File innerFile = new File(typesDir, "inner.xsd");
+            String inner =
+                    "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:t'>" +
+                    "  <xs:complexType name='type'>" +
+                    "    <xs:sequence><xs:element name='i' type='xs:int'/></xs:sequence>" +
+                    "  </xs:complexType>" +
+                    "</xs:schema>";
+            Files.write(innerFile.toPath(), inner.getBytes("utf-8"));
+
+            // the pool holds the import before the cache builds the schema
+            SchemaBuilder builder = new SchemaBuilder();
+            builder.setGrammarPool(new XMLGrammarPoolImpl());
+            Schema schema = builder.createSchema(xsdFile);
+
+            SchemaCache cache = new SchemaCache(new File(dir, "cache"));
+            assertEquals(schema, cache.createSchema(builder, xsdFile));
+            assertNotNull(builder.getGrammarPool());
+
+            // the include of the import, read relative to the import, is recorded
+            Files.write(innerFile.toPath(), inner.replace("xs:int", "xs:long").getBytes("utf-8"));
+            assertEquals(Schema.Type.LONG, cache.createSchema(builder, xsdFile).getField("i").schema().getType());
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void converterCache() throws Exception {
+        final ConverterCache cache = new ConverterCache(2, 2);
+        String xsd = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'><xs:element name='value' type='xs:int'/></xs:schema>";
+
+        Schema schema = cache.getSchema(xsd);
+        assertSame(schema, cache.getSchema(xsd));
+        assertEquals(Schema.Type.INT, schema.getType());
+
+        // equal schemas share the plan
+        assertSame(cache.getPlan(schema), cache.getPlan(Converter.createSchema(xsd)));
+        assertEquals(5, cache.getBuilder(schema).createDatum("<value>5</value>"));
+
+        for (String type : Arrays.asList("xs:long", "xs:string", "xs:int"))
+            cache.getPlan(cache.getSchema(xsd.replace("xs:int", type)));
+
+        // int schema was evicted by the string one
+        ConverterCache.Stats schemaStats = cache.getSchemaStats();
+        assertEquals(1, schemaStats.getHits());
+        assertEquals(4, schemaStats.getMisses());
+        assertEquals(2, schemaStats.getEvictions());
+        assertEquals(2, schemaStats.getSize());
+
+        ConverterCache.Stats planStats = cache.getPlanStats();
+        assertEquals(2, planStats.getHits());
+        assertEquals(4, planStats.getMisses());
+        assertEquals(2, planStats.getEvictions());
+
+        // concurrent lookups of few schemas
+        final List<Schema> schemas = Arrays.asList(schema, Converter.createSchema(xsd.replace("xs:int", "xs:long")), Converter.createSchema(xsd.replace("xs:int", "xs:string")));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                final Schema taskSchema = schemas.get(i % schemas.size());
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() { return cache.getBuilder(taskSchema).createDatum("<value>7</value>"); }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++)
+                assertEquals(i % 3 == 0 ? (Object) 7 : i % 3 == 1 ? (Object) 7L : "7", futures.get(i).get());
+        } finally {
+            executor.shutdown();
+        }
+
+        planStats = cache.getPlanStats();
+        assertEquals(6 + 300, planStats.getHits() + planStats.getMisses());
+        assertTrue(planStats.getSize() <= 2);
+    }
+
+    @Test
+    public void grammarPool() {
+        final String common =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' targetNamespace='urn:common'>" +
+                "  <xs:complexType name='type'>" +
+                "    <xs:sequence>" +
+                "      <xs:element name='i' type='xs:int'/>" +
+                "    </xs:sequence>" +
+                "  </xs:complexType>" +
+                "</xs:schema>";
+
+        final List<String> resolved = new ArrayList<>();
+        SchemaBuilder.Resolver resolver = new SchemaBuilder.Resolver() {
+            public InputStream getStream(String systemId) {
+                resolved.add(systemId);
+                return systemId.equals("common.xsd") ? new ByteArrayInputStream(common.getBytes()) : null;
+            }
+        };
+
+        List<String> xsds = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            xsds.add("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema' xmlns:c='urn:common' targetNamespace='urn:root" + i + "'>" +
+                     "  <xs:import namespace='urn:common' schemaLocation='common.xsd'/>" +
+                     "  <xs:element name='root" + i + "' type='c:type'/>" +
+                     "</xs:schema>");
+
+        List<Schema> schemas = new ArrayList<>();
+        SchemaBuilder builder = new SchemaBuilder();
+        builder.setResolver(resolver);
+        for (String xsd : xsds) schemas.add(builder.createSchema(xsd));
+        assertEquals(5, resolved.size());
+
+        // caching resolver reads the import once
+        resolved.clear();
+        builder.setResolver(new SchemaBuilder.CachingResolver(resolver));
+        for (int i = 0; i < xsds.size(); i++)
+            assertEquals(schemas.get(i), builder.createSchema(xsds.get(i)));
+        assertEquals(Arrays.asList("common.xsd"), resolved);
+
+        // pooled builders parse the import once
+        resolved.clear();
+        XMLGrammarPool pool = new XMLGrammarPoolImpl();
+        for (int i = 0; i < xsds.size(); i++) {
+            SchemaBuilder pooled = new SchemaBuilder();
+            pooled.setResolver(resolver);
+            pooled.setGrammarPool(pool);
+            assertEquals(schemas.get(i), pooled.createSchema(xsds.get(i)));
+        }
+        assertEquals(Arrays.asList("common.xsd"), resolved);
+
+        // roots of a namespace are not served from the pool
+        pool = new XMLGrammarPoolImpl();
+        for (String type : Arrays.asList("int", "string", "int")) {
+            for (String namespace : Arrays.asList(null, "urn:root")) {
+                String xsd = "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'" + (namespace != null ? " targetNamespace='" + namespace + "'" : "") + ">" +
+                             "  <xs:element name='root' type='xs:" + type + "'/>" +
+                             "</xs:schema>";
+
+                SchemaBuilder pooled = new SchemaBuilder();
+                pooled.setGrammarPool(pool);
+                assertEquals(Converter.createSchema(xsd), pooled.createSchema(xsd));
+            }
+        }
+    }
+
+    @Test
+    public void pipeConversion() throws IOException {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='root'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:element name='i' type='xs:int'/>" +
+                "      </xs:sequence>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        PipeConverter converter = new PipeConverter(schema);
+        converter.setThreads(3);
+
+        List<String> documents = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            documents.add(i == 7 ? "<root><i>x</i></root>" : "<root><i>" + i + "</i></root>");
+
+        // length prefixed
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        DataOutputStream prefixed = new DataOutputStream(input);
+        for (String document : documents) {
+            byte[] bytes = document.getBytes("utf-8");
+            prefixed.writeInt(bytes.length);
+            prefixed.write(bytes);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        converter.run(new ByteArrayInputStream(input.toByteArray()), output);
+        assertPipeOutput(schema, documents, output.toByteArray());
+
+        // zero delimited, last delimiter is optional
+        input.reset();
+        for (int i = 0; i < documents.size(); i++) {
+            if (i > 0) input.write(0);
+            input.write(documents.get(i).getBytes("utf-8"));
+        }
+
+        converter.setDelimited(true);
+        output.reset();
+        converter.run(new ByteArrayInputStream(input.toByteArray()), output);
+        assertPipeOutput(schema, documents, output.toByteArray());
+
+        // truncated input
+        converter.setDelimited(false);
+        try {
+            converter.run(new ByteArrayInputStream(new byte[]{0, 0, 0, 10, '<'}), new ByteArrayOutputStream());
+            fail();
+        } catch (ConverterException e) {
+            assertEquals("Truncated document", e.getMessage());
+        }
+    }
+
+    private static void assertPipeOutput(Schema schema, List<String> documents, byte[] output) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(output));
+        for (int i = 0; i < documents.size(); i++) {
+            int length = in.readInt();
+            byte[] bytes = new byte[Math.abs(length)];
+            in.readFully(bytes);
+
+            if (i == 7) {
+                assertTrue(length < 0);
+                assertTrue(new String(bytes, "utf-8").contains("x"));
+            } else
+                assertTrue(Arrays.equals(datumBytes(schema, Converter.createDatum(schema, documents.get(i))), bytes));
+        }
+
+        assertEquals(-1, in.read());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children) delete(child);
+
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void splitDatums() {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='orders'>" +
+                "    <xs:complexType>" +
+                "      <xs:sequence>" +
+                "        <xs:element name='order' maxOccurs='unbounded'>" +
+                "          <xs:complexType>" +
+                "            <xs:sequence>" +
+                "              <xs:element name='item' type='xs:string' maxOccurs='unbounded'/>" +
+                "            </xs:sequence>" +
+                "            <xs:attribute name='id' type='xs:int'/>" +
+                "          </xs:complexType>" +
+                "        </xs:element>" +
+                "        <xs:element name='note'>" +
+                "          <xs:complexType>" +
+                "            <xs:sequence>" +
+                "              <xs:element name='item' type='xs:int'/>" +
+                "            </xs:sequence>" +
+                "          </xs:complexType>" +
+                "        </xs:element>" +
+                "      </xs:sequence>" +
+                "    </xs:complexType>" +
+                "  </xs:element>" +
+                "</xs:schema>";
+
+        Schema schema = Converter.createSchema(xsd);
+        String xml = "<orders><order id='1'><item>a</item><item>b</item></order><order id='2'><item>c</item></order><note><item>3</item></note></orders>";
+
+        GenericData.Record orders = Converter.createDatum(schema, xml);
+        @SuppressWarnings("unchecked") List<Object> expected = (List<Object>) orders.get("order");
+
+        for (String split : Arrays.asList("order", "orders/order", "/orders/order")) {
+            DatumIterator<GenericData.Record> datums = Converter.createDatums(schema, new StringReader(xml), split);
+            assertEquals(schema.getField("order").schema().getElementType(), datums.getSchema());
+
+            List<Object> records = new ArrayList<>();
+            while (datums.hasNext()) records.add(datums.next());
+
+            assertEquals(expected, records);
+            assertFalse(datums.hasNext());
+        }
+
+        DatumBuilder builder = new DatumBuilder(schema);
+        DatumIterator<Object> items = builder.createDatums(new StringReader(xml), "orders/note/item");
+        assertEquals(3, items.next());
+        assertFalse(items.hasNext());
+
+        builder.setCaseSensitiveNames(false);
+        items = builder.createDatums(new StringReader(xml.replace("order", "ORDER")), "Orders/Order");
+        assertEquals(2, count(items));
+
+        try {
+            builder.createDatums(new StringReader(xml), "item");
+            fail();
+        } catch (ConverterException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("different types"));
+        }
+
+        try {
+            builder.createDatums(new StringReader(xml), "orders/missing");
+            fail();
+        } catch (ConverterException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("No element"));
+        }
+    }
+
+    private static int count(Iterator<?> iterator) {
+        int count = 0;
+        for (; iterator.hasNext(); iterator.next()) count++;
+        return count;
+    }
+
+    @Test
+    public void streamingMatchesDom() {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:complexType name='type'>" +
+                "    <xs:sequence>" +
+                "      <xs:element name='i' type='xs:int'/>" +
+                "      <xs:element name='node' type='type' minOccurs='0'/>" +
+                "      <xs:element name='value' type='xs:string' maxOccurs='unbounded'/>" +
+                "      <xs:choice maxOccurs='2'>" +
+                "        <xs:element name='x' type='xs:string'/>" +
+                "        <xs:element name='y' type='xs:int'/>" +
+                "      </xs:choice>" +
+                "      <xs:any/>" +
+                "    </xs:sequence>" +
+                "    <xs:attribute name='a' type='xs:string'/>" +
+                "  </xs:complexType>" +
+                "  <xs:element name='root' type='type'/>" +
+                "</xs:schema>";
+
+        String xml =
+                "<root a='a' xml:lang='en' xmlns:p='urn:p'>" +
+                "  <i>1</i>" +
+                "  <node><i>2</i><value>v</value><y>3</y></node>" +
+                "  <value>1</value><value>2</value>" +
+                "  <x>x1</x><y>2</y>" +
+                "  <w1>text <![CDATA[<cdata>]]> &amp; <e a='&quot;'/><!--c--><p:e p:a='1'>x</p:e></w1>" +
+                "  <w2><e/></w2>" +
+                "</root>";
+
+        Schema schema = Converter.createSchema(xsd);
+        DatumBuilder builder = new DatumBuilder(schema);
+
+        Object domDatum = builder.createDatum(DatumBuilder.parse(new InputSource(new StringReader(xml))));
+        Object streamDatum = builder.createDatum(xml);
+        assertEquals(domDatum.toString(), streamDatum.toString());
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> map = (Map<String, String>) ((GenericData.Record) streamDatum).get(Source.WILDCARD);
+        assertEquals("text <![CDATA[<cdata>]]> &amp; <e a=\"&quot;\"/><!--c--><p:e xmlns:p=\"urn:p\" p:a=\"1\">x</p:e>", map.get("w1"));
+        assertEquals("", map.get("w2"));
+    }
+
+    @Test
+    public void xmlWriter() throws IOException {
+        String xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:complexType name='type'>" +
+                "    <xs:sequence>" +
+                "      <xs:element name='i' type='xs:int'/>" +
+                "      <xs:element name='d' type='xs:double' minOccurs='0'/>" +
+                "      <xs:element name='t' type='xs:dateTime' minOccurs='0'/>" +
+                "      <xs:element name='node' type='type' minOccurs='0'/>" +
+                "      <xs:element name='value' type='xs:string' maxOccurs='unbounded'/>" +
+                "      <xs:choice maxOccurs='2'>" +
+                "        <xs:element name='x' type='xs:string'/>" +
+                "        <xs:element name='y' type='xs:int'/>" +
+                "      </xs:choice>" +
+                "      <xs:any/>" +
+                "    </xs:sequence>" +
+                "    <xs:attribute name='a' type='xs:string'/>" +
+                "    <xs:attribute name='b' type='xs:boolean'/>" +
+                "  </xs:complexType>" +
+                "  <xs:element name='root' type='type'/>" +
+                "</xs:schema>";
+
+        String xml =
+                "<root a='a &amp; &lt;' xml:lang='en'>" +
+                "<i>1</i><d>INF</d><t>2014-10-30T14:58:33.123Z</t>" +
+                "<node b='true'><i>2</i><t>2014-10-30T14:58:33Z</t><value>v</value><y>3</y></node>" +
+                "<value>1</value><value>2</value>" +
+                "<x>x1</x><y>2</y>" +
+                "<w1>text <![CDATA[<cdata>]]> &amp; <e a='&quot;'/><!--c--><p:e xmlns:p='urn:p' p:a='1'>x</p:e></w1>" +
+                "</root>";
+
+        Schema schema = Converter.createSchema(xsd);
+        Object datum = Converter.createDatum(schema, xml);
+
+        XmlWriter writer = new XmlWriter(schema);
+        try {
+            writer.write(datum, new ByteArrayOutputStream());
+            fail();
+        } catch (ConverterException e) {
+            assertEquals("Root element name required for schema type", e.getMessage());
+        }
+
+        writer.setRootElement("root");
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        writer.write(datum, written);
+        String writtenXml = new String(written.toByteArray(), "UTF-8");
+
+        assertTrue(writtenXml, writtenXml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><root a=\"a &amp; &lt;\"><i>1</i><d>INF</d>" +
+                "<t>2014-10-30T14:58:33.123Z</t><node b=\"true\"><i>2</i><t>2014-10-30T14:58:33Z</t><value>v</value><y>3</y></node>" +
+                "<value>1</value><value>2</value><x>x1</x><y>2</y><w1>text <![CDATA[<cdata>]]> &amp; <e a=\"&quot;\"></e><!--c-->"));
+        assertEquals(datum.toString(), Converter.createDatum(schema, writtenXml).toString());
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        writer.write(DecoderFactory.get().binaryDecoder(datumBytes(schema, datum), null), decoded);
+        assertEquals(writtenXml, new String(decoded.toByteArray(), "UTF-8"));
+
+        // several roots
+        xsd =
+                "<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'>" +
+                "  <xs:element name='s' type='xs:string'/>" +
+                "  <xs:element name='i' type='xs:int'/>" +
+                "</xs:schema>";
+
+        schema = Converter.createSchema(xsd);
+        datum = Converter.createDatum(schema, "<i>5</i>");
+
+        written = new ByteArrayOutputStream();
+        new XmlWriter(schema).write(datum, written);
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><i>5</i>", new String(written.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void simpleSplitConversion() throws IOException {
+        String xml =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<root xmlns:p=\"urn:p\" a=\"1\">text&#13;\n" +
+                "  <group n=\"1\">\n" +
+                "    <p:item p:k=\"v\">one &amp; <b>bold</b></p:item>\n" +
+                "    <item q=\"&lt;&quot;&amp;&gt;\" r=\"x&#10;y&#9;z&#13;\">two &lt;é中&gt;&#13;\n</item>\n" +
+                "    <item></item><item>three</item>\n" +
+                "  </group>\n" +
+                "  <group n=\"2\"><item>four</item></group>\n" +
+                "  <group></group>\n" +
+                "</root>";
+
+        File xmlFile = File.createTempFile("split", ".xml");
+        File avroFile = File.createTempFile("split", ".avro");
+        File outFile = File.createTempFile("split", ".xml");
+
+        try {
+            Files.write(xmlFile.toPath(), xml.getBytes("UTF-8"));
+
+            int[] records = {1, 3, 5};
+            for (int depth = 0; depth <= 2; depth++) {
+                for (boolean nameTable : new boolean[]{false, true}) {
+                    xmlToAvro(xmlFile, avroFile, depth, nameTable);
+
+                    try (DataFileReader<Object> reader = new DataFileReader<>(avroFile, new GenericDatumReader<>())) {
+                        assertEquals(records[depth], count(reader));
+                        assertEquals(nameTable, reader.getMeta("xml.names") != null);
+                    }
+
+                    avroToXml(avroFile, outFile);
+                    assertEquals(xml, new String(Files.readAllBytes(outFile.toPath()), "UTF-8"));
+                }
+            }
+        } finally {
+            delete(xmlFile);
+            delete(avroFile);
+            delete(outFile);
+        }
+    }
+
+    @Test
+    public void simpleParallelReader() throws IOException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><root>\n");
+        for (int group = 0; group < 100; group++) {
+            xml.append("  <group n=\"").append(group).append("\">");
+            for (int item = 0; item < 100; item++) xml.append("<item i=\"").append(item).append("\">text ").append(group * 100 + item).append("</item>");
+            xml.append("</group>\n");
+        }
+        xml.append("</root>");
+
+        File xmlFile = File.createTempFile("parallel", ".xml");
+        File avroFile = File.createTempFile("parallel", ".avro");
+
+        try {
+            Files.write(xmlFile.toPath(), xml.toString().getBytes("UTF-8"));
+            xmlToAvro(xmlFile, avroFile, 2);
+            assertTrue("" + avroFile.length(), avroFile.length() > 4 * DataFileConstants.DEFAULT_SYNC_INTERVAL);
+
+            // one thread reads chunks after each other, without syncing
+            for (int threads : new int[]{1, 3}) {
+                ParallelReader reader = new ParallelReader(avroFile);
+                reader.setThreads(threads);
+                // chunks of about one block each, reused as others are decoded
+                reader.setChunkSize(1000);
+
+                int count = 0;
+                int chunkCount = 0;
+                try (DataFileReader<Object> expected = new DataFileReader<>(avroFile, new GenericDatumReader<>());
+                     ParallelReader.Chunks<List<Object>> chunks = reader.datums()) {
+                    while (chunks.hasNext()) {
+                        for (Object datum : chunks.next()) {
+                            assertEquals(expected.next(), datum);
+                            count++;
+                        }
+                        chunkCount++;
+                    }
+
+                    assertFalse(expected.hasNext());
+                }
+
+                assertEquals(10000, count);
+                assertTrue("" + chunkCount, chunkCount > 4);
+            }
+        } finally {
+            delete(xmlFile);
+            delete(avroFile);
+        }
+    }
+
+    @Test
+    public void simpleEntities() throws IOException {
+        File xmlFile = File.createTempFile("entities", ".xml");
+        File avroFile = File.createTempFile("entities", ".avro");
+        File outFile = File.createTempFile("entities", ".xml");
+
+        try {
+            String xml =
+                    "<?xml version=\"1.0\"?>" +
+                    "<!DOCTYPE root [<!ENTITY e \"one &amp; two\"><!ENTITY x SYSTEM \"" + xmlFile.toURI() + "\">]>" +
+                    "<root a=\"&e;\"><i>&e;</i><i>[&e;]</i><i>&x;</i></root>";
+            Files.write(xmlFile.toPath(), xml.getBytes("UTF-8"));
+
+            for (int depth = 0; depth <= 1; depth++) {
+                xmlToAvro(xmlFile, avroFile, depth);
+                avroToXml(avroFile, outFile);
+
+                assertEquals(
+                        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                        "<root a=\"one &amp; two\"><i>one &amp; two</i><i>[one &amp; two]</i><i></i></root>",
+                        new String(Files.readAllBytes(outFile.toPath()), "UTF-8"));
+            }
+        } finally {
+            delete(xmlFile);
+            delete(avroFile);
+            delete(outFile);
+        }
+    }
+
+    @Test
+    public void simpleNameTableLimit() throws IOException {
+        File xmlFile = File.createTempFile("names", ".xml");
+        File avroFile = File.createTempFile("names", ".avro");
+
+        try {
+            // names of the elements and the root
+            StringBuilder xml = new StringBuilder("<root>");
+            for (int i = 0; i < 1 << 16; i++) xml.append("<n").append(i).append("/>");
+            Files.write(xmlFile.toPath(), xml.append("</root>").toString().getBytes("UTF-8"));
+
+            try {
+                xmlToAvro(xmlFile, avroFile, 1, true);
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("More than 65536 names for the table of names", e.getMessage());
+            }
+
+            xmlToAvro(xmlFile, avroFile, 1, false);
+        } finally {
+            delete(xmlFile);
+            delete(avroFile);
+        }
+    }
+
+    @Test
+    public void simpleCompactConversion() throws IOException {
+        String xml =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<root xmlns:p=\"urn:p\" a=\"1\">\n" +
+                "  <group>\n" +
+                "    <p:item xmlns:q=\"urn:q\" q:k=\"v\"> one <![CDATA[<two>]]><!-- c --> three </p:item>\n" +
+                "    <pre xml:space=\"preserve\">  <b> </b>  </pre>\n" +
+                "    <kept>  <b> </b></kept>\n" +
+                "  </group>\n" +
+                "  <group xmlns:q=\"urn:other\"><q:item xmlns=\"urn:d\"><x> </x></q:item></group>\n" +
+                "</root>";
+
+        String compact =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<root xmlns:p=\"urn:p\" a=\"1\"><group>" +
+                "<p:item xmlns:q=\"urn:q\" q:k=\"v\"> one &lt;two&gt; three </p:item>" +
+                "<pre xml:space=\"preserve\">  <b> </b>  </pre>" +
+                "<kept>  <b> </b></kept>" +
+                "</group>" +
+                "<group xmlns:q=\"urn:other\"><q:item xmlns=\"urn:d\"><x></x></q:item></group>" +
+                "</root>";
+
+        File xmlFile = File.createTempFile("compact", ".xml");
+        File avroFile = File.createTempFile("compact", ".avro");
+        File outFile = File.createTempFile("compact", ".xml");
+
+        try {
+            Files.write(xmlFile.toPath(), xml.getBytes("UTF-8"));
+
+            Options options = new Options();
+            options.setCompact(true);
+            options.setPreserveWhitespace(Arrays.asList("kept"));
+
+            for (int depth = 0; depth <= 2; depth++) {
+                for (boolean nameTable : new boolean[]{false, true}) {
+                    xmlToAvro(xmlFile, avroFile, depth, nameTable);
+                    long length = avroFile.length();
+
+                    options.setSplitDepth(depth);
+                    options.setNameTable(nameTable);
+                    xmlToAvro(xmlFile, avroFile, options);
+                    assertTrue(avroFile.length() < length);
+
+                    try (DataFileReader<Object> reader = new DataFileReader<>(avroFile, new GenericDatumReader<>())) {
+                        assertEquals("p=urn:p", new String(reader.getMeta("xml.namespaces"), "UTF-8"));
+                    }
+
+                    avroToXml(avroFile, outFile);
+                    assertEquals(compact, new String(Files.readAllBytes(outFile.toPath()), "UTF-8"));
+                }
+            }
+        } finally {
+            delete(xmlFile);
+            delete(avroFile);
+            delete(outFile);
+        }
+    }
+
+    @Test
+    public void pathIndex() throws IOException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><root xmlns:p=\"urn:p\">");
+        for (int i = 0; i < 2000; i++)
+            xml.append("\n<group n=\"").append(i).append("\"><p:item>text ").append(i).append("</p:item><item><b>x</b><b>y ").append(i).append("</b></item></group>");
+        xml.append("\n</root>");
+
+        File xmlFile = File.createTempFile("index", ".xml");
+        File avroFile = File.createTempFile("index", ".avro");
+        File outFile = File.createTempFile("index", ".xml");
+
+        try {
+            Files.write(xmlFile.toPath(), xml.toString().getBytes("UTF-8"));
+
+            for (boolean compact : new boolean[]{false, true}) {
+                Options options = new Options();
+                options.setSplitDepth(1);
+                options.setIndexDepth(3);
+                options.setCompact(compact);
+                options.setNameTable(compact);
+                xmlToAvro(xmlFile, avroFile, options);
+
+                avroToXml(avroFile, outFile);
+                if (!compact) assertEquals(xml.toString(), new String(Files.readAllBytes(outFile.toPath()), "UTF-8"));
+
+                try (PathIndex index = new PathIndex(avroFile)) {
+                    assertFalse(index.contains("/root"));
+                    assertFalse(index.contains("/root/group[2001]"));
+                    assertFalse(index.contains("/root/group/item/b/c"));
+
+                    String declaration = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+                    assertEquals(declaration + "<group xmlns:p=\"urn:p\" n=\"1499\"><p:item>text 1499</p:item><item><b>x</b><b>y 1499</b></item></group>", extract(index, "/root/group[1500]"));
+                    assertEquals(declaration + "<p:item xmlns:p=\"urn:p\">text 6</p:item>", extract(index, "/root[1]/group[7]/p:item"));
+                    assertEquals(declaration + "<b xmlns:p=\"urn:p\">y 1999</b>", extract(index, "/root/group[2000]/item/b[2]"));
+                    assertEquals(declaration + "<b xmlns:p=\"urn:p\">x</b>", extract(index, "/root/group/item/b"));
+
+                    try {
+                        extract(index, "/root/group[2001]");
+                        fail();
+                    } catch (IllegalArgumentException e) {
+                        assertEquals("Path is not indexed: /root/group[2001]", e.getMessage());
+                    }
+                }
+            }
+
+            // index with its last node cut off
+            File indexFile = PathIndex.indexFile(avroFile);
+            byte[] indexBytes = Files.readAllBytes(indexFile.toPath());
+            byte[] cut = Arrays.copyOfRange(indexBytes, indexBytes.length - 12, indexBytes.length);
+            Files.write(indexFile.toPath(), cut);
+            try {
+                new PathIndex(avroFile).close();
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("Invalid index " + indexFile, e.getMessage());
+            }
+
+            xmlToAvro(xmlFile, avroFile, 1);
+            assertFalse(indexFile.exists());
+
+            // index of a document failing to convert is not left behind
+            Files.write(xmlFile.toPath(), xml.substring(0, xml.length() / 2).getBytes("UTF-8"));
+            Options options = new Options();
+            options.setSplitDepth(1);
+            options.setIndexDepth(3);
+            try {
+                xmlToAvro(xmlFile, avroFile, options);
+                fail();
+            } catch (IOException expected) {}
+            assertFalse(indexFile.exists());
+        } finally {
+            delete(xmlFile);
+            delete(avroFile);
+            delete(outFile);
+        }
+    }
+
+    private static String extract(PathIndex index, String path) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.extract(path, out);
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void parallelReader() throws IOException {
+        Schema schema = Converter.createSchema("<xs:schema xmlns:xs='http://www.w3.org/2001/XMLSchema'><xs:element name='i' type='xs:int'/></xs:schema>");
+        File avroFile = File.createTempFile("parallel", ".avro");
+
+        try {
+            try (DataFileWriter<Object> writer = new DataFileWriter<>(new GenericDatumWriter<>(schema))) {
+                writer.setSyncInterval(32);
+                writer.create(schema, avroFile);
+                for (int i = 0; i < 5000; i++) writer.append(i);
+            }
+
+            ParallelReader reader = new ParallelReader(avroFile);
+            reader.setThreads(3);
+            reader.setChunkSize(100);
+
+            List<Object> datums = new ArrayList<>();
+            int chunkCount = 0;
+            try (ParallelReader.Chunks<List<Object>> chunks = reader.datums()) {
+                while (chunks.hasNext()) {
+                    datums.addAll(chunks.next());
+                    chunkCount++;
+                }
+            }
+
+            assertTrue("" + chunkCount, chunkCount > 10);
+            assertEquals(5000, datums.size());
+            for (int i = 0; i < datums.size(); i++) assertEquals(i, datums.get(i));
+        } finally {
+            delete(avroFile);
+        }
+    }
+
     @Test
     public void SchemaBuilder_validName() {
         SchemaBuilder builder = new SchemaBuilder();
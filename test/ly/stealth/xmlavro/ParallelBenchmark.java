@@ -0,0 +1,86 @@
+package ly.stealth.xmlavro;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+
+import java.io.*;
+import java.util.List;
+
+import static ly.stealth.xmlavro.simple.Converter.xmlToAvro;
+
+/**
+ * Times decoding of a container file by {@link DataFileReader} and by {@link ParallelReader#datums()} with several
+ * thread counts, both reusing datums. Without a file, one of generated records is written by the simple converter
+ * and deleted afterwards.
+ * <p>
+ * Run after {@code mvn test-compile}:
+ * {@code java -cp target/classes:target/test-classes:<dependencies> ly.stealth.xmlavro.ParallelBenchmark [avroFile] [records]}
+ */
+public class ParallelBenchmark {
+    private static final int RUNS = 3;
+
+    public static void main(String... args) throws Exception {
+        File avroFile = args.length > 0 ? new File(args[0]) : null;
+        boolean generated = avroFile == null || !avroFile.exists();
+        if (generated) avroFile = generate(avroFile, args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = cores > 4 ? new int[]{1, 2, 4, cores} : new int[]{1, 2, 4};
+        System.out.println(avroFile + ": " + (avroFile.length() >> 20) + " MB, " + cores + " cores");
+
+        try {
+            for (int run = 1; run <= RUNS; run++) {
+                System.out.println("Run " + run);
+
+                long start = System.nanoTime();
+                long count = 0;
+                try (DataFileReader<Object> reader = new DataFileReader<>(avroFile, new GenericDatumReader<>())) {
+                    Object datum = null;
+                    while (reader.hasNext()) {
+                        datum = reader.next(datum);
+                        count++;
+                    }
+                }
+                print("DataFileReader", count, start);
+
+                for (int threads : threadCounts) {
+                    ParallelReader reader = new ParallelReader(avroFile);
+                    reader.setThreads(threads);
+
+                    start = System.nanoTime();
+                    count = 0;
+                    try (ParallelReader.Chunks<List<Object>> chunks = reader.datums()) {
+                        while (chunks.hasNext()) count += chunks.next().size();
+                    }
+                    print("datums, " + threads + " threads", count, start);
+                }
+            }
+        } finally {
+            if (generated) avroFile.delete();
+        }
+    }
+
+    /** File of the records, split from a generated document */
+    private static File generate(File avroFile, int records) throws IOException {
+        File xmlFile = File.createTempFile("benchmark", ".xml");
+        if (avroFile == null) avroFile = File.createTempFile("benchmark", ".avro");
+
+        try {
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(xmlFile), "UTF-8"))) {
+                writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<records>\n");
+                for (int i = 0; i < records; i++)
+                    writer.write("  <record id=\"" + i + "\"><name>record " + i + "</name><value>" + (i * 31 % 1000) + "</value></record>\n");
+                writer.write("</records>\n");
+            }
+
+            xmlToAvro(xmlFile, avroFile, 1);
+            return avroFile;
+        } finally {
+            xmlFile.delete();
+        }
+    }
+
+    private static void print(String name, long count, long start) {
+        System.out.println(String.format("  %-24s %8d ms, %d records", name, (System.nanoTime() - start) / 1000000, count));
+    }
+}